@@ -0,0 +1,502 @@
+package app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import model.Account;
+import model.AccountBalance;
+import model.Money;
+import model.User;
+
+/**
+ * An HTTP/JSON front end to SimpleBankingApp, on the JDK's built-in HTTP server:
+ * <pre>
+ *   POST /transactions                 account=5495-1234&amp;amount=-50.21 (query string or form body), and
+ *                                      optionally an Idempotency-Key header to make retries safe
+ *   POST /transfers                    from=5495-1234&amp;to=5495-6789&amp;amount=20.00
+ *   GET  /accounts/{number}/balance
+ *   GET  /accounts                     every account, streamed
+ *   GET  /accounts?holder={username}   the accounts of a user, with their balances
+ *   GET  /users/{username}
+ *   GET  /metrics                      the metrics of SimpleBankingApp, as plain text
+ * </pre>
+ * The connections are all handled by the server's selector thread, so an idle (keep-alive) connection costs
+ * a socket and no thread: the number of connections is bounded by the file descriptors of the process. The
+ * requests themselves run on one virtual thread each where the JDK has them (21 and later); on older JDKs they
+ * run on a fixed pool of platform threads, which is enough as a request only takes a few microseconds (unless
+ * it waits for the journal to be forced to disk, hence more threads than cores).
+ */
+public class BankingServer {
+
+	public static final int DEFAULT_PORT = 8080;
+	public static final int BACKLOG = 4096;
+	static final int PLATFORM_THREADS = Math.max(16, 8 * Runtime.getRuntime().availableProcessors());
+
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE.withZone(ZoneId.systemDefault());
+
+	/**
+	 * Change two defaults of the JDK's HTTP server that do not suit an API with many clients, unless they were
+	 * set on the command line: the response headers and body are written separately, so without TCP_NODELAY
+	 * every response waits for the client's delayed ACK; and only 200 idle keep-alive connections are kept open.
+	 * These are system properties, read once by the JDK for every HTTP server of the JVM, so this is only for the
+	 * main of a process that serves this API, before it starts the server. A process that embeds the server
+	 * passes them as launch flags instead:
+	 * <pre>
+	 *   -Dsun.net.httpserver.nodelay=true -Dsun.net.httpserver.maxIdleConnections=100000
+	 * </pre>
+	 */
+	public static void setServerProperties() {
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null)
+			System.setProperty("sun.net.httpserver.maxIdleConnections", "100000");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private BankingServer(HttpServer server, ExecutorService executor) {
+		this.server = server;
+		this.executor = executor;
+	}
+
+	/**
+	 * Start serving SimpleBankingApp (whose data must be loaded) on the given port of every interface.
+	 *
+	 * @param port 0 for any free port (see getPort)
+	 */
+	public static BankingServer start(int port) throws IOException {
+		return start(new InetSocketAddress(port));
+	}
+
+	public static BankingServer start(InetSocketAddress address) throws IOException {
+		HttpServer server = HttpServer.create(address, BACKLOG);
+		ExecutorService executor = newRequestExecutor();
+		server.setExecutor(executor);
+		server.createContext("/transactions", handler(new Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				postTransaction(exchange);
+			}
+		}));
+		server.createContext("/transfers", handler(new Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				postTransfer(exchange);
+			}
+		}));
+		server.createContext("/accounts", handler(new Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				getAccounts(exchange);
+			}
+		}));
+		server.createContext("/users", handler(new Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				getUser(exchange);
+			}
+		}));
+		server.createContext("/metrics", handler(new Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				getMetrics(exchange);
+			}
+		}));
+		server.start();
+		return new BankingServer(server, executor);
+	}
+
+	/**
+	 * @return one virtual thread per request where the JDK has them, a fixed pool of platform threads otherwise
+	 */
+	static ExecutorService newRequestExecutor() {
+		try {
+			// looked up by reflection, as the code is built for Java 8
+			Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtual.invoke(null);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			final AtomicInteger threads = new AtomicInteger();
+			return Executors.newFixedThreadPool(PLATFORM_THREADS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "http-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop accepting requests, give the ones in progress up to the given delay to finish, and stop.
+	 */
+	public void stop(int delay_seconds) {
+		server.stop(delay_seconds);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(delay_seconds + 1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// POST /transactions: add a deposit (positive amount) or withdrawal (negative amount) to an account
+	static void postTransaction(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			send(exchange, 405, error("use POST"));
+			return;
+		}
+		Map<String, String> parameters = parameters(exchange);
+		String account_number = parameters.get("account");
+		String amount = parameters.get("amount");
+		if (account_number == null || account_number.isEmpty()) {
+			send(exchange, 400, error(TransactionResult.INVALID_ACCOUNT_NUMBER.name()));
+			return;
+		}
+		long amount_cents;
+		try {
+			amount_cents = new BigDecimal(amount).movePointRight(2).longValueExact();
+		} catch (NullPointerException | NumberFormatException | ArithmeticException e) {
+			amount_cents = 0;
+		}
+		if (amount_cents == 0) {
+			send(exchange, 400, error(TransactionResult.INVALID_AMOUNT.name()));
+			return;
+		}
+		// with an Idempotency-Key header, a retry of the same request gets the first one's answer (including the
+		// balance right after it), and a reuse of the key for another transaction gets a 422
+		String request_id = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+		RequestOutcome outcome = request_id == null ? SimpleBankingApp.addTransactionOutcome(account_number, amount_cents)
+				: SimpleBankingApp.addTransactionOutcome(request_id, account_number, amount_cents);
+		if (outcome.getResult() == TransactionResult.REQUEST_ID_REUSED) {
+			send(exchange, 422, error(TransactionResult.REQUEST_ID_REUSED.name()));
+			return;
+		}
+		if (!outcome.getResult().isAccepted()) {
+			send(exchange, 404, error(TransactionResult.UNKNOWN_ACCOUNT.name()));
+			return;
+		}
+		StringBuilder json = new StringBuilder(64);
+		json.append("{\"account\":");
+		appendString(json, account_number);
+		json.append(",\"amount\":").append(Money.toDouble(amount_cents));
+		json.append(",\"balance\":").append(Money.toDouble(outcome.getBalance_cents())).append('}');
+		send(exchange, 200, json.toString());
+	}
+
+	// POST /transfers: move money from one account to another, atomically
+	static void postTransfer(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			send(exchange, 405, error("use POST"));
+			return;
+		}
+		Map<String, String> parameters = parameters(exchange);
+		String from = parameters.get("from");
+		String to = parameters.get("to");
+		long amount_cents;
+		try {
+			amount_cents = new BigDecimal(parameters.get("amount")).movePointRight(2).longValueExact();
+		} catch (NullPointerException | NumberFormatException | ArithmeticException e) {
+			amount_cents = 0;
+		}
+		TransactionResult result = SimpleBankingApp.transfer(from, to, amount_cents);
+		switch (result) {
+		case ACCEPTED:
+			break;
+		case UNKNOWN_ACCOUNT:
+			send(exchange, 404, error(result.name()));
+			return;
+		case INSUFFICIENT_FUNDS:
+			send(exchange, 409, error(result.name()));
+			return;
+		default:
+			send(exchange, 400, error(result.name()));
+			return;
+		}
+		StringBuilder json = new StringBuilder(96);
+		json.append("{\"from\":");
+		appendString(json, from);
+		json.append(",\"to\":");
+		appendString(json, to);
+		json.append(",\"amount\":").append(Money.toDouble(amount_cents));
+		json.append(",\"from_balance\":").append(SimpleBankingApp.getBalance(from));
+		json.append(",\"to_balance\":").append(SimpleBankingApp.getBalance(to)).append('}');
+		send(exchange, 200, json.toString());
+	}
+
+	// GET /accounts, /accounts?holder={username} and /accounts/{number}/balance
+	static void getAccounts(HttpExchange exchange) throws IOException {
+		if (!"GET".equals(exchange.getRequestMethod())) {
+			send(exchange, 405, error("use GET"));
+			return;
+		}
+		String[] path = exchange.getRequestURI().getRawPath().split("/");
+		// path[0] is empty (the path starts with /) and path[1] is "accounts"
+		if (path.length == 4 && path[3].equals("balance")) {
+			String account_number = decodePath(path[2]);
+			if (!SimpleBankingApp.ledger.isOpen(account_number)) {
+				send(exchange, 404, error("no account " + account_number));
+				return;
+			}
+			StringBuilder json = new StringBuilder(64);
+			json.append("{\"account\":");
+			appendString(json, account_number);
+			json.append(",\"balance\":").append(SimpleBankingApp.getBalance(account_number)).append('}');
+			send(exchange, 200, json.toString());
+			return;
+		}
+		if (path.length != 2) {
+			send(exchange, 404, error("not found"));
+			return;
+		}
+
+		String holder = parameters(exchange).get("holder");
+		if (holder != null) {
+			if (SimpleBankingApp.findUser(holder) == null) {
+				send(exchange, 404, error("no user " + holder));
+				return;
+			}
+			List<AccountBalance> portfolio = SimpleBankingApp.getPortfolio(holder);
+			StringBuilder json = new StringBuilder(64 + 128 * portfolio.size());
+			json.append('[');
+			for (int i = 0; i < portfolio.size(); i++) {
+				if (i > 0)
+					json.append(',');
+				appendAccount(json, portfolio.get(i).getAccount(), portfolio.get(i).getBalance_cents());
+			}
+			json.append(']');
+			send(exchange, 200, json.toString());
+			return;
+		}
+
+		// every account: the list can be long, so it is streamed (chunked) instead of built in memory
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = exchange.getResponseBody()) {
+			ReportWriter report = new ReportWriter(Channels.newChannel(out), ReportWriter.DEFAULT_BUFFER_SIZE, StandardCharsets.UTF_8);
+			StringBuilder json = new StringBuilder(256);
+			report.append('[');
+			int count = SimpleBankingApp.accounts.size();
+			for (int i = 0; i < count; i++) {
+				Account anAccount = SimpleBankingApp.accounts.get(i);
+				json.setLength(0);
+				if (i > 0)
+					json.append(',');
+				appendAccount(json, anAccount, SimpleBankingApp.getBalanceCents(anAccount.getAccount_number()));
+				report.append(json.toString());
+			}
+			report.append(']');
+			report.flush();
+		}
+	}
+
+	// GET /users/{username}: the user, without the password
+	static void getUser(HttpExchange exchange) throws IOException {
+		if (!"GET".equals(exchange.getRequestMethod())) {
+			send(exchange, 405, error("use GET"));
+			return;
+		}
+		String[] path = exchange.getRequestURI().getRawPath().split("/");
+		if (path.length != 3) {
+			send(exchange, 404, error("not found"));
+			return;
+		}
+		String username = decodePath(path[2]);
+		User aUser = SimpleBankingApp.findUser(username);
+		if (aUser == null) {
+			send(exchange, 404, error("no user " + username));
+			return;
+		}
+		StringBuilder json = new StringBuilder(128);
+		json.append("{\"username\":");
+		appendString(json, aUser.getUsername());
+		json.append(",\"first_name\":");
+		appendString(json, aUser.getFirst_name());
+		json.append(",\"last_name\":");
+		appendString(json, aUser.getLast_name());
+		json.append(",\"mobile_number\":");
+		appendString(json, aUser.getMobile_number());
+		json.append('}');
+		send(exchange, 200, json.toString());
+	}
+
+	// GET /metrics: the text dump of Metrics
+	static void getMetrics(HttpExchange exchange) throws IOException {
+		if (!"GET".equals(exchange.getRequestMethod())) {
+			send(exchange, 405, error("use GET"));
+			return;
+		}
+		byte[] body = Metrics.dump().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	static void appendAccount(StringBuilder json, Account anAccount, long balance_cents) {
+		json.append("{\"account\":");
+		appendString(json, anAccount.getAccount_number());
+		json.append(",\"holder\":");
+		appendString(json, anAccount.getUsername_of_account_holder());
+		json.append(",\"type\":");
+		appendString(json, anAccount.getAccount_type());
+		json.append(",\"opening_date\":");
+		appendString(json, anAccount.getAccount_opening_rate() == null ? null
+				: DATE_FORMAT.format(anAccount.getAccount_opening_rate().toInstant()));
+		json.append(",\"balance\":").append(Money.toDouble(balance_cents)).append('}');
+	}
+
+	static void appendString(StringBuilder json, String s) {
+		if (s == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				json.append('\\').append(c);
+			else if (c < 0x20)
+				json.append(String.format("\\u%04x", (int) c));
+			else
+				json.append(c);
+		}
+		json.append('"');
+	}
+
+	static String error(String message) {
+		StringBuilder json = new StringBuilder(64);
+		json.append("{\"error\":");
+		appendString(json, message);
+		return json.append('}').toString();
+	}
+
+	// the parameters of the query string and, for a form, of the body
+	static Map<String, String> parameters(HttpExchange exchange) throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parse(exchange.getRequestURI().getRawQuery(), parameters);
+		String content_type = exchange.getRequestHeaders().getFirst("Content-Type");
+		byte[] body = readBody(exchange.getRequestBody());
+		if (content_type != null && content_type.startsWith("application/x-www-form-urlencoded"))
+			parse(new String(body, StandardCharsets.UTF_8), parameters);
+		return parameters;
+	}
+
+	static void parse(String query, Map<String, String> parameters) {
+		if (query == null || query.isEmpty())
+			return;
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0)
+				parameters.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+		}
+	}
+
+	static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (IOException | IllegalArgumentException e) {
+			return s;
+		}
+	}
+
+	// unlike in a query string, a + in a path is a +
+	static String decodePath(String segment) {
+		return decode(segment.replace("+", "%2B"));
+	}
+
+	static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		for (int n; (n = in.read(buffer)) > 0;)
+			body.write(buffer, 0, n);
+		return body.toByteArray();
+	}
+
+	static void send(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+
+	interface Endpoint {
+		void handle(HttpExchange exchange) throws IOException;
+	}
+
+	// runs an endpoint, answering 500 if it fails, and always closes the exchange
+	static HttpHandler handler(final Endpoint endpoint) {
+		return new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					endpoint.handle(exchange);
+				} catch (RuntimeException e) {
+					if (exchange.getResponseCode() < 0)
+						send(exchange, 500, error(e.toString()));
+				} finally {
+					exchange.close();
+				}
+			}
+		};
+	}
+
+	//////////////////////////////////////////////////////
+	public static void main(String[] args) throws IOException {
+		// optional: the port, the path of a journal file (- for none), and the shard of the accounts to hold as
+		// index/count (e.g. 1/4), for a worker behind a ShardRouter
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		setServerProperties();
+		if (args.length > 2) {
+			String[] shard = args[2].split("/");
+			SimpleBankingApp.setShard(Integer.parseInt(shard[0]), Integer.parseInt(shard[1]));
+		}
+		if (args.length > 1 && !args[1].equals("-"))
+			SimpleBankingApp.openJournal(args[1], Journal.FsyncPolicy.GROUP_COMMIT, SimpleBankingApp.CHECKPOINT_PERIOD_MILLIS);
+		// optional, with a journal: -Dstandby=host:port to replicate it to a Standby
+		String standby = System.getProperty("standby");
+		if (standby != null) {
+			int colon = standby.lastIndexOf(':');
+			SimpleBankingApp.startReplication(standby.substring(0, colon), Integer.parseInt(standby.substring(colon + 1)));
+		}
+		Metrics.register();
+		SimpleBankingApp.loadUserData();
+		SimpleBankingApp.loadAccountData();
+		final BankingServer server = start(port);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				server.stop(1);
+				try {
+					SimpleBankingApp.closeJournal();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}));
+		System.out.println("Serving the banking API on port " + server.getPort());
+	}
+}
@@ -0,0 +1,250 @@
+package app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import utils.MonotonicClock;
+
+/**
+ * A checkpoint of the ledger: the balance of every account, and how far into the journal each balance goes,
+ * in a compact binary file. On startup the checkpoint is restored and only the part of the journal written
+ * after it is replayed, instead of every transaction ever recorded; the journal before it can be truncated.
+ *
+ * The transactions themselves are not in the checkpoint, which would then grow with every transaction ever
+ * made, but in its HistoryFile (path + ".history"): each checkpoint appends the records journaled since the
+ * previous one to it, and keeps how long it is. After a restore the history is only read when it is first
+ * needed, so a restart costs the accounts and the tail of the journal, whatever the number of transactions.
+ *
+ * Taking a checkpoint does not stop the ledger. The journal position is read first, then the stripes are
+ * copied one at a time, each one locked only while its balances are copied. Transactions keep coming in
+ * meanwhile, so some balances already include transactions journaled after that position: every account
+ * carries the journal position of its last transaction, and replay does not add those to its balance again.
+ *
+ * File layout (big-endian, as written by DataOutputStream):
+ * <pre>
+ *   int   magic "BKCP"
+ *   int   format version
+ *   long  journal position to replay from
+ *   long  time the checkpoint was taken, in milliseconds
+ *   long  number of transactions in the history (those journaled before that position)
+ *   long  length of the history file
+ *   for each stripe:
+ *     int   number of accounts, followed for each account by
+ *     UTF   account number
+ *     long  balance in cents
+ *     long  journal position of the account (the end of its last record)
+ *   int   -1, after the last stripe
+ *   long  CRC32 of everything before it
+ * </pre>
+ * The checkpoint is written to a temporary file which then replaces the previous one, so a crash while a
+ * checkpoint is being written leaves the previous one in place. Checkpoints of earlier versions are refused,
+ * so that the whole journal is replayed instead.
+ */
+public class Checkpoint {
+
+	static final int MAGIC = 0x424B4350; // "BKCP"
+	static final int VERSION = 3;
+	static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 8;
+	static final int END_OF_STRIPES = -1;
+
+	private final long journal_position;
+	private final long created_millis;
+	private final HistoryFile history;
+	private final int accounts;
+
+	private Checkpoint(long journal_position, long created_millis, HistoryFile history, int accounts) {
+		this.journal_position = journal_position;
+		this.created_millis = created_millis;
+		this.history = history;
+		this.accounts = accounts;
+	}
+
+	/**
+	 * Write a checkpoint of the ledger to the given file, replacing the previous checkpoint, after adding the
+	 * transactions journaled since the previous one to the history. Transactions can be appended to the ledger
+	 * while this runs. A ledger without a journal has no history: only its balances are written.
+	 *
+	 * @param ledger
+	 * @param path
+	 * @return what was written
+	 * @throws IOException
+	 */
+	public static Checkpoint write(Ledger ledger, String path) throws IOException {
+		Journal journal = ledger.getJournal();
+		long journal_position = journal == null ? 0 : journal.position();
+		long created_millis = MonotonicClock.currentTimeMillis();
+		Path target = Paths.get(path);
+		Path temporary = Paths.get(path + ".tmp");
+
+		// the history goes on from the previous checkpoint; without one, it starts over from the journal
+		Checkpoint previous = readHeader(path);
+		HistoryFile history = previous == null ? new HistoryFile(historyPath(path), 0, 0) : previous.history;
+		if (journal != null)
+			history = history.append(journal, previous == null ? 0 : previous.journal_position, journal_position);
+
+		int accounts = 0;
+		CRC32 crc = new CRC32();
+		try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new CheckedOutputStream(file, crc), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(journal_position);
+			out.writeLong(created_millis);
+			out.writeLong(history.transactions);
+			out.writeLong(history.length);
+			Ledger.Snapshot snapshot = new Ledger.Snapshot();
+			for (int s = 0; s < ledger.stripeCount(); s++) {
+				int count = ledger.snapshotStripe(s, snapshot);
+				out.writeInt(count);
+				for (int i = 0; i < count; i++) {
+					out.writeUTF(snapshot.account_numbers[i]);
+					out.writeLong(snapshot.balances_cents[i]);
+					out.writeLong(snapshot.journal_positions[i]);
+				}
+				accounts += count;
+			}
+			out.writeInt(END_OF_STRIPES);
+			out.flush();
+			out.writeLong(crc.getValue());
+			out.flush();
+
+			// the balances may include transactions that are not on disk yet: the journal must have them
+			// before the checkpoint can replace the previous one
+			if (journal != null)
+				journal.flush();
+			file.getFD().sync();
+		}
+		Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return new Checkpoint(journal_position, created_millis, history, accounts);
+	}
+
+	// the header of the checkpoint at the given path, or null if there is none that can be read: its history
+	// is then started over
+	private static Checkpoint readHeader(String path) {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(Paths.get(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			long journal_position = in.readLong();
+			long created_millis = in.readLong();
+			long transactions = in.readLong();
+			long length = in.readLong();
+			return new Checkpoint(journal_position, created_millis, new HistoryFile(historyPath(path), length,
+					transactions), 0);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	static String historyPath(String path) {
+		return path + ".history";
+	}
+
+	/**
+	 * Restore the balances of a checkpoint into an empty ledger, and hand it the history of the checkpoint
+	 * (read when first needed, see Ledger.loadHistory). The checksum of the whole file is checked, and the
+	 * history file looked for, before anything is restored, so a damaged checkpoint leaves the ledger
+	 * untouched. The journal must then be replayed into the ledger from getJournal_position() on (see
+	 * Ledger.replay).
+	 *
+	 * @param ledger
+	 * @param path
+	 * @return what was restored
+	 * @throws IOException if the file cannot be read, or is not a valid checkpoint
+	 */
+	public static Checkpoint restore(Ledger ledger, String path) throws IOException {
+		if (ledger.size() != 0)
+			throw new IllegalStateException("a checkpoint can only be restored into an empty ledger");
+
+		Path file = Paths.get(path);
+		checkChecksum(file, path);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("not a checkpoint: " + path);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("unsupported checkpoint version " + version + ": " + path);
+			long journal_position = in.readLong();
+			long created_millis = in.readLong();
+			long transactions = in.readLong();
+			long length = in.readLong();
+			HistoryFile history = new HistoryFile(historyPath(path), length, transactions);
+			history.check();
+			int accounts = 0;
+			Ledger.Snapshot snapshot = new Ledger.Snapshot();
+			for (int count = in.readInt(); count != END_OF_STRIPES; count = in.readInt()) {
+				snapshot.ensureCapacity(count);
+				for (int i = 0; i < count; i++) {
+					snapshot.account_numbers[i] = in.readUTF();
+					snapshot.balances_cents[i] = in.readLong();
+					snapshot.journal_positions[i] = in.readLong();
+				}
+				ledger.restore(snapshot, count);
+				accounts += count;
+			}
+			ledger.restoreHistory(history);
+			return new Checkpoint(journal_position, created_millis, history, accounts);
+		}
+	}
+
+	// reads the whole file once to compare its CRC32 with the one at its end
+	private static void checkChecksum(Path file, String path) throws IOException {
+		long length = Files.size(file);
+		if (length < HEADER_SIZE + 4 + 8)
+			throw new IOException("not a checkpoint (too short): " + path);
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(file)) {
+			for (long remaining = length - 8; remaining > 0;) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (n < 0)
+					throw new EOFException("checkpoint truncated while reading: " + path);
+				crc.update(buffer, 0, n);
+				remaining -= n;
+			}
+			if (new DataInputStream(in).readLong() != crc.getValue())
+				throw new IOException("corrupt checkpoint (bad checksum): " + path);
+		}
+	}
+
+	/**
+	 * @return the position in the journal from which it must be replayed on top of this checkpoint
+	 */
+	public long getJournal_position() {
+		return journal_position;
+	}
+
+	public long getCreated_millis() {
+		return created_millis;
+	}
+
+	/**
+	 * @return the number of transactions in the history of the checkpoint, i.e. journaled before its position
+	 */
+	public long getHistory_transactions() {
+		return history.transactions;
+	}
+
+	/**
+	 * @return the number of accounts in the checkpoint
+	 */
+	public int getAccounts() {
+		return accounts;
+	}
+
+	public String toString() {
+		return "checkpoint of " + accounts + " accounts at journal position " + journal_position;
+	}
+}
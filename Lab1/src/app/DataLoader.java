@@ -0,0 +1,298 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Streams the rows of a (possibly very large) CSV or TSV file, one at a time, without reading the whole file
+ * into memory. The file is read through a FileChannel into one reusable buffer, and each row is handed out as
+ * a reusable Row, whose fields are only turned into Strings (or dates, or amounts) when asked for.
+ *
+ * Fields are separated by the delimiter, one row per line; quoting is not supported. Empty lines and lines
+ * starting with '#' are skipped, as is the first line when the file has a header.
+ *
+ * Nothing is staged: each row is handed out as soon as it is read. A row that the handler cannot parse stops
+ * the file with an IOException giving its line number; the rows before it have been handled (i.e. loaded),
+ * and none after it.
+ */
+public class DataLoader {
+
+	public static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+	public static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
+
+	static final int BUFFER_SIZE = 1 << 20;
+	static final int MAX_FIELDS = 32;
+
+	public interface RowHandler {
+		void handle(Row row);
+	}
+
+	/**
+	 * Told every so many rows how far the loading is.
+	 */
+	public interface Progress {
+		void report(String path, long rows, long elapsed_nanos, boolean done);
+	}
+
+	/**
+	 * Prints the number of rows loaded so far, and how many rows per second that is.
+	 */
+	public static final Progress CONSOLE_PROGRESS = new Progress() {
+		public void report(String path, long rows, long elapsed_nanos, boolean done) {
+			double seconds = elapsed_nanos / 1e9;
+			System.out.println(String.format("%s %s: %,d rows in %.2f s (%,.0f rows/s)", done ? "Loaded" : "Loading",
+					path, rows, seconds, seconds > 0 ? rows / seconds : 0.0));
+		}
+	};
+
+	private final char delimiter;
+	private final boolean has_header;
+	private Progress progress;
+	private long progress_interval = 1000000;
+
+	public DataLoader(char delimiter, boolean has_header) {
+		this.delimiter = delimiter;
+		this.has_header = has_header;
+	}
+
+	/**
+	 * @return a loader for the given file: tab-separated if its name ends with .tsv, comma-separated otherwise
+	 */
+	public static DataLoader forFile(String path, boolean has_header) {
+		return new DataLoader(path.toLowerCase().endsWith(".tsv") ? '\t' : ',', has_header);
+	}
+
+	public DataLoader withProgress(Progress progress, long every_rows) {
+		this.progress = progress;
+		this.progress_interval = every_rows;
+		return this;
+	}
+
+	/**
+	 * Go over every row of the file.
+	 *
+	 * @param path
+	 * @param handler is given each row; the row must not be kept, it is reused for the next one
+	 * @return the number of rows
+	 * @throws IOException if the file cannot be read, or the handler fails on a row (e.g. a field that is not
+	 * a number or a date), which stops the file at that row
+	 */
+	public long forEachRow(String path, RowHandler handler) throws IOException {
+		long start = System.nanoTime();
+		long rows = 0;
+		long line_number = 0;
+		boolean skip_next = has_header;
+		Row row = new Row(delimiter);
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		byte[] bytes = buffer.array();
+
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			boolean eof = false;
+			while (!eof) {
+				buffer.clear();
+				eof = channel.read(buffer) < 0;
+				int limit = buffer.position();
+				int p = 0;
+				while (p < limit) {
+					int new_line = p;
+					while (new_line < limit && bytes[new_line] != '\n')
+						new_line++;
+					row.add(bytes, p, new_line - p);
+					if (new_line == limit)
+						break; // the rest of the line is in the next buffer
+					p = new_line + 1;
+					line_number++;
+					if (row.end()) {
+						if (skip_next) {
+							skip_next = false;
+						} else {
+							handle(handler, row, path, line_number);
+							rows++;
+							if (progress != null && rows % progress_interval == 0)
+								progress.report(path, rows, System.nanoTime() - start, false);
+						}
+					}
+					row.reset();
+				}
+			}
+			// the last line may not end with a new line
+			if (row.end() && !skip_next) {
+				handle(handler, row, path, line_number + 1);
+				rows++;
+			}
+		}
+
+		if (progress != null)
+			progress.report(path, rows, System.nanoTime() - start, true);
+		return rows;
+	}
+
+	private static void handle(RowHandler handler, Row row, String path, long line_number) throws IOException {
+		try {
+			handler.handle(row);
+		} catch (RuntimeException e) {
+			throw new IOException(path + ", line " + line_number + ": " + e.getMessage(), e);
+		}
+	}
+
+
+	/**
+	 * One row of the file. Its bytes are kept as they are in the file; the fields are split on demand.
+	 */
+	public static final class Row {
+		private final char delimiter;
+		private byte[] line = new byte[256];
+		private int length;
+		private final int[] field_starts = new int[MAX_FIELDS + 1];
+		private int fields;
+		private final ZoneId zone = ZoneId.systemDefault();
+		// the last date parsed, since bulk files tend to have the same date on many rows in a row
+		private byte[] last_date = new byte[0];
+		private long last_date_millis;
+
+		Row(char delimiter) {
+			this.delimiter = delimiter;
+		}
+
+		void add(byte[] bytes, int offset, int count) {
+			if (length + count > line.length) {
+				byte[] grown = new byte[Math.max(line.length * 2, length + count)];
+				System.arraycopy(line, 0, grown, 0, length);
+				line = grown;
+			}
+			System.arraycopy(bytes, offset, line, length, count);
+			length += count;
+		}
+
+		// finish the line: drop a trailing \r and split it into fields. Returns false if the line is to be skipped.
+		boolean end() {
+			if (length > 0 && line[length - 1] == '\r')
+				length--;
+			if (length == 0 || line[0] == '#')
+				return false;
+			fields = 0;
+			field_starts[fields++] = 0;
+			for (int i = 0; i < length && fields < MAX_FIELDS; i++) {
+				if (line[i] == delimiter)
+					field_starts[fields++] = i + 1;
+			}
+			field_starts[fields] = length + 1;
+			return true;
+		}
+
+		void reset() {
+			length = 0;
+		}
+
+		public int fieldCount() {
+			return fields;
+		}
+
+		public String field(int i) {
+			checkField(i);
+			int start = field_starts[i];
+			return new String(line, start, field_starts[i + 1] - 1 - start, StandardCharsets.UTF_8).trim();
+		}
+
+		/**
+		 * Parse a field holding an amount of money in dollars (e.g. -50.21) straight into cents, without going
+		 * through a double.
+		 *
+		 * @throws NumberFormatException also if the amount in cents does not fit in a long
+		 */
+		public long cents(int i) {
+			checkField(i);
+			int p = field_starts[i];
+			int end = field_starts[i + 1] - 1;
+			while (p < end && line[p] == ' ')
+				p++;
+			while (end > p && line[end - 1] == ' ')
+				end--;
+			boolean negative = false;
+			if (p < end && (line[p] == '-' || line[p] == '+'))
+				negative = line[p++] == '-';
+			long units = 0;
+			long cents = 0;
+			int decimals = -1;
+			boolean digits = false;
+			try {
+				for (; p < end; p++) {
+					byte b = line[p];
+					if (b == '.' && decimals < 0) {
+						decimals = 0;
+					} else if (b >= '0' && b <= '9') {
+						digits = true;
+						if (decimals < 0) {
+							units = Math.addExact(Math.multiplyExact(units, 10), b - '0');
+							} else if (decimals < 2) {
+							cents = cents * 10 + (b - '0');
+							decimals++;
+						} else {
+							throw new NumberFormatException("more than 2 decimals in amount: " + field(i));
+						}
+					} else {
+						throw new NumberFormatException("not an amount: " + field(i));
+					}
+				}
+				if (!digits)
+					throw new NumberFormatException("not an amount: " + field(i));
+				if (decimals == 1)
+					cents *= 10;
+				long total = Math.addExact(Math.multiplyExact(units, 100), cents);
+				return negative ? -total : total;
+			} catch (ArithmeticException e) {
+				throw new NumberFormatException("amount out of range: " + field(i));
+			}
+		}
+
+		/**
+		 * Parse a field holding a date, in the dd/MM/yyyy format, as the start of that day in the local time zone.
+		 */
+		public Date date(int i) {
+			checkField(i);
+			int start = field_starts[i];
+			int end = field_starts[i + 1] - 1;
+			if (end - start != last_date.length || !sameBytes(start, last_date)) {
+				LocalDate date = LocalDate.parse(field(i), DATE_FORMAT);
+				last_date_millis = date.atStartOfDay(zone).toInstant().toEpochMilli();
+				last_date = Arrays.copyOfRange(line, start, end);
+			}
+			return new Date(last_date_millis);
+		}
+
+		/**
+		 * Parse a field holding a date and time, in the dd/MM/yyyy HH:mm:ss format, in the local time zone.
+		 */
+		public long timestampMillis(int i) {
+			LocalDateTime date_time = LocalDateTime.parse(field(i), DATE_TIME_FORMAT);
+			return date_time.atZone(zone).toInstant().toEpochMilli();
+		}
+
+		public String toString() {
+			return new String(line, 0, length, StandardCharsets.UTF_8);
+		}
+
+		private boolean sameBytes(int start, byte[] bytes) {
+			for (int k = 0; k < bytes.length; k++) {
+				if (line[start + k] != bytes[k])
+					return false;
+			}
+			return true;
+		}
+
+		private void checkField(int i) {
+			if (i < 0 || i >= fields)
+				throw new IllegalArgumentException("row has no field " + i + ": " + toString());
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package app;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+
+import model.AccountKey;
+
+/**
+ * The transactions covered by a Checkpoint, in an append-only file next to it, so that the checkpoint itself
+ * only holds balances and the journal can be truncated up to it. Each checkpoint appends the records journaled
+ * since the previous one, as one block, instead of writing every transaction again:
+ * <pre>
+ *   int   magic "BKHS", int format version (once, at the start of the file)
+ *   for each block:
+ *     int   number of transactions, followed for each transaction by
+ *     long  AccountKey of its account
+ *     long  amount in cents
+ *     long  timestamp in milliseconds
+ *     long  CRC32 of the transactions of the block
+ * </pre>
+ * The transactions are in the order of the journal, so the n-th one is given the sequence number n, as it would
+ * be by a replay of the whole journal. The checkpoint keeps the length of the file it goes with: whatever comes
+ * after it (the block of a checkpoint that never replaced the previous one) is ignored, and overwritten by the
+ * next checkpoint.
+ *
+ * After a restart the file is only read once something needs the history (see Ledger.loadHistory).
+ */
+final class HistoryFile {
+
+	static final int MAGIC = 0x424B4853; // "BKHS"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 4 + 4;
+	static final int ROW_BYTES = 8 + 8 + 8;
+	static final int ROWS_PER_BLOCK = 64 * 1024;
+
+	final String path;
+	// the bytes of the file that hold the transactions, and how many transactions that is
+	final long length;
+	final long transactions;
+
+	HistoryFile(String path, long length, long transactions) {
+		this.path = path;
+		this.length = length;
+		this.transactions = transactions;
+	}
+
+	/**
+	 * Append the records of the journal in [from_position, to_position) to this history, and force them to
+	 * disk. The file is cut to this history's length first.
+	 *
+	 * @return the history with those records
+	 * @throws IOException also if the journal no longer has those records (see Journal.truncate)
+	 */
+	HistoryFile append(Journal journal, long from_position, long to_position) throws IOException {
+		long appended = 0;
+		try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+			FileChannel channel = file.getChannel();
+			final ByteBuffer block = ByteBuffer.allocate(4 + ROWS_PER_BLOCK * ROW_BYTES + 8);
+			file.setLength(length);
+			if (length == 0) {
+				block.putInt(MAGIC).putInt(VERSION).flip();
+				write(channel, block, 0);
+			}
+			long end = Math.max(length, HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			Journal.Handler collect = new Journal.Handler() {
+				public void apply(String account_number, long amount_cents, long timestamp_millis, long position) {
+					block.putLong(AccountKey.of(account_number));
+					block.putLong(amount_cents);
+					block.putLong(timestamp_millis);
+				}
+
+				public void transfer(String from_account, String to_account, long amount_cents, long timestamp_millis,
+						long position) {
+					apply(from_account, -amount_cents, timestamp_millis, position);
+					apply(to_account, amount_cents, timestamp_millis, position);
+				}
+			};
+			for (long position = from_position; position < to_position;) {
+				block.clear();
+				block.position(4);
+				// a transfer is one record of the journal but two transactions
+				position = journal.read(position, to_position, ROWS_PER_BLOCK / 2, collect);
+				int rows = (block.position() - 4) / ROW_BYTES;
+				block.putInt(0, rows);
+				crc.reset();
+				crc.update(block.array(), 4, rows * ROW_BYTES);
+				block.putLong(crc.getValue());
+				block.flip();
+				end += write(channel, block, end);
+				appended += rows;
+			}
+			channel.force(true);
+			return new HistoryFile(path, end, transactions + appended);
+		}
+	}
+
+	private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int written = 0;
+		while (buffer.hasRemaining())
+			written += channel.write(buffer, position + written);
+		return written;
+	}
+
+	/**
+	 * @throws IOException if the file is shorter than this history
+	 */
+	void check() throws IOException {
+		if (length > 0 && (!Files.exists(Paths.get(path)) || Files.size(Paths.get(path)) < length))
+			throw new IOException("the history of the checkpoint is missing or too short: " + path);
+	}
+
+	/**
+	 * Read the transactions of this history into the ledger, a block at a time (see Ledger.addHistory).
+	 *
+	 * @throws IOException if the file is not what the checkpoint says it is
+	 */
+	void load(Ledger ledger) throws IOException {
+		if (length == 0)
+			return;
+		long[] keys = new long[ROWS_PER_BLOCK];
+		long[] amounts_cents = new long[ROWS_PER_BLOCK];
+		long[] timestamps_millis = new long[ROWS_PER_BLOCK];
+		byte[] block = new byte[ROWS_PER_BLOCK * ROW_BYTES];
+		ByteBuffer buffer = ByteBuffer.wrap(block);
+		CRC32 crc = new CRC32();
+		long loaded = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path)), 64 * 1024))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("not a history file: " + path);
+			for (long position = HEADER_SIZE; position < length;) {
+				int rows = in.readInt();
+				if (rows < 0 || rows > ROWS_PER_BLOCK)
+					throw new IOException("corrupt history (a block of " + rows + " transactions): " + path);
+				in.readFully(block, 0, rows * ROW_BYTES);
+				crc.reset();
+				crc.update(block, 0, rows * ROW_BYTES);
+				if (in.readLong() != crc.getValue())
+					throw new IOException("corrupt history (bad checksum): " + path);
+				buffer.clear();
+				for (int i = 0; i < rows; i++) {
+					keys[i] = buffer.getLong();
+					amounts_cents[i] = buffer.getLong();
+					timestamps_millis[i] = buffer.getLong();
+				}
+				ledger.addHistory(keys, amounts_cents, timestamps_millis, rows, loaded + 1);
+				loaded += rows;
+				position += 4 + rows * ROW_BYTES + 8;
+			}
+		}
+		if (loaded != transactions)
+			throw new IOException("the history has " + loaded + " transactions instead of " + transactions + ": " + path);
+	}
+}
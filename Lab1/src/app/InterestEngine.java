@@ -0,0 +1,293 @@
+package app;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import model.Account;
+import model.DailyRollups;
+import model.TransactionStore;
+
+/**
+ * The nightly interest run: credits every account of a type (e.g. "Saving") with the interest of one day on
+ * its balance at the end of that day, at a yearly rate:
+ * <pre>
+ *   interest = closing balance * rate in basis points / 10000 / 365, rounded to the cent (half even)
+ * </pre>
+ * Accounts whose balance is not positive, or whose interest rounds to 0, get nothing. The closing balance comes
+ * from the daily rollups of the ledger, so it is the same whenever the run happens (the history of a checkpoint
+ * keeps the transactions, and so the rollups, across restarts), and the interest is posted at midnight (UTC)
+ * after the day.
+ *
+ * The selected accounts are sorted by number and cut into chunks of CHUNK_SIZE, which are computed in parallel
+ * on a fork/join pool; each chunk is posted with one Ledger.appendBatch (one lock and one journal force per
+ * stripe, instead of one per account).
+ *
+ * A run can be stopped at any point and started again: the chunks that were posted are listed in a progress
+ * file, which is appended to (and forced to disk) as each chunk is done, and are skipped on restart. As a
+ * chunk may have been posted without making it to the progress file, every account is also checked for an
+ * interest transaction of the same amount at the same time before it is credited, so that running the same
+ * day twice credits nobody twice.
+ */
+public class InterestEngine {
+
+	public static final String SAVING = "Saving";
+	static final int CHUNK_SIZE = 4096;
+	static final long BASIS_POINTS_DAYS = 10000L * 365;
+
+	private final Ledger ledger;
+	private final int annual_rate_basis_points;
+
+	/**
+	 * @param annual_rate_basis_points the yearly interest rate, in hundredths of a percent (e.g. 150 for 1.5%)
+	 */
+	public InterestEngine(Ledger ledger, int annual_rate_basis_points) {
+		if (annual_rate_basis_points < 0)
+			throw new IllegalArgumentException("negative rate: " + annual_rate_basis_points);
+		this.ledger = ledger;
+		this.annual_rate_basis_points = annual_rate_basis_points;
+	}
+
+	/**
+	 * @return the interest of one day on the balance, rounded half even to the cent (0 for a balance that is
+	 * not positive)
+	 */
+	public long interestCents(long balance_cents) {
+		if (balance_cents <= 0)
+			return 0;
+		long numerator = Math.multiplyExact(balance_cents, (long) annual_rate_basis_points);
+		long interest = numerator / BASIS_POINTS_DAYS;
+		long twice_remainder = 2 * (numerator % BASIS_POINTS_DAYS);
+		if (twice_remainder > BASIS_POINTS_DAYS || (twice_remainder == BASIS_POINTS_DAYS && (interest & 1) != 0))
+			interest++;
+		return interest;
+	}
+
+	/**
+	 * What a run did.
+	 */
+	public static final class Result {
+		private final int accounts;
+		private final long credited;
+		private final long interest_cents;
+		private final int chunks_skipped;
+		private final long elapsed_nanos;
+
+		Result(int accounts, long credited, long interest_cents, int chunks_skipped, long elapsed_nanos) {
+			this.accounts = accounts;
+			this.credited = credited;
+			this.interest_cents = interest_cents;
+			this.chunks_skipped = chunks_skipped;
+			this.elapsed_nanos = elapsed_nanos;
+		}
+
+		/**
+		 * @return the number of accounts of the type
+		 */
+		public int getAccounts() {
+			return accounts;
+		}
+
+		/**
+		 * @return the number of accounts credited by this run (not counting those credited before a restart)
+		 */
+		public long getCredited() {
+			return credited;
+		}
+
+		public long getInterest_cents() {
+			return interest_cents;
+		}
+
+		/**
+		 * @return the number of chunks skipped because the progress file has them as done
+		 */
+		public int getChunks_skipped() {
+			return chunks_skipped;
+		}
+
+		public long getElapsed_nanos() {
+			return elapsed_nanos;
+		}
+
+		public double getAccountsPerSecond() {
+			return elapsed_nanos == 0 ? 0 : accounts * 1e9 / elapsed_nanos;
+		}
+
+		public String toString() {
+			return String.format("%,d accounts (%,d credited with %.2f, %d chunks already done) in %.0f ms: %,.0f accounts/s",
+					accounts, credited, interest_cents / 100.0, chunks_skipped, elapsed_nanos / 1e6,
+					getAccountsPerSecond());
+		}
+	}
+
+	/**
+	 * Run the interest of one day.
+	 *
+	 * @param accounts the accounts to choose from, e.g. SimpleBankingApp.accounts
+	 * @param account_type the type of the accounts to credit (case is ignored)
+	 * @param day the UTC day whose interest is credited (see DailyRollups.dayOf)
+	 * @param progress_path the progress file of the run, or null to go without (restarting then relies on the
+	 * check of each account alone)
+	 * @param pool where the chunks are computed
+	 */
+	public Result run(List<Account> accounts, String account_type, int day, String progress_path, ForkJoinPool pool)
+			throws IOException {
+		long start = System.nanoTime();
+		List<String> selected = new ArrayList<String>();
+		synchronized (accounts) {
+			for (Account account : accounts) {
+				if (account_type.equalsIgnoreCase(account.getAccount_type()))
+					selected.add(account.getAccount_number());
+			}
+		}
+		final String[] numbers = selected.toArray(new String[0]);
+		Arrays.sort(numbers);
+		final int chunks = (numbers.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+		String header = "interest " + day + " " + annual_rate_basis_points + " " + account_type.toLowerCase();
+		final Progress progress = progress_path == null ? null : Progress.open(progress_path, header);
+		final long timestamp_millis = (day + 1L) * DailyRollups.MILLIS_PER_DAY;
+		final int day_of_balance = day;
+		final LongAdder credited = new LongAdder();
+		final LongAdder interest = new LongAdder();
+		final LongAdder skipped = new LongAdder();
+		try {
+			pool.invoke(new RecursiveAction() {
+				protected void compute() {
+					List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(chunks);
+					for (int c = 0; c < chunks; c++) {
+						final int chunk = c;
+						tasks.add(new RecursiveAction() {
+							protected void compute() {
+								int from = chunk * CHUNK_SIZE;
+								int to = Math.min(numbers.length, from + CHUNK_SIZE);
+								String line = chunk + " " + (to - from) + " " + numbers[from] + " " + numbers[to - 1];
+								if (progress != null && progress.isDone(line)) {
+									skipped.increment();
+									return;
+								}
+								postChunk(numbers, from, to, day_of_balance, timestamp_millis, credited, interest);
+								if (progress != null)
+									progress.done(line);
+							}
+						});
+					}
+					invokeAll(tasks);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			if (progress != null)
+				progress.close();
+		}
+		return new Result(numbers.length, credited.sum(), interest.sum(), skipped.intValue(), System.nanoTime() - start);
+	}
+
+	// computes and posts the interest of numbers[from .. to)
+	void postChunk(String[] numbers, int from, int to, int day, long timestamp_millis, LongAdder credited,
+			LongAdder interest) {
+		String[] account_numbers = new String[to - from];
+		long[] amounts_cents = new long[to - from];
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			long amount_cents = interestCents(ledger.getClosingBalanceCents(numbers[i], day));
+			if (amount_cents == 0 || alreadyPosted(numbers[i], amount_cents, timestamp_millis))
+				continue;
+			account_numbers[count] = numbers[i];
+			amounts_cents[count] = amount_cents;
+			count++;
+			interest.add(amount_cents);
+		}
+		ledger.appendBatch(account_numbers, amounts_cents, count, timestamp_millis);
+		credited.add(count);
+	}
+
+	// whether the account already has this interest, posted by an earlier (interrupted) run of the same day
+	private boolean alreadyPosted(String account_number, final long amount_cents, long timestamp_millis) {
+		final boolean[] found = new boolean[1];
+		ledger.transactions(account_number, timestamp_millis, timestamp_millis + 1, new Consumer<TransactionStore.View>() {
+			public void accept(TransactionStore.View view) {
+				found[0] |= view.getTransaction_amount_cents() == amount_cents;
+			}
+		});
+		return found[0];
+	}
+
+	// the progress file: a header naming the run, then one line per chunk done (its index, size, and first and
+	// last account). A file for another run is started over.
+	static final class Progress {
+		private final FileChannel channel;
+		private final Set<String> done;
+
+		private Progress(FileChannel channel, Set<String> done) {
+			this.channel = channel;
+			this.done = done;
+		}
+
+		static Progress open(String path, String header) throws IOException {
+			Set<String> done = new HashSet<String>();
+			boolean same_run = false;
+			File file = new File(path);
+			if (file.exists()) {
+				try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+						StandardCharsets.UTF_8))) {
+					same_run = header.equals(in.readLine());
+					for (String line; same_run && (line = in.readLine()) != null;)
+						done.add(line);
+				}
+			}
+			FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			Progress progress = new Progress(channel, done);
+			if (same_run) {
+				channel.position(channel.size());
+			} else {
+				channel.truncate(0);
+				progress.append(header);
+			}
+			return progress;
+		}
+
+		boolean isDone(String chunk) {
+			return done.contains(chunk);
+		}
+
+		// called from the pool's threads
+		synchronized void done(String chunk) {
+			try {
+				append(chunk);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void append(String line) throws IOException {
+			ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+			channel.force(false);
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+}
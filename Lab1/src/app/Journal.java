@@ -0,0 +1,609 @@
+package app;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only write-ahead journal of transactions, kept in a memory-mapped file so that an append is only
+ * a few memory writes. On startup the journal is replayed to rebuild the ledger.
+ *
+ * The file is mapped in regions of a fixed size, and grows by one region at a time. Each record is laid out as:
+ * <pre>
+ *   int   length of the record in bytes (written last, so a half-written record reads as length 0)
+ *   int   checksum of the rest of the record
+ *   long  timestamp in milliseconds
+ *   long  amount in cents
+ *   short length of the account number, followed by its UTF-8 bytes
+ * </pre>
+ * except for a transfer, which is a single record with both of its accounts under the one checksum, so that a
+ * replay finds the whole transfer or nothing of it:
+ * <pre>
+ *   int   length, int checksum, long timestamp, long amount in cents (moved from the first account to the second)
+ *   short -1, then for each of the two accounts:
+ *   short length of the account number, followed by its UTF-8 bytes
+ * </pre>
+ * A record never spans two regions: when it does not fit in what is left of a region, a padding marker
+ * (length -1) is written and the record goes at the start of the next region.
+ *
+ * When the data is forced to disk depends on the FsyncPolicy. The position of a record in the file is used as
+ * its position in the ledger (it only ever grows).
+ *
+ * Once a checkpoint covers the start of the journal, truncate() drops the regions before it. The file then
+ * starts with a header (the int -2, then the position of its first region as a long, in a 16 byte header) and
+ * the positions of the records it still has do not change.
+ */
+public class Journal implements Closeable {
+
+	public enum FsyncPolicy {
+		/** force the journal to disk after every single record */
+		EVERY_WRITE,
+		/** writers wait until their record is on disk, but one force covers every record written before it */
+		GROUP_COMMIT,
+		/** a background thread forces the journal every few milliseconds; writers do not wait */
+		PERIODIC
+	}
+
+	/**
+	 * Receives the records of the journal when it is replayed.
+	 */
+	public interface Handler {
+		void apply(String account_number, long amount_cents, long timestamp_millis, long position);
+
+		/**
+		 * A transfer (see writeTransfer), whose two transactions must be applied together.
+		 *
+		 * @param amount_cents the (positive) amount debited from from_account and credited to to_account
+		 */
+		void transfer(String from_account, String to_account, long amount_cents, long timestamp_millis, long position);
+	}
+
+	public static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_PERIOD_MILLIS = 10;
+
+	static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 2;
+	static final int PADDING = -1;
+	static final int TRANSFER = -1; // in place of the length of the account number
+	static final int TRUNCATED = -2;
+	static final int TRUNCATED_HEADER_SIZE = 16;
+
+	private final String path;
+	// replaced by truncate(), under both force_lock and the lock of this journal
+	private RandomAccessFile file;
+	private FileChannel channel;
+	// the position of the first region in the file, and where it starts in the file
+	private long first_position;
+	private int file_header;
+	private final int region_size;
+	private final FsyncPolicy policy;
+	private final ArrayList<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+	private ScheduledExecutorService flusher;
+
+	// guarded by this: everything before written_position has been written to the mapped file
+	private long written_position;
+	// guarded by this: whether a reader waits in awaitDurablePosition() to be woken by the next force
+	private boolean position_waiters;
+	// everything before durable_position has been forced to disk; only updated while holding force_lock
+	private volatile long durable_position;
+	private final Object force_lock = new Object();
+
+	public Journal(String path, FsyncPolicy policy) throws IOException {
+		this(path, policy, DEFAULT_REGION_SIZE, DEFAULT_PERIOD_MILLIS);
+	}
+
+	public Journal(String path, FsyncPolicy policy, int region_size, long period_millis) throws IOException {
+		if (region_size < 64)
+			throw new IllegalArgumentException("region_size is too small: " + region_size);
+		this.path = path;
+		this.file = new RandomAccessFile(path, "rw");
+		this.channel = file.getChannel();
+		this.region_size = region_size;
+		this.policy = policy;
+		if (channel.size() >= TRUNCATED_HEADER_SIZE) {
+			ByteBuffer header = ByteBuffer.allocate(TRUNCATED_HEADER_SIZE);
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0)
+				;
+			if (header.getInt(0) == TRUNCATED) {
+				first_position = header.getLong(8);
+				file_header = TRUNCATED_HEADER_SIZE;
+				if (first_position < 0 || first_position % region_size != 0)
+					throw new IOException("bad journal header (starts at " + first_position + "): " + path);
+			}
+		}
+		written_position = first_position;
+		durable_position = first_position;
+
+		if (policy == FsyncPolicy.PERIODIC) {
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "journal-flusher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, period_millis, period_millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Read every complete record of the journal, from the start, and give it to the handler. Reading stops at
+	 * the first record that is missing, half-written or corrupt (e.g. after a crash); anything after it is
+	 * wiped, and new records are appended from there.
+	 *
+	 * @return the number of records replayed
+	 */
+	public synchronized long replay(Handler handler) throws IOException {
+		return replay(0, handler);
+	}
+
+	/**
+	 * Same as replay(handler), but starting at the given position instead of the start of the journal, e.g.
+	 * the position saved in a checkpoint. The records before it are not even read.
+	 *
+	 * @param from_position the position of a record, as returned by position() or write()
+	 * @return the number of records replayed (from that position on)
+	 * @throws IOException also if the journal was truncated after that position
+	 */
+	public synchronized long replay(long from_position, Handler handler) throws IOException {
+		long records = 0;
+		long position = from_position;
+		long file_size = end();
+		if (from_position < first_position)
+			throw new IOException("the journal starts at position " + first_position
+					+ " (the records before it were truncated after a checkpoint), not " + from_position);
+		if (from_position > file_size)
+			throw new IOException("the journal has no position " + from_position + " (its size is " + file_size + ")");
+		while (position < file_size) {
+			MappedByteBuffer region = region(position);
+			int offset = (int) (position % region_size);
+			if (region_size - offset < HEADER_SIZE) {
+				position += region_size - offset;
+				continue;
+			}
+			int length = region.getInt(offset);
+			if (length == PADDING) {
+				position += region_size - offset;
+				continue;
+			}
+			if (length < HEADER_SIZE || length > region_size - offset || !deliver(region, offset, length, position, handler))
+				break;
+			records++;
+			position += length;
+		}
+
+		// wipe whatever follows the last good record, so that it cannot be mistaken for a record later on
+		if (position < file_size) {
+			wipe(region(position), (int) (position % region_size));
+			long end_of_region = (position / region_size + 1) * region_size;
+			if (end_of_region < file_size)
+				channel.truncate(fileOffset(end_of_region));
+		}
+		written_position = position;
+		durable_position = position;
+		return records;
+	}
+
+	/**
+	 * Read the records between two positions, without changing anything, e.g. to ship them elsewhere while
+	 * new records keep being written. Unlike replay(), a bad record is an error, as everything before
+	 * position() was written whole.
+	 *
+	 * @param from_position the position of a record, or the end of the last one read
+	 * @param to_position at most position()
+	 * @param max_records the most records to read
+	 * @return the position of the next record to read, i.e. to_position once everything has been read
+	 * @throws IOException if there is no valid record where one should be
+	 */
+	public long read(long from_position, long to_position, int max_records, Handler handler) throws IOException {
+		long position = from_position;
+		for (int records = 0; records < max_records && position < to_position;) {
+			MappedByteBuffer region;
+			synchronized (this) {
+				if (to_position > written_position)
+					throw new IOException("the journal has not been written up to " + to_position);
+				region = region(position);
+			}
+			int offset = (int) (position % region_size);
+			int length = region_size - offset < HEADER_SIZE ? PADDING : region.getInt(offset);
+			if (length == PADDING) {
+				position += region_size - offset;
+				continue;
+			}
+			if (length < HEADER_SIZE || length > region_size - offset || !deliver(region, offset, length, position, handler))
+				throw new IOException("no valid record at position " + position + " of the journal");
+			records++;
+			position += length;
+		}
+		return position;
+	}
+
+	// gives the record of the given length at the offset to the handler, unless it is not valid (returns false)
+	private static boolean deliver(MappedByteBuffer region, int offset, int length, long position, Handler handler) {
+		long timestamp_millis = region.getLong(offset + 8);
+		long amount_cents = region.getLong(offset + 16);
+		int account_length = region.getShort(offset + 24);
+		if (account_length != TRANSFER) {
+			byte[] account = account(region, offset + HEADER_SIZE, account_length, offset + length);
+			if (account == null || HEADER_SIZE + account_length != length
+					|| region.getInt(offset + 4) != checksum(timestamp_millis, amount_cents, account))
+				return false;
+			handler.apply(new String(account, StandardCharsets.UTF_8), amount_cents, timestamp_millis, position);
+			return true;
+		}
+		if (length < HEADER_SIZE + 2)
+			return false;
+		int from_length = region.getShort(offset + HEADER_SIZE);
+		byte[] from = account(region, offset + HEADER_SIZE + 2, from_length, offset + length - 2);
+		if (from == null)
+			return false;
+		int to_length = region.getShort(offset + HEADER_SIZE + 2 + from_length);
+		byte[] to = account(region, offset + HEADER_SIZE + 4 + from_length, to_length, offset + length);
+		if (to == null || HEADER_SIZE + 4 + from_length + to_length != length
+				|| region.getInt(offset + 4) != checksum(timestamp_millis, amount_cents, from, to))
+			return false;
+		handler.transfer(new String(from, StandardCharsets.UTF_8), new String(to, StandardCharsets.UTF_8),
+				amount_cents, timestamp_millis, position);
+		return true;
+	}
+
+	// the bytes of an account number of the given length at the offset, or null if they do not end by limit
+	private static byte[] account(MappedByteBuffer region, int offset, int account_length, int limit) {
+		if (account_length < 0 || offset + account_length > limit)
+			return null;
+		byte[] account = new byte[account_length];
+		for (int i = 0; i < account_length; i++)
+			account[i] = region.get(offset + i);
+		return account;
+	}
+
+	/**
+	 * Drop the records before the given position from the file, e.g. once a checkpoint covers them, so that
+	 * the journal does not grow with every transaction ever made. Whole regions are dropped: the rest of the
+	 * file, from the region of the position on, is copied to a new file that then replaces this one. The
+	 * positions of the records do not change. Records can be written meanwhile; writers only wait for the
+	 * copy of what was written while the rest was being copied.
+	 *
+	 * @param position at most position(); nothing is dropped at or after it
+	 * @return the position the journal starts at now
+	 */
+	public long truncate(long position) throws IOException {
+		long keep_from = position / region_size * region_size;
+		long copied;
+		synchronized (this) {
+			if (position > written_position)
+				throw new IllegalArgumentException("the journal has not been written up to " + position);
+			if (keep_from <= first_position)
+				return first_position;
+			copied = written_position;
+		}
+		Path target = Paths.get(path);
+		Path temporary = Paths.get(path + ".tmp");
+		try (FileChannel copy = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(TRUNCATED_HEADER_SIZE);
+			header.putInt(TRUNCATED).putInt(0).putLong(keep_from).flip();
+			while (header.hasRemaining())
+				copy.write(header);
+			// what has been written does not change any more: it is copied without holding up the writers
+			copy(copy, keep_from, copied);
+			synchronized (force_lock) {
+				synchronized (this) {
+					copy(copy, copied, written_position);
+					copy.force(true);
+					Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					// readers that hold a region of the old file can go on reading it: it is still mapped
+					channel.close();
+					file.close();
+					file = new RandomAccessFile(path, "rw");
+					channel = file.getChannel();
+					first_position = keep_from;
+					file_header = TRUNCATED_HEADER_SIZE;
+					regions.clear();
+					durable_position = written_position;
+					return first_position;
+				}
+			}
+		}
+	}
+
+	// appends [from, to) of the journal to the copy
+	private void copy(FileChannel copy, long from, long to) throws IOException {
+		for (long at = from; at < to;)
+			at += channel.transferTo(fileOffset(at), to - at, copy);
+	}
+
+	/**
+	 * Wait until the journal is on disk past the given position, e.g. for a reader that follows the journal
+	 * but must never get ahead of what a power loss would leave of it. This does not force anything itself:
+	 * the writers or the periodic flusher do, as their fsync policy says.
+	 *
+	 * @return durablePosition(), which is still the given position if the timeout ran out first
+	 */
+	public synchronized long awaitDurablePosition(long position, long timeout_millis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_millis);
+		while (durable_position <= position) {
+			long remaining_millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining_millis <= 0)
+				break;
+			position_waiters = true;
+			wait(remaining_millis);
+		}
+		return durable_position;
+	}
+
+	// must hold the lock of this journal, after moving durable_position
+	private void wakePositionWaiters() {
+		if (position_waiters) {
+			position_waiters = false;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Append a record to the journal. The record is in the mapped file (and so survives a crash of the
+	 * process) when this returns, but not necessarily on disk: see awaitDurable().
+	 *
+	 * @return the end position of the record, to be given to awaitDurable()
+	 */
+	public long write(String account_number, long amount_cents, long timestamp_millis) throws IOException {
+		byte[] account = account_number.getBytes(StandardCharsets.UTF_8);
+		int length = HEADER_SIZE + account.length;
+		if (length > region_size)
+			throw new IllegalArgumentException("account number is too long for the journal: " + account_number);
+		return append(length, checksum(timestamp_millis, amount_cents, account), timestamp_millis, amount_cents,
+				account, null);
+	}
+
+	/**
+	 * Append a transfer, as one record with both of its accounts, so that a replay finds either the whole
+	 * transfer or nothing of it, also after a power loss.
+	 *
+	 * @param amount_cents the (positive) amount moved from from_account to to_account
+	 * @return the end position of the record, to be given to awaitDurable(); it is transferLength() after
+	 * the position of the record
+	 */
+	public long writeTransfer(String from_account, String to_account, long amount_cents, long timestamp_millis)
+			throws IOException {
+		byte[] from = from_account.getBytes(StandardCharsets.UTF_8);
+		byte[] to = to_account.getBytes(StandardCharsets.UTF_8);
+		int length = HEADER_SIZE + 2 + from.length + 2 + to.length;
+		if (length > region_size)
+			throw new IllegalArgumentException("account numbers are too long for the journal: " + from_account
+					+ ", " + to_account);
+		return append(length, checksum(timestamp_millis, amount_cents, from, to), timestamp_millis, amount_cents,
+				from, to);
+	}
+
+	// appends a record of one account, or of the two accounts of a transfer if to is not null
+	private synchronized long append(int length, int checksum, long timestamp_millis, long amount_cents,
+			byte[] account, byte[] to) throws IOException {
+		long position = written_position;
+		int offset = (int) (position % region_size);
+		if (region_size - offset < length) {
+			// does not fit in this region: mark the rest of it as padding and go to the next one
+			if (region_size - offset >= 4)
+				region(position).putInt(offset, PADDING);
+			position += region_size - offset;
+			offset = 0;
+		}
+
+		MappedByteBuffer region = region(position);
+		region.putInt(offset + 4, checksum);
+		region.putLong(offset + 8, timestamp_millis);
+		region.putLong(offset + 16, amount_cents);
+		if (to == null) {
+			putAccount(region, offset + 24, account);
+		} else {
+			region.putShort(offset + 24, (short) TRANSFER);
+			putAccount(region, offset + HEADER_SIZE, account);
+			putAccount(region, offset + HEADER_SIZE + 2 + account.length, to);
+		}
+		// the length goes last, once the rest of the record is there
+		region.putInt(offset, length);
+
+		written_position = position + length;
+		return written_position;
+	}
+
+	private static void putAccount(MappedByteBuffer region, int offset, byte[] account) {
+		region.putShort(offset, (short) account.length);
+		for (int i = 0; i < account.length; i++)
+			region.put(offset + 2 + i, account[i]);
+	}
+
+	/**
+	 * Wait, as required by the fsync policy, until the journal is on disk up to the given position.
+	 * With EVERY_WRITE the journal is forced right away; with GROUP_COMMIT the caller may find that another
+	 * writer's force already covered its record (or will, while it waits for the force lock); with PERIODIC
+	 * this does not wait at all.
+	 *
+	 * @param end_position as returned by write()
+	 */
+	public void awaitDurable(long end_position) {
+		switch (policy) {
+		case EVERY_WRITE:
+			synchronized (force_lock) {
+				force();
+			}
+			break;
+		case GROUP_COMMIT:
+			if (durable_position >= end_position)
+				return;
+			synchronized (force_lock) {
+				if (durable_position < end_position)
+					force();
+			}
+			break;
+		case PERIODIC:
+			break;
+		}
+	}
+
+	/**
+	 * Force everything written so far to disk.
+	 */
+	public void flush() {
+		synchronized (force_lock) {
+			force();
+		}
+	}
+
+	// must hold force_lock. The lock of the journal is only held to find the regions to force, so writers
+	// can go on appending while the disk catches up.
+	private void force() {
+		long target;
+		MappedByteBuffer[] dirty;
+		synchronized (this) {
+			target = written_position;
+			if (target <= durable_position)
+				return;
+			int first_region = (int) (first_position / region_size);
+			int first = (int) (durable_position / region_size);
+			int last = (int) ((target - 1) / region_size);
+			dirty = new MappedByteBuffer[last - first + 1];
+			for (int i = first; i <= last; i++)
+				dirty[i - first] = regions.get(i - first_region);
+		}
+		for (MappedByteBuffer region : dirty)
+			region.force();
+		synchronized (this) {
+			durable_position = target;
+			wakePositionWaiters();
+		}
+	}
+
+	/**
+	 * @return the position up to which the journal is on disk, i.e. survives a power loss (at most position())
+	 */
+	public long durablePosition() {
+		return durable_position;
+	}
+
+	/**
+	 * @return the position of the first record the journal still has (0 unless it was truncated)
+	 */
+	public synchronized long firstPosition() {
+		return first_position;
+	}
+
+	/**
+	 * @return the position right after the last record written, i.e. the current position of the ledger
+	 */
+	public synchronized long position() {
+		return written_position;
+	}
+
+	/**
+	 * @return the size in bytes of the record of a transaction of the given account, so that the end of a
+	 * record is its position plus this
+	 */
+	public static int recordLength(String account_number) {
+		return HEADER_SIZE + encodedLength(account_number);
+	}
+
+	/**
+	 * @return the size in bytes of the record of a transfer between the given accounts
+	 */
+	public static int transferLength(String from_account, String to_account) {
+		return HEADER_SIZE + 2 + encodedLength(from_account) + 2 + encodedLength(to_account);
+	}
+
+	private static int encodedLength(String account_number) {
+		for (int i = 0; i < account_number.length(); i++) {
+			// account numbers are ASCII in practice; anything else is measured the way write() encodes it
+			if (account_number.charAt(i) >= 0x80)
+				return account_number.getBytes(StandardCharsets.UTF_8).length;
+		}
+		return account_number.length();
+	}
+
+	public FsyncPolicy getPolicy() {
+		return policy;
+	}
+
+	public void close() throws IOException {
+		if (flusher != null)
+			flusher.shutdown();
+		flush();
+		channel.close();
+		file.close();
+	}
+
+	// must hold the lock of this journal
+	private MappedByteBuffer region(long position) throws IOException {
+		if (position < first_position)
+			throw new IOException("the journal was truncated after position " + position);
+		int index = (int) ((position - first_position) / region_size);
+		while (regions.size() <= index)
+			regions.add(channel.map(FileChannel.MapMode.READ_WRITE,
+					fileOffset(first_position + (long) regions.size() * region_size), region_size));
+		return regions.get(index);
+	}
+
+	// where a position is in the file (first_position and file_header only change in truncate())
+	private long fileOffset(long position) {
+		return position - first_position + file_header;
+	}
+
+	// must hold the lock of this journal: the position of the end of the file
+	private long end() throws IOException {
+		return first_position + Math.max(0, channel.size() - file_header);
+	}
+
+	private static void wipe(MappedByteBuffer region, int offset) {
+		boolean dirty = false;
+		for (int i = offset; i < region.capacity() && !dirty; i++)
+			dirty = region.get(i) != 0;
+		if (!dirty)
+			return;
+		ByteBuffer tail = region.duplicate();
+		tail.position(offset);
+		byte[] zeros = new byte[64 * 1024];
+		while (tail.hasRemaining())
+			tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+	}
+
+	static int checksum(long timestamp_millis, long amount_cents, byte[] account) {
+		return fold(hash(timestamp_millis, amount_cents, account));
+	}
+
+	static int checksum(long timestamp_millis, long amount_cents, byte[] from_account, byte[] to_account) {
+		long h = (hash(timestamp_millis, amount_cents, from_account) ^ TRANSFER) * 0x100000001b3L;
+		for (byte b : to_account)
+			h = (h ^ b) * 0x100000001b3L;
+		return fold(h);
+	}
+
+	private static long hash(long timestamp_millis, long amount_cents, byte[] account) {
+		long h = 0xcbf29ce484222325L;
+		h = (h ^ timestamp_millis) * 0x100000001b3L;
+		h = (h ^ amount_cents) * 0x100000001b3L;
+		for (byte b : account)
+			h = (h ^ b) * 0x100000001b3L;
+		return h;
+	}
+
+	private static int fold(long h) {
+		int checksum = (int) (h ^ (h >>> 32));
+		// 0 is what an unwritten record looks like
+		return checksum == 0 ? 1 : checksum;
+	}
+}
@@ -0,0 +1,1202 @@
+package app;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import model.AccountKey;
+import model.DailyRollups;
+import model.Money;
+import model.Transaction;
+import model.TransactionStore;
+import utils.LongKeyMap;
+import utils.MonotonicClock;
+
+/**
+ * The ledger holds all the transactions of the system together with the running balance of every account.
+ *
+ * Instead of one list (and one lock) for everything, the ledger is partitioned by account number into a number
+ * of stripes. Each stripe has its own lock, its own store of transactions and its own balances, so appends to
+ * accounts that land on different stripes do not wait for each other. Readers never take a lock: balances are
+ * published through volatile fields and the transaction store of a stripe is only ever appended to.
+ *
+ * The transactions themselves are kept in a column-oriented TransactionStore, not as Transaction objects.
+ * Accounts are looked up by the AccountKey of their number, a packed long, in a LongKeyMap per stripe; an
+ * account number that has no key (e.g. with letters in it) cannot be given a transaction.
+ *
+ * When a Journal is attached, every transaction is also written to it (under the stripe lock, so the journal
+ * has the transactions of an account in the same order as the ledger) before it is applied. Each account
+ * remembers the journal position of the last transaction applied to it, which is what lets a Checkpoint be
+ * taken one stripe at a time while transactions keep coming in. After a checkpoint is restored, the
+ * transactions it covers are only read back from its history (see loadHistory) once something needs them.
+ *
+ * Every transaction is also given a sequence number, from one counter for the whole ledger, while its stripe is
+ * locked: the sequence numbers give a total order of the transactions of all the accounts that agrees with the
+ * order of each account's own transactions. They are given again when the journal is replayed, in the order of
+ * the journal.
+ *
+ * Each account also keeps its transactions summed up by day (see DailyRollups), updated with every append, for
+ * statements and summaries over long ranges. Those are the one thing read under the stripe lock, as a day's
+ * rollup is several fields updated together; a summary only reads one row per day.
+ */
+public class Ledger {
+
+	public static final int DEFAULT_STRIPES = 64;
+
+	private final Stripe[] stripes;
+	private final int stripe_shift;
+	private final LongAdder size = new LongAdder();
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile Journal journal;
+	// the history of the checkpoint that was restored, until it is loaded
+	private volatile HistoryFile history;
+	private final Object history_lock = new Object();
+
+	public Ledger() {
+		this(DEFAULT_STRIPES);
+	}
+
+	public Ledger(int number_of_stripes) {
+		if (number_of_stripes < 1)
+			throw new IllegalArgumentException("number_of_stripes must be at least 1: " + number_of_stripes);
+		// round up to a power of two so the stripe of an account is the top bits of its hash (the maps of the
+		// stripes use the bottom bits)
+		int n = Integer.highestOneBit(number_of_stripes);
+		if (n < number_of_stripes)
+			n <<= 1;
+		stripes = new Stripe[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new Stripe(sequence);
+		stripe_shift = 32 - Integer.numberOfTrailingZeros(n);
+	}
+
+	/**
+	 * Add a transaction to the ledger and update the balance of its account. Only the stripe of the account
+	 * is locked while doing so. The ledger itself does not check that the account is open (so that a journal
+	 * can be replayed before the accounts are loaded); see isOpen().
+	 *
+	 * @param aTransaction is given its sequence number, and the current time of the MonotonicClock if it has
+	 * no timestamp
+	 */
+	public void append(Transaction aTransaction) {
+		if (aTransaction.getTimestamp_nanos() == Transaction.NO_TIMESTAMP)
+			aTransaction.setTimestamp_nanos(MonotonicClock.currentTimeNanos());
+		aTransaction.setSequence(append(aTransaction.getAccount_number(), aTransaction.getTransaction_amount_cents(),
+				aTransaction.getTimestamp_millis()));
+	}
+
+	/**
+	 * Same as append(Transaction), without the Transaction object. If a journal is attached, the transaction
+	 * is journaled first, and this only returns once the journal's fsync policy is satisfied.
+	 *
+	 * @param account_number
+	 * @param amount_cents
+	 * @param timestamp_millis
+	 * @return the sequence number of the transaction
+	 */
+	public long append(String account_number, long amount_cents, long timestamp_millis) {
+		return append(account_number, amount_cents, timestamp_millis, null);
+	}
+
+	/**
+	 * Same as append(account_number, amount_cents, timestamp_millis), and also gives the balance of the account
+	 * right after this transaction, before any other transaction of the account is applied.
+	 *
+	 * @param balance_cents_after if not null, its first element is set to that balance
+	 * @return the sequence number of the transaction
+	 */
+	public long append(String account_number, long amount_cents, long timestamp_millis, long[] balance_cents_after) {
+		Journal journal = this.journal;
+		long journal_position = -1;
+		long transaction_sequence;
+		long key = keyOf(account_number);
+		int hash = AccountKey.hash(key);
+		Stripe stripe = stripeOf(hash);
+		stripe.lock.lock();
+		try {
+			if (journal != null)
+				journal_position = journal.write(account_number, amount_cents, timestamp_millis);
+			transaction_sequence = stripe.append(key, hash, account_number, amount_cents, timestamp_millis,
+					journal_position);
+			if (balance_cents_after != null)
+				balance_cents_after[0] = stripe.historyOf(key, hash, account_number).balance_cents;
+		} catch (IOException e) {
+			throw new UncheckedIOException("could not write to the journal", e);
+		} finally {
+			stripe.lock.unlock();
+		}
+		size.increment();
+		// waiting for the disk happens outside of the stripe lock, so that other writers can join the same force
+		if (journal != null)
+			journal.awaitDurable(journal_position);
+		return transaction_sequence;
+	}
+
+	/**
+	 * Move money from one account to another: the debit of one and the credit of the other are applied
+	 * together, or not at all. Only the stripes of the two accounts are locked, always the one with the lower
+	 * index first (so two transfers in opposite directions cannot deadlock), which lets transfers between
+	 * other accounts go on in parallel. Readers may see one account updated before the other, but never a
+	 * transfer half applied once this has returned. With a journal attached, the transfer is journaled as one
+	 * record (see Journal.writeTransfer).
+	 *
+	 * @param from_account the account debited; its balance must cover the amount
+	 * @param to_account the account credited
+	 * @param amount_cents must be positive
+	 * @param timestamp_millis of both transactions
+	 * @return false (and nothing is changed) if the balance of from_account is less than the amount
+	 * @throws IllegalArgumentException if the amount is not positive, the two accounts are the same, or
+	 * either account number has no AccountKey
+	 */
+	public boolean transfer(String from_account, String to_account, long amount_cents, long timestamp_millis) {
+		return transfer(from_account, to_account, amount_cents, timestamp_millis, true);
+	}
+
+	/**
+	 * Apply a transfer that was already made elsewhere (by the primary, see Standby), whatever the balance of
+	 * from_account here.
+	 */
+	void applyTransfer(String from_account, String to_account, long amount_cents, long timestamp_millis) {
+		transfer(from_account, to_account, amount_cents, timestamp_millis, false);
+	}
+
+	private boolean transfer(String from_account, String to_account, long amount_cents, long timestamp_millis,
+			boolean check_balance) {
+		if (amount_cents <= 0)
+			throw new IllegalArgumentException("the amount of a transfer must be positive: " + amount_cents);
+		long from_key = keyOf(from_account);
+		long to_key = keyOf(to_account);
+		if (from_key == to_key)
+			throw new IllegalArgumentException("cannot transfer from an account to itself: " + from_account);
+		int from_hash = AccountKey.hash(from_key);
+		int to_hash = AccountKey.hash(to_key);
+		Stripe from_stripe = stripeOf(from_hash);
+		Stripe to_stripe = stripeOf(to_hash);
+		Stripe first = stripeIndexOf(from_hash) <= stripeIndexOf(to_hash) ? from_stripe : to_stripe;
+		Stripe second = first == from_stripe ? to_stripe : from_stripe;
+
+		Journal journal = this.journal;
+		long journal_position = -1;
+		first.lock.lock();
+		if (second != first)
+			second.lock.lock();
+		try {
+			if (check_balance) {
+				AccountHistory from = from_stripe.accounts.get(from_key, from_hash);
+				if (from == null || from.balance_cents < amount_cents)
+					return false;
+			}
+			if (journal != null)
+				journal_position = journal.writeTransfer(from_account, to_account, amount_cents, timestamp_millis);
+			from_stripe.append(from_key, from_hash, from_account, -amount_cents, timestamp_millis, journal_position);
+			to_stripe.append(to_key, to_hash, to_account, amount_cents, timestamp_millis, journal_position);
+		} catch (IOException e) {
+			throw new UncheckedIOException("could not write to the journal", e);
+		} finally {
+			if (second != first)
+				second.lock.unlock();
+			first.lock.unlock();
+		}
+		size.add(2);
+		if (journal != null)
+			journal.awaitDurable(journal_position);
+		return true;
+	}
+
+	/**
+	 * Append a whole batch of transactions, all with the same timestamp. The batch is grouped by stripe, and
+	 * each stripe is locked (and journaled to) once for all of its transactions; with a journal attached, the
+	 * fsync policy is applied once, for the whole batch.
+	 *
+	 * @param account_numbers the accounts of the transactions; entries that are null are skipped
+	 * @param amounts_cents the amounts of the transactions
+	 * @param count the number of transactions in the arrays
+	 * @param timestamp_millis
+	 */
+	public void appendBatch(String[] account_numbers, long[] amounts_cents, int count, long timestamp_millis) {
+		appendBatch(account_numbers, amounts_cents, null, timestamp_millis, count, null);
+	}
+
+	/**
+	 * Same as appendBatch above, giving back the sequence number of each transaction.
+	 *
+	 * @param sequences where the sequence number of each transaction is stored, at the same index as in the
+	 * other arrays (entries whose account is null are left alone)
+	 */
+	public void appendBatch(String[] account_numbers, long[] amounts_cents, int count, long timestamp_millis,
+			long[] sequences) {
+		appendBatch(account_numbers, amounts_cents, null, timestamp_millis, count, sequences);
+	}
+
+	/**
+	 * Same as appendBatch above, with a timestamp for each transaction.
+	 */
+	public void appendBatch(String[] account_numbers, long[] amounts_cents, long[] timestamps_millis, int count) {
+		appendBatch(account_numbers, amounts_cents, timestamps_millis, 0, count, null);
+	}
+
+	private void appendBatch(String[] account_numbers, long[] amounts_cents, long[] timestamps_millis,
+			long timestamp_millis, int count, long[] sequences) {
+		// counting sort of the batch by stripe, so each stripe's transactions are next to each other. The keys
+		// are all made (and checked) before anything is appended.
+		long[] keys = new long[count];
+		int[] hashes = new int[count];
+		int[] stripe_of = new int[count];
+		int[] starts = new int[stripes.length + 1];
+		for (int i = 0; i < count; i++) {
+			if (account_numbers[i] == null) {
+				stripe_of[i] = -1;
+				continue;
+			}
+			keys[i] = keyOf(account_numbers[i]);
+			hashes[i] = AccountKey.hash(keys[i]);
+			stripe_of[i] = stripeIndexOf(hashes[i]);
+			starts[stripe_of[i] + 1]++;
+		}
+		for (int s = 0; s < stripes.length; s++)
+			starts[s + 1] += starts[s];
+		int[] order = new int[starts[stripes.length]];
+		int[] next = starts.clone();
+		for (int i = 0; i < count; i++) {
+			if (stripe_of[i] >= 0)
+				order[next[stripe_of[i]]++] = i;
+		}
+
+		Journal journal = this.journal;
+		long journal_position = -1;
+		for (int s = 0; s < stripes.length; s++) {
+			if (starts[s] == starts[s + 1])
+				continue;
+			Stripe stripe = stripes[s];
+			stripe.lock.lock();
+			try {
+				for (int k = starts[s]; k < starts[s + 1]; k++) {
+					int i = order[k];
+					long timestamp = timestamps_millis == null ? timestamp_millis : timestamps_millis[i];
+					if (journal != null)
+						journal_position = journal.write(account_numbers[i], amounts_cents[i], timestamp);
+					long transaction_sequence = stripe.append(keys[i], hashes[i], account_numbers[i], amounts_cents[i],
+							timestamp, journal_position);
+					if (sequences != null)
+						sequences[i] = transaction_sequence;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException("could not write to the journal", e);
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		size.add(order.length);
+		if (journal != null && journal_position >= 0)
+			journal.awaitDurable(journal_position);
+	}
+
+	/**
+	 * Start writing every appended transaction to the journal. The journal should have been replayed into
+	 * this ledger first, and nothing should be appended while the journal is being attached.
+	 *
+	 * @param journal the journal, or null to stop journaling
+	 */
+	public void attachJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	public Journal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Replay a journal into this ledger, from the given position on (0 for the whole journal, or the position
+	 * of the checkpoint that was restored). Transactions that are already in the balance of their account (as
+	 * they were restored from the checkpoint) are only added to its history, not to its balance again. Nothing
+	 * is written to the journal while replaying. The MonotonicClock is moved forwards to the latest timestamp
+	 * replayed, so that new transactions are not stamped earlier even if the wall clock went back meanwhile.
+	 *
+	 * @param journal
+	 * @param from_position
+	 * @return the number of transactions replayed
+	 * @throws IOException
+	 */
+	public long replay(Journal journal, long from_position) throws IOException {
+		final long[] applied = new long[1];
+		final long[] latest_millis = { Long.MIN_VALUE };
+		journal.replay(from_position, new Journal.Handler() {
+			public void apply(String account_number, long amount_cents, long timestamp_millis, long position) {
+				latest_millis[0] = Math.max(latest_millis[0], timestamp_millis);
+				long key = keyOf(account_number);
+				int hash = AccountKey.hash(key);
+				Stripe stripe = stripeOf(hash);
+				stripe.lock.lock();
+				try {
+					AccountHistory history = stripe.historyOf(key, hash, account_number);
+					if (position < history.journal_position)
+						stripe.apply(history, amount_cents, timestamp_millis, sequence.incrementAndGet());
+					else
+						stripe.append(key, hash, account_number, amount_cents, timestamp_millis,
+								position + Journal.recordLength(account_number));
+				} finally {
+					stripe.lock.unlock();
+				}
+				applied[0]++;
+			}
+
+			public void transfer(String from_account, String to_account, long amount_cents, long timestamp_millis,
+					long position) {
+				latest_millis[0] = Math.max(latest_millis[0], timestamp_millis);
+				long end = position + Journal.transferLength(from_account, to_account);
+				long from_key = keyOf(from_account);
+				long to_key = keyOf(to_account);
+				int from_hash = AccountKey.hash(from_key);
+				int to_hash = AccountKey.hash(to_key);
+				Stripe from_stripe = stripeOf(from_hash);
+				Stripe to_stripe = stripeOf(to_hash);
+				Stripe first = stripeIndexOf(from_hash) <= stripeIndexOf(to_hash) ? from_stripe : to_stripe;
+				Stripe second = first == from_stripe ? to_stripe : from_stripe;
+				first.lock.lock();
+				if (second != first)
+					second.lock.lock();
+				try {
+					replayLeg(from_stripe, from_key, from_hash, from_account, -amount_cents, timestamp_millis, position, end);
+					replayLeg(to_stripe, to_key, to_hash, to_account, amount_cents, timestamp_millis, position, end);
+				} finally {
+					if (second != first)
+						second.lock.unlock();
+					first.lock.unlock();
+				}
+				applied[0] += 2;
+			}
+
+			private void replayLeg(Stripe stripe, long key, int hash, String account_number, long amount_cents,
+					long timestamp_millis, long position, long end) {
+				AccountHistory history = stripe.historyOf(key, hash, account_number);
+				if (position < history.journal_position)
+					stripe.apply(history, amount_cents, timestamp_millis, sequence.incrementAndGet());
+				else
+					stripe.append(key, hash, account_number, amount_cents, timestamp_millis, end);
+			}
+		});
+		size.add(applied[0]);
+		if (applied[0] > 0)
+			MonotonicClock.advanceTo(latest_millis[0]);
+		return applied[0];
+	}
+
+	/**
+	 * @return the number of stripes of the ledger
+	 */
+	int stripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Copy the balance and journal position of every account of one stripe. Only that stripe is locked, and
+	 * only while copying.
+	 *
+	 * @return the number of accounts copied into the arrays, which are grown when they are too small
+	 */
+	int snapshotStripe(int stripe_index, Snapshot snapshot) {
+		Stripe stripe = stripes[stripe_index];
+		stripe.lock.lock();
+		try {
+			List<AccountHistory> histories = stripe.accounts.values();
+			snapshot.ensureCapacity(histories.size());
+			int count = 0;
+			for (AccountHistory history : histories) {
+				snapshot.account_numbers[count] = history.account_number;
+				snapshot.balances_cents[count] = history.balance_cents;
+				snapshot.journal_positions[count] = history.journal_position;
+				count++;
+			}
+			return count;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the balances and journal positions of accounts, as restored from a checkpoint. Their transactions
+	 * come back from the history of the checkpoint (see restoreHistory).
+	 *
+	 * @param count the number of accounts in the snapshot
+	 */
+	void restore(Snapshot snapshot, int count) {
+		for (int i = 0; i < count; i++) {
+			long key = keyOf(snapshot.account_numbers[i]);
+			int hash = AccountKey.hash(key);
+			Stripe stripe = stripeOf(hash);
+			stripe.lock.lock();
+			try {
+				AccountHistory history = stripe.historyOf(key, hash, snapshot.account_numbers[i]);
+				history.balance_cents = snapshot.balances_cents[i];
+				history.journal_position = snapshot.journal_positions[i];
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Take the transactions of a restored checkpoint, which are in the balances already, from its history
+	 * file: they are counted in size() and their sequence numbers are taken, but the file is only read by
+	 * loadHistory(). Must be called before the journal is replayed on top of the checkpoint.
+	 */
+	void restoreHistory(HistoryFile history) {
+		this.history = history;
+		size.add(history.transactions);
+		// nothing else is appended while a checkpoint is restored
+		if (history.transactions > sequence.get())
+			sequence.set(history.transactions);
+	}
+
+	/**
+	 * Read the history of the restored checkpoint, if it has not been read yet: its transactions go into the
+	 * stores, row indexes and daily rollups of their accounts, but not into their balances, which have them
+	 * already. Everything that reads transactions calls this first, so a restart does not wait for the
+	 * history, only the first reader does. Transactions can be appended meanwhile.
+	 *
+	 * @throws UncheckedIOException if the history file cannot be read (what was read of it is kept)
+	 */
+	void loadHistory() {
+		if (history == null)
+			return;
+		synchronized (history_lock) {
+			HistoryFile pending = history;
+			if (pending == null)
+				return;
+			try {
+				pending.load(this);
+			} catch (IOException e) {
+				throw new UncheckedIOException("could not read the history of the ledger", e);
+			} finally {
+				for (Stripe stripe : stripes) {
+					stripe.lock.lock();
+					try {
+						for (AccountHistory account : stripe.accounts.values())
+							account.mergeLoadedRows(stripe.store);
+					} finally {
+						stripe.lock.unlock();
+					}
+				}
+				history = null;
+			}
+		}
+	}
+
+	/**
+	 * Add a block of transactions read by loadHistory(). They are grouped by stripe, and each stripe is locked
+	 * once for all of its transactions in the block. The rows of each account are only merged into its row
+	 * index at the end of loadHistory, in one go, as they usually go before the rows it has already.
+	 *
+	 * @param first_sequence the sequence number of the first transaction; the others follow in order
+	 */
+	void addHistory(long[] keys, long[] amounts_cents, long[] timestamps_millis, int count, long first_sequence) {
+		int[] hashes = new int[count];
+		int[] starts = new int[stripes.length + 1];
+		for (int i = 0; i < count; i++) {
+			hashes[i] = AccountKey.hash(keys[i]);
+			starts[stripeIndexOf(hashes[i]) + 1]++;
+		}
+		for (int s = 0; s < stripes.length; s++)
+			starts[s + 1] += starts[s];
+		int[] order = new int[count];
+		int[] next = starts.clone();
+		for (int i = 0; i < count; i++)
+			order[next[stripeIndexOf(hashes[i])]++] = i;
+
+		for (int s = 0; s < stripes.length; s++) {
+			if (starts[s] == starts[s + 1])
+				continue;
+			Stripe stripe = stripes[s];
+			stripe.lock.lock();
+			try {
+				for (int k = starts[s]; k < starts[s + 1]; k++) {
+					int i = order[k];
+					AccountHistory account = stripe.accounts.get(keys[i], hashes[i]);
+					if (account == null)
+						account = stripe.historyOf(keys[i], hashes[i], AccountKey.toString(keys[i]));
+					int row = stripe.store.append(account.account_id, amounts_cents[i], timestamps_millis[i],
+							first_sequence + i);
+					account.addLoadedRow(row);
+					account.rollups().add(timestamps_millis[i], amounts_cents[i]);
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+	/**
+	 * Mark an account as open, i.e. known to the system, so that isOpen() is true for it from now on.
+	 *
+	 * @param account_number
+	 * @return false if the account was already open
+	 * @throws IllegalArgumentException if the account number has no AccountKey
+	 */
+	public boolean openAccount(String account_number) {
+		long key = keyOf(account_number);
+		int hash = AccountKey.hash(key);
+		Stripe stripe = stripeOf(hash);
+		stripe.lock.lock();
+		try {
+			AccountHistory history = stripe.historyOf(key, hash, account_number);
+			if (history.open)
+				return false;
+			history.open = true;
+			return true;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Open a whole batch of accounts (see openAccount). As with appendBatch, the batch is grouped by stripe and
+	 * each stripe is locked once for all of its accounts.
+	 *
+	 * @param account_numbers the accounts to open; entries that are null are skipped
+	 * @param opened set for each account to whether it was opened by this call (false if it was open already,
+	 * also by an earlier entry of the batch)
+	 * @return the number of accounts opened
+	 * @throws IllegalArgumentException if an account number has no AccountKey; nothing is opened then
+	 */
+	public int openAccounts(String[] account_numbers, boolean[] opened, int count) {
+		long[] keys = new long[count];
+		int[] hashes = new int[count];
+		int[] stripe_of = new int[count];
+		int[] starts = new int[stripes.length + 1];
+		for (int i = 0; i < count; i++) {
+			opened[i] = false;
+			if (account_numbers[i] == null) {
+				stripe_of[i] = -1;
+				continue;
+			}
+			keys[i] = keyOf(account_numbers[i]);
+			hashes[i] = AccountKey.hash(keys[i]);
+			stripe_of[i] = stripeIndexOf(hashes[i]);
+			starts[stripe_of[i] + 1]++;
+		}
+		for (int s = 0; s < stripes.length; s++)
+			starts[s + 1] += starts[s];
+		int[] order = new int[starts[stripes.length]];
+		int[] next = starts.clone();
+		for (int i = 0; i < count; i++) {
+			if (stripe_of[i] >= 0)
+				order[next[stripe_of[i]]++] = i;
+		}
+
+		int opened_count = 0;
+		for (int s = 0; s < stripes.length; s++) {
+			if (starts[s] == starts[s + 1])
+				continue;
+			Stripe stripe = stripes[s];
+			stripe.lock.lock();
+			try {
+				for (int k = starts[s]; k < starts[s + 1]; k++) {
+					int i = order[k];
+					AccountHistory history = stripe.historyOf(keys[i], hashes[i], account_numbers[i]);
+					if (!history.open) {
+						history.open = true;
+						opened[i] = true;
+						opened_count++;
+					}
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return opened_count;
+	}
+
+	/**
+	 * @param account_number
+	 * @return true if the account has been opened, with a single lookup (no lock is taken)
+	 */
+	public boolean isOpen(String account_number) {
+		return isOpen(AccountKey.of(account_number));
+	}
+
+	/**
+	 * Same as isOpen(String), for the AccountKey of the account number.
+	 */
+	public boolean isOpen(long account_key) {
+		AccountHistory history = find(account_key);
+		return history != null && history.open;
+	}
+
+	/**
+	 * @param account_number
+	 * @return the running balance of the account in cents, or 0 if the account has no transactions
+	 */
+	public long getBalanceCents(String account_number) {
+		return getBalanceCents(AccountKey.of(account_number));
+	}
+
+	/**
+	 * Same as getBalanceCents(String), for the AccountKey of the account number, so that a caller that looks
+	 * up the same account often can parse its number once.
+	 */
+	public long getBalanceCents(long account_key) {
+		AccountHistory history = find(account_key);
+		return history == null ? 0 : history.balance_cents;
+	}
+
+	/**
+	 * @param account_number
+	 * @return the running balance of the account in dollars, or 0.0 if the account has no transactions
+	 */
+	public double getBalance(String account_number) {
+		return Money.toDouble(getBalanceCents(account_number));
+	}
+
+	/**
+	 * Calculate the balance of the account the slow way, by going over all the transactions of its stripe.
+	 *
+	 * @param account_number
+	 * @return the balance of the account in cents as recorded in the transactions
+	 */
+	public long recomputeBalanceCents(String account_number) {
+		loadHistory();
+		long key = AccountKey.of(account_number);
+		AccountHistory history = find(key);
+		return history == null ? 0 : stripeOf(AccountKey.hash(key)).store.sumAmountCents(history.account_id);
+	}
+
+	/**
+	 * @return the sum of the balances of all accounts in cents, i.e. the total money held by the ledger
+	 */
+	public long totalBalanceCents() {
+		long total_cents = 0;
+		for (Stripe stripe : stripes) {
+			for (AccountHistory history : stripe.accounts.values())
+				total_cents += history.balance_cents;
+		}
+		return total_cents;
+	}
+
+	/**
+	 * Compute the balance of every account in one parallel pass over the transactions, on the common
+	 * fork/join pool. See balancesForAll(ForkJoinPool).
+	 */
+	public Balances balancesForAll() {
+		return balancesForAll(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Compute the balance of every account from the transactions, in one pass over the ledger that is split
+	 * by stripe across the pool. The balances go in one array, where each stripe has a slice of its own
+	 * (indexed by account id), so the threads never share an accumulator and there is nothing to merge
+	 * afterwards. This does not lock anything; transactions appended while it runs may or may not be counted.
+	 *
+	 * @param pool
+	 * @return the balance in cents of every account known to the ledger when the pass started, in primitive
+	 * arrays rather than a map of boxed balances
+	 */
+	public Balances balancesForAll(ForkJoinPool pool) {
+		loadHistory();
+		int[] rows = new int[stripes.length];
+		int[] offsets = new int[stripes.length + 1];
+		for (int s = 0; s < stripes.length; s++) {
+			TransactionStore store = stripes[s].store;
+			// the size first, so that every account id in those rows is below the count
+			rows[s] = store.size();
+			offsets[s + 1] = offsets[s] + store.accountCount();
+		}
+		String[] account_numbers = new String[offsets[stripes.length]];
+		long[] balances_cents = new long[account_numbers.length];
+		pool.invoke(new SumTask(stripes, rows, offsets, account_numbers, balances_cents, 0, stripes.length));
+		return new Balances(this, offsets, account_numbers, balances_cents);
+	}
+
+	/**
+	 * The balances of every account at one point, as computed by balancesForAll: the accounts of each stripe
+	 * in the order of their ids in its store, in two parallel arrays, so that a million accounts take two
+	 * arrays instead of a million map entries with boxed balances.
+	 */
+	public static final class Balances {
+		private final Ledger ledger;
+		// where the accounts of each stripe start in the arrays
+		private final int[] offsets;
+		private final String[] account_numbers;
+		private final long[] balances_cents;
+
+		Balances(Ledger ledger, int[] offsets, String[] account_numbers, long[] balances_cents) {
+			this.ledger = ledger;
+			this.offsets = offsets;
+			this.account_numbers = account_numbers;
+			this.balances_cents = balances_cents;
+		}
+
+		/**
+		 * @return the number of accounts
+		 */
+		public int size() {
+			return account_numbers.length;
+		}
+
+		public String accountNumberAt(int i) {
+			return account_numbers[i];
+		}
+
+		public long balanceCentsAt(int i) {
+			return balances_cents[i];
+		}
+
+		public boolean contains(String account_number) {
+			return indexOf(account_number) >= 0;
+		}
+
+		/**
+		 * @return the balance of the account in cents, or 0 if it is not one of these accounts
+		 */
+		public long getCents(String account_number) {
+			int i = indexOf(account_number);
+			return i < 0 ? 0 : balances_cents[i];
+		}
+
+		// looks the account up in the ledger, for its stripe and its id there
+		private int indexOf(String account_number) {
+			long key = AccountKey.of(account_number);
+			if (key == AccountKey.NO_KEY)
+				return -1;
+			int hash = AccountKey.hash(key);
+			int s = ledger.stripeIndexOf(hash);
+			AccountHistory history = ledger.stripes[s].accounts.get(key, hash);
+			if (history == null || history.account_id >= offsets[s + 1] - offsets[s])
+				return -1;
+			return offsets[s] + history.account_id;
+		}
+	}
+
+	/**
+	 * Verify mode: recompute every balance from the raw transactions and compare it with the running balances.
+	 * Each stripe is locked only while it is being checked. Any account whose running balance has drifted
+	 * from its transactions is reported on the console.
+	 *
+	 * @return the number of accounts whose running balance does not match the transactions
+	 */
+	public int verify() {
+		loadHistory();
+		int drifted = 0;
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				// one pass over the amount and account columns of the stripe, summing per account id
+				TransactionStore store = stripe.store;
+				List<AccountHistory> histories = stripe.accounts.values();
+				long[] recomputed_cents = new long[histories.size()];
+				for (int row = 0; row < store.size(); row++)
+					recomputed_cents[store.accountIdAt(row)] += store.amountCentsAt(row);
+				for (AccountHistory history : histories) {
+					if (history.balance_cents != recomputed_cents[history.account_id]) {
+						System.out.println("Balance drift on account " + history.account_number + ": running = "
+								+ Money.toDouble(history.balance_cents) + " ; recomputed = " + Money.toDouble(recomputed_cents[history.account_id]));
+						drifted++;
+					}
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return drifted;
+	}
+
+	// for tests of verify() only (see LedgerDriftTest): sets the running balance of an account without a
+	// transaction, as a bug in the ledger would
+	void setRunningBalanceCents(String account_number, long balance_cents) {
+		long key = keyOf(account_number);
+		int hash = AccountKey.hash(key);
+		Stripe stripe = stripeOf(hash);
+		stripe.lock.lock();
+		try {
+			stripe.historyOf(key, hash, account_number).balance_cents = balance_cents;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Go over every transaction in the ledger, stripe by stripe. Transactions appended while this runs may or
+	 * may not be visited. The action is given a view on the current transaction, which is reused for the next
+	 * one: call toTransaction() on it to keep a transaction.
+	 *
+	 * @param action
+	 */
+	public void forEach(Consumer<TransactionStore.View> action) {
+		loadHistory();
+		for (Stripe stripe : stripes) {
+			TransactionStore.View view = stripe.store.view();
+			int count = stripe.store.size();
+			for (int row = 0; row < count; row++)
+				action.accept(view.moveTo(row));
+		}
+	}
+
+	/**
+	 * Go over the transactions of one account whose timestamp is in [from_millis, to_millis), in timestamp
+	 * order, e.g. to print a statement. Every account keeps the rows of its transactions sorted by timestamp,
+	 * so the window is found with a binary search and only the transactions in it are read: the cost depends
+	 * on the size of the window, not of the ledger. Nothing is copied and no lock is taken; the action is
+	 * given a view on the current transaction, which is reused for the next one.
+	 *
+	 * @param account_number
+	 * @param from_millis first timestamp of the window, inclusive
+	 * @param to_millis end of the window, exclusive
+	 * @param action
+	 * @return the number of transactions visited
+	 */
+	public int transactions(String account_number, long from_millis, long to_millis,
+			Consumer<TransactionStore.View> action) {
+		loadHistory();
+		long key = AccountKey.of(account_number);
+		AccountHistory history = find(key);
+		if (history == null || from_millis >= to_millis)
+			return 0;
+		Stripe stripe = stripeOf(AccountKey.hash(key));
+		// the count is read before the rows, so that the rows are at least as recent as the count
+		int count = history.row_count;
+		int[] rows = history.rows;
+		TransactionStore store = stripe.store;
+		int first = firstAtOrAfter(store, rows, count, from_millis);
+		int end = firstAtOrAfter(store, rows, count, to_millis);
+		TransactionStore.View view = store.view();
+		for (int i = first; i < end; i++)
+			action.accept(view.moveTo(rows[i]));
+		return end - first;
+	}
+
+	/**
+	 * Sum up the transactions of one account over a range of days, from its daily rollups rather than its
+	 * transactions: a year of statements reads at most 366 rows, however many transactions there are. The
+	 * days are UTC days, from the day of from_millis up to the day of to_millis, excluded (so with midnights UTC
+	 * this covers the same transactions as transactions()).
+	 *
+	 * @param account_number
+	 * @param from_millis a time of the first day
+	 * @param to_millis a time of the day after the last one
+	 * @return the summary, all zeros if the account has no transactions
+	 */
+	public DailyRollups.Summary summarize(String account_number, long from_millis, long to_millis) {
+		loadHistory();
+		long key = AccountKey.of(account_number);
+		AccountHistory history = find(key);
+		if (history == null)
+			return new DailyRollups().summarize(0, 0);
+		Stripe stripe = stripeOf(AccountKey.hash(key));
+		stripe.lock.lock();
+		try {
+			return history.rollups().summarize(DailyRollups.dayOf(from_millis), DailyRollups.dayOf(to_millis));
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * @param account_number
+	 * @param day a UTC day (see DailyRollups.dayOf)
+	 * @return the balance of the account at the end of the day, from its daily rollups (0 if the account has
+	 * no transactions)
+	 */
+	public long getClosingBalanceCents(String account_number, int day) {
+		loadHistory();
+		long key = AccountKey.of(account_number);
+		AccountHistory history = find(key);
+		if (history == null)
+			return 0;
+		Stripe stripe = stripeOf(AccountKey.hash(key));
+		stripe.lock.lock();
+		try {
+			return history.rollups().closing(day);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Same as summarize(), day by day: the rollup of every day of the range that has transactions, in order.
+	 *
+	 * @return a copy of the rollups of those days, with the closing balance of each one
+	 */
+	public DailyRollups.Day[] dailyRollups(String account_number, long from_millis, long to_millis) {
+		loadHistory();
+		long key = AccountKey.of(account_number);
+		AccountHistory history = find(key);
+		if (history == null)
+			return new DailyRollups.Day[0];
+		Stripe stripe = stripeOf(AccountKey.hash(key));
+		stripe.lock.lock();
+		try {
+			return history.rollups().days(DailyRollups.dayOf(from_millis), DailyRollups.dayOf(to_millis));
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	// binary search of the first of the (sorted) rows whose timestamp is at or after timestamp_millis
+	static int firstAtOrAfter(TransactionStore store, int[] rows, int count, long timestamp_millis) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (store.timestampMillisAt(rows[middle]) < timestamp_millis)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * @return the sequence number of the last transaction appended (0 if there is none)
+	 */
+	public long lastSequence() {
+		return sequence.get();
+	}
+
+	/**
+	 * @return the number of transactions in the ledger
+	 */
+	public long size() {
+		return size.sum();
+	}
+
+	// the key of an account number that is given a transaction (or opened): it must have one
+	private static long keyOf(String account_number) {
+		long key = AccountKey.of(account_number);
+		if (key == AccountKey.NO_KEY)
+			throw new IllegalArgumentException("not an account number: " + account_number);
+		return key;
+	}
+
+	private AccountHistory find(long account_key) {
+		if (account_key == AccountKey.NO_KEY)
+			return null;
+		int hash = AccountKey.hash(account_key);
+		return stripeOf(hash).accounts.get(account_key, hash);
+	}
+
+	private Stripe stripeOf(int hash) {
+		return stripes[stripeIndexOf(hash)];
+	}
+
+	private int stripeIndexOf(int hash) {
+		return (int) ((hash & 0xFFFFFFFFL) >>> stripe_shift);
+	}
+
+
+	// sums the amounts of the rows of a range of stripes per account, splitting the range down to one stripe,
+	// which sums into its own slice of the shared arrays
+	static final class SumTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Stripe[] stripes;
+		final int[] rows; // of each stripe
+		final int[] offsets; // where the slice of each stripe starts
+		final String[] account_numbers;
+		final long[] balances_cents;
+		final int from;
+		final int to;
+
+		SumTask(Stripe[] stripes, int[] rows, int[] offsets, String[] account_numbers, long[] balances_cents, int from,
+				int to) {
+			this.stripes = stripes;
+			this.rows = rows;
+			this.offsets = offsets;
+			this.account_numbers = account_numbers;
+			this.balances_cents = balances_cents;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new SumTask(stripes, rows, offsets, account_numbers, balances_cents, from, middle),
+						new SumTask(stripes, rows, offsets, account_numbers, balances_cents, middle, to));
+				return;
+			}
+			TransactionStore store = stripes[from].store;
+			int offset = offsets[from];
+			for (int id = 0; id < offsets[from + 1] - offset; id++)
+				account_numbers[offset + id] = store.accountNumberOf(id);
+			for (int row = 0; row < rows[from]; row++)
+				balances_cents[offset + store.accountIdAt(row)] += store.amountCentsAt(row);
+		}
+	}
+
+	// one partition of the ledger. All writes happen with the lock held; the store and the balances publish
+	// their updates through volatile fields so that readers can go without locking.
+	static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final LongKeyMap<AccountHistory> accounts = new LongKeyMap<AccountHistory>();
+		final TransactionStore store = new TransactionStore();
+		final AtomicLong sequence; // of the whole ledger
+
+		Stripe(AtomicLong sequence) {
+			this.sequence = sequence;
+		}
+
+		AccountHistory historyOf(long key, int hash, String account_number) {
+			AccountHistory history = accounts.get(key, hash);
+			if (history == null) {
+				history = new AccountHistory(account_number, store.accountId(key, hash, account_number));
+				accounts.putNew(key, hash, history);
+			}
+			return history;
+		}
+
+		// journal_position is the end of the transaction's record in the journal, or -1 if it is not journaled.
+		// Returns the sequence number given to the transaction.
+		long append(long key, int hash, String account_number, long amount_cents, long timestamp_millis,
+				long journal_position) {
+			AccountHistory history = historyOf(key, hash, account_number);
+			long transaction_sequence = sequence.incrementAndGet();
+			apply(history, amount_cents, timestamp_millis, transaction_sequence);
+			history.balance_cents = history.balance_cents + amount_cents;
+			if (journal_position >= 0)
+				history.journal_position = journal_position;
+			return transaction_sequence;
+		}
+
+		// stores a transaction that already has its sequence number, and adds it to the row index and daily
+		// rollups of the account (but not to its balance)
+		void apply(AccountHistory history, long amount_cents, long timestamp_millis, long transaction_sequence) {
+			int row = store.append(history.account_id, amount_cents, timestamp_millis, transaction_sequence);
+			history.addRow(row, timestamp_millis, store);
+			history.rollups().add(timestamp_millis, amount_cents);
+		}
+	}
+
+	/**
+	 * The balances of (part of) the ledger at one point, filled in by snapshotStripe, or read back from a
+	 * checkpoint for restore.
+	 */
+	static final class Snapshot {
+		String[] account_numbers = new String[0];
+		long[] balances_cents = new long[0];
+		long[] journal_positions = new long[0];
+
+		void ensureCapacity(int n) {
+			if (account_numbers.length >= n)
+				return;
+			account_numbers = new String[n];
+			balances_cents = new long[n];
+			journal_positions = new long[n];
+		}
+	}
+
+	static final class AccountHistory {
+		static final int[] NO_ROWS = new int[0];
+
+		final String account_number;
+		final int account_id; // id of the account in the store of its stripe
+		volatile long balance_cents;
+		volatile boolean open;
+		// end of the journal record of the last transaction applied to the account (guarded by the stripe lock)
+		long journal_position;
+		// the rows of the account's transactions in the store, sorted by timestamp: rows[0 .. row_count)
+		volatile int[] rows = NO_ROWS;
+		volatile int row_count;
+		// the transactions summed up by day (guarded by the stripe lock), created with the first transaction
+		private DailyRollups rollups;
+		// rows added by loadHistory, in the order of the journal, until they are merged into rows (guarded by
+		// the stripe lock)
+		private int[] loaded_rows;
+		private int loaded_count;
+
+		AccountHistory(String account_number, int account_id) {
+			this.account_number = account_number;
+			this.account_id = account_id;
+		}
+
+		// must hold the stripe lock
+		DailyRollups rollups() {
+			if (rollups == null)
+				rollups = new DailyRollups();
+			return rollups;
+		}
+
+		// must hold the stripe lock. A new array is always published before the count that covers it.
+		void addRow(int row, long timestamp_millis, TransactionStore store) {
+			int n = row_count;
+			int[] current = rows;
+			if (n == 0 || store.timestampMillisAt(current[n - 1]) <= timestamp_millis) {
+				// the usual case: transactions come in timestamp order
+				if (n == current.length) {
+					current = Arrays.copyOf(current, Math.max(4, n * 2));
+					rows = current;
+				}
+				current[n] = row;
+			} else {
+				// a back-dated transaction: insert it into a copy, so readers of the current array are not disturbed
+				int at = firstAtOrAfter(store, current, n, timestamp_millis + 1);
+				int[] copy = new int[n == current.length ? n * 2 : current.length];
+				System.arraycopy(current, 0, copy, 0, at);
+				copy[at] = row;
+				System.arraycopy(current, at, copy, at + 1, n - at);
+				rows = copy;
+			}
+			row_count = n + 1;
+		}
+
+		// must hold the stripe lock
+		void addLoadedRow(int row) {
+			if (loaded_rows == null)
+				loaded_rows = new int[16];
+			else if (loaded_count == loaded_rows.length)
+				loaded_rows = Arrays.copyOf(loaded_rows, loaded_count * 2);
+			loaded_rows[loaded_count++] = row;
+		}
+
+		// must hold the stripe lock. The loaded rows are sorted by timestamp (keeping the order of the journal
+		// between equal ones) and merged into a new array, ahead of the rows with the same timestamp, which
+		// were journaled after them.
+		void mergeLoadedRows(final TransactionStore store) {
+			if (loaded_count == 0)
+				return;
+			int[] loaded = loaded_rows;
+			int m = loaded_count;
+			for (int i = 1; i < m; i++) {
+				if (store.timestampMillisAt(loaded[i - 1]) > store.timestampMillisAt(loaded[i])) {
+					// back-dated transactions in the history: a stable sort of the (boxed) rows
+					Integer[] boxed = new Integer[m];
+					for (int k = 0; k < m; k++)
+						boxed[k] = loaded[k];
+					Arrays.sort(boxed, new Comparator<Integer>() {
+						public int compare(Integer a, Integer b) {
+							return Long.compare(store.timestampMillisAt(a), store.timestampMillisAt(b));
+						}
+					});
+					for (int k = 0; k < m; k++)
+						loaded[k] = boxed[k];
+					break;
+				}
+			}
+			int n = row_count;
+			int[] current = rows;
+			int[] merged = new int[Math.max(4, n + m)];
+			int i = 0;
+			int j = 0;
+			int k = 0;
+			while (i < m && j < n) {
+				if (store.timestampMillisAt(loaded[i]) <= store.timestampMillisAt(current[j]))
+					merged[k++] = loaded[i++];
+				else
+					merged[k++] = current[j++];
+			}
+			while (i < m)
+				merged[k++] = loaded[i++];
+			while (j < n)
+				merged[k++] = current[j++];
+			rows = merged;
+			row_count = n + m;
+			loaded_rows = null;
+			loaded_count = 0;
+		}
+	}
+}
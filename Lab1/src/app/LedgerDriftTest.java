@@ -0,0 +1,39 @@
+package app;
+
+import utils.TestUtils;
+
+/**
+ * The test of the verify mode of the Ledger, which has to make a running balance drift from the transactions
+ * of its account, as a bug would. The ledger has no public way to do that, so this test lives in its package,
+ * to use the package-private Ledger.setRunningBalanceCents.
+ */
+public class LedgerDriftTest {
+
+	// a running balance that has drifted from the stored transactions must be reported, and only that one
+	public static void testDrift() {
+		Ledger ledger = new Ledger();
+		ledger.append("5495-1234", 1079, 1L);
+		ledger.append("5495-1234", -14000, 2L);
+		ledger.append("5495-6789", 500, 3L);
+		int before = ledger.verify();
+
+		long balance = ledger.getBalanceCents("5495-1234");
+		ledger.setRunningBalanceCents("5495-1234", balance + 1);
+		int drifted = ledger.verify();
+		long recomputed = ledger.recomputeBalanceCents("5495-1234");
+		ledger.setRunningBalanceCents("5495-1234", balance);
+
+		boolean passed = before == 0 && drifted == 1 && recomputed == balance && ledger.verify() == 0;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testDrift passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testDrift FAILED: " + before + " then " + drifted
+					+ " accounts drifted" + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	public static void main(String[] args) {
+		testDrift();
+	}
+
+}
@@ -0,0 +1,232 @@
+package app;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import utils.LatencyHistogram;
+
+/**
+ * What the operations of SimpleBankingApp cost and how often they are called (a latency histogram per
+ * operation), how many transactions were rejected, how big the ledger is, and how far behind the standby is
+ * (0 without one). Recording a call takes two reads of System.nanoTime() and a few compare-and-sets on
+ * counters striped per thread (see LatencyHistogram), and allocates nothing: about 100 ns in all, most of it
+ * the two reads of the clock (see MetricsTest.measureOverhead).
+ *
+ * The metrics can be read through JMX (register(), under the domain "SimpleBankingApp") or as plain text
+ * (dump(), also served by BankingServer at /metrics).
+ */
+public final class Metrics {
+
+	/**
+	 * The attributes of an operation in JMX, in nanoseconds.
+	 */
+	public interface OperationMXBean {
+		long getCount();
+
+		double getMeanNanos();
+
+		long getP50Nanos();
+
+		long getP99Nanos();
+
+		long getP999Nanos();
+
+		long getMaxNanos();
+	}
+
+	/**
+	 * The counters and gauges of SimpleBankingApp in JMX.
+	 */
+	public interface LedgerMXBean {
+		long getTransactions();
+
+		int getAccounts();
+
+		int getUsers();
+
+		long getRejectedUnknownAccount();
+
+		long getRejectedInvalid();
+
+		long getDuplicateRequests();
+
+		int getRememberedRequests();
+
+		long getReplicationLagBytes();
+
+		long getReplicationLagMillis();
+	}
+
+	/**
+	 * The calls to one operation and their latency.
+	 */
+	public static final class Operation implements OperationMXBean {
+		private final String name;
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		Operation(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Record a call that started at the given time.
+		 *
+		 * @param start_nanos System.nanoTime() when the call started
+		 */
+		public void record(long start_nanos) {
+			latency.record(System.nanoTime() - start_nanos);
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		public long getCount() {
+			return latency.getCount();
+		}
+
+		public double getMeanNanos() {
+			return latency.getMean();
+		}
+
+		public long getP50Nanos() {
+			return latency.getValueAtPercentile(50);
+		}
+
+		public long getP99Nanos() {
+			return latency.getValueAtPercentile(99);
+		}
+
+		public long getP999Nanos() {
+			return latency.getValueAtPercentile(99.9);
+		}
+
+		public long getMaxNanos() {
+			return latency.getMax();
+		}
+	}
+
+	public static final Operation ADD_TRANSACTION = new Operation("addTransaction");
+	public static final Operation ADD_TRANSACTIONS = new Operation("addTransactions");
+	public static final Operation TRANSFER = new Operation("transfer");
+	public static final Operation GET_BALANCE = new Operation("getBalance");
+	public static final Operation LOAD_USERS = new Operation("loadUserData");
+	public static final Operation LOAD_ACCOUNTS = new Operation("loadAccountData");
+	public static final Operation LOAD_TRANSACTIONS = new Operation("loadTransactionData");
+	public static final Operation PRINT_ALL_USERS = new Operation("printAllUsers");
+	public static final Operation PRINT_ALL_ACCOUNTS = new Operation("printAllAccounts");
+
+	static final Operation[] OPERATIONS = { ADD_TRANSACTION, ADD_TRANSACTIONS, TRANSFER, GET_BALANCE, LOAD_USERS,
+			LOAD_ACCOUNTS, LOAD_TRANSACTIONS, PRINT_ALL_USERS, PRINT_ALL_ACCOUNTS };
+
+	// transactions rejected because their account does not exist
+	static final LongAdder rejected_unknown_account = new LongAdder();
+	// transactions rejected because their account number or amount is not valid
+	static final LongAdder rejected_invalid = new LongAdder();
+	// idempotent requests that were answered with the result of an earlier request with the same id
+	static final LongAdder duplicate_requests = new LongAdder();
+
+	static final String DOMAIN = "SimpleBankingApp";
+
+	private static final LedgerMXBean LEDGER = new LedgerMXBean() {
+		public long getTransactions() {
+			return SimpleBankingApp.ledger.size();
+		}
+
+		public int getAccounts() {
+			return SimpleBankingApp.accounts.size();
+		}
+
+		public int getUsers() {
+			return SimpleBankingApp.users.size();
+		}
+
+		public long getRejectedUnknownAccount() {
+			return rejected_unknown_account.sum();
+		}
+
+		public long getRejectedInvalid() {
+			return rejected_invalid.sum();
+		}
+
+		public long getDuplicateRequests() {
+			return duplicate_requests.sum();
+		}
+
+		public int getRememberedRequests() {
+			return SimpleBankingApp.requests.size();
+		}
+
+		public long getReplicationLagBytes() {
+			Replicator replicator = SimpleBankingApp.replicator;
+			return replicator == null ? 0 : replicator.getLagBytes();
+		}
+
+		public long getReplicationLagMillis() {
+			Replicator replicator = SimpleBankingApp.replicator;
+			return replicator == null ? 0 : replicator.getLagMillis();
+		}
+	};
+
+	private Metrics() {
+	}
+
+	/**
+	 * Register the metrics with the platform MBean server (e.g. for jconsole), unless they already are.
+	 */
+	public static synchronized void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName ledger = new ObjectName(DOMAIN + ":type=Ledger");
+			if (server.isRegistered(ledger))
+				return;
+			server.registerMBean(LEDGER, ledger);
+			for (Operation operation : OPERATIONS)
+				server.registerMBean(operation, new ObjectName(DOMAIN + ":type=Operation,name=" + operation.getName()));
+		} catch (JMException e) {
+			throw new IllegalStateException("cannot register the metrics", e);
+		}
+	}
+
+	/**
+	 * @return every metric, one per line, e.g. for a console or a monitoring script
+	 */
+	public static String dump() {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format(Locale.ROOT, "transactions %d%naccounts %d%nusers %d%n", LEDGER.getTransactions(),
+				LEDGER.getAccounts(), LEDGER.getUsers()));
+		text.append(String.format(Locale.ROOT, "rejected_unknown_account %d%nrejected_invalid %d%n",
+				LEDGER.getRejectedUnknownAccount(), LEDGER.getRejectedInvalid()));
+		text.append(String.format(Locale.ROOT, "duplicate_requests %d%nremembered_requests %d%n",
+				LEDGER.getDuplicateRequests(), LEDGER.getRememberedRequests()));
+		text.append(String.format(Locale.ROOT, "replication_lag_bytes %d%nreplication_lag_millis %d%n",
+				LEDGER.getReplicationLagBytes(), LEDGER.getReplicationLagMillis()));
+		text.append(String.format(Locale.ROOT, "%-20s %12s %12s %12s %12s %12s %12s%n", "operation (ns)", "count", "mean",
+				"p50", "p99", "p99.9", "max"));
+		for (Operation operation : OPERATIONS)
+			text.append(String.format(Locale.ROOT, "%-20s %12d %12.0f %12d %12d %12d %12d%n", operation.getName(),
+					operation.getCount(), operation.getMeanNanos(), operation.getP50Nanos(), operation.getP99Nanos(),
+					operation.getP999Nanos(), operation.getMaxNanos()));
+		return text.toString();
+	}
+
+	/**
+	 * Set every counter and histogram back to 0 (the gauges follow the state of SimpleBankingApp).
+	 */
+	public static void reset() {
+		for (Operation operation : OPERATIONS)
+			operation.getLatency().reset();
+		rejected_unknown_account.reset();
+		rejected_invalid.reset();
+		duplicate_requests.reset();
+	}
+}
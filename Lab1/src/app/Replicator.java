@@ -0,0 +1,275 @@
+package app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ships the journal to a hot Standby over a socket, as it is written, so that the standby can take over
+ * without reloading anything. One thread follows the journal and sends what was forced to disk since the last
+ * frame, in frames of up to MAX_FRAME_RECORDS records, without waiting for the standby in between (frames are
+ * only flushed to the socket once the thread has caught up); another reads the acknowledgements, which say up
+ * to where the standby has applied the journal. Writers of the journal never wait for any of this.
+ *
+ * Only what is on disk is shipped (see Journal.durablePosition), so that after a power loss of the primary the
+ * standby is never ahead of what is left of its journal, and can connect again.
+ *
+ * The protocol, all numbers big-endian:
+ * <pre>
+ *   standby to primary, on connecting:  long  position up to which it has applied the journal
+ *   primary to standby, each frame:     int   count, long from_position, long to_position, then for each
+ *                                       record of the journal:
+ *                                       byte  RECORD or TRANSFER,
+ *                                       long  timestamp in milliseconds, long amount in cents,
+ *                                       UTF   account number (as DataOutput.writeUTF), and for a transfer
+ *                                       UTF   the account number credited (the first one is debited)
+ *   standby to primary, after frames:   long  position up to which it has applied the journal
+ * </pre>
+ * A transfer is one record of the journal (see Journal.writeTransfer), and so is shipped as one, and the standby
+ * applies a frame whole or not at all. After a disconnection the replicator connects again, and goes on from wherever the standby says it is.
+ */
+public class Replicator implements Closeable {
+
+	static final int MAX_FRAME_RECORDS = 4096;
+	static final byte RECORD = 0;
+	static final byte TRANSFER = 1;
+	static final int CONNECT_TIMEOUT_MILLIS = 1000;
+	static final long RETRY_MILLIS = 100;
+	static final long POLL_MILLIS = 100;
+
+	private final Journal journal;
+	private final InetSocketAddress standby;
+	private final Thread shipper;
+	private volatile boolean closed;
+	private volatile Socket socket;
+
+	// up to where the standby has acknowledged the journal (-1 until it first connects), and up to where it
+	// was sent to it
+	private volatile long acked_position = -1;
+	private volatile long shipped_position;
+	// {to_position, System.nanoTime() when sent} of the frames not acknowledged yet, oldest first
+	private final ConcurrentLinkedQueue<long[]> in_flight = new ConcurrentLinkedQueue<long[]>();
+
+	// the records of the frame being put together; to_accounts is null but for transfers
+	private final String[] accounts = new String[MAX_FRAME_RECORDS];
+	private final String[] to_accounts = new String[MAX_FRAME_RECORDS];
+	private final long[] amounts_cents = new long[MAX_FRAME_RECORDS];
+	private final long[] timestamps_millis = new long[MAX_FRAME_RECORDS];
+	private int count;
+
+	private Replicator(Journal journal, InetSocketAddress standby) {
+		this.journal = journal;
+		this.standby = standby;
+		this.shipper = new Thread(new Runnable() {
+			public void run() {
+				ship();
+			}
+		}, "replication-shipper");
+		shipper.setDaemon(true);
+	}
+
+	/**
+	 * Start shipping the journal to the standby at the given address. The standby does not have to be up
+	 * yet: the replicator keeps trying to connect to it.
+	 */
+	public static Replicator start(Journal journal, String host, int port) {
+		Replicator replicator = new Replicator(journal, new InetSocketAddress(host, port));
+		replicator.shipper.start();
+		return replicator;
+	}
+
+	/**
+	 * @return the position up to which the standby has applied the journal, or -1 if it has never connected
+	 */
+	public long getAckedPosition() {
+		return acked_position;
+	}
+
+	/**
+	 * @return the position up to which the journal has been sent to the standby
+	 */
+	public long getShippedPosition() {
+		return shipped_position;
+	}
+
+	public boolean isConnected() {
+		Socket socket = this.socket;
+		return socket != null && !socket.isClosed();
+	}
+
+	/**
+	 * @return how many bytes of the journal the standby has not applied yet (the whole journal if it has never
+	 * connected)
+	 */
+	public long getLagBytes() {
+		return journal.position() - Math.max(0, acked_position);
+	}
+
+	/**
+	 * @return how long ago the oldest frame that the standby has not acknowledged yet was sent, in
+	 * milliseconds (0 if it has acknowledged everything sent)
+	 */
+	public long getLagMillis() {
+		long[] oldest = in_flight.peek();
+		return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest[1]);
+	}
+
+	/**
+	 * Wait until the standby has applied the journal up to the given position.
+	 *
+	 * @return false if the timeout ran out first
+	 */
+	public boolean awaitAcknowledged(long position, long timeout_millis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_millis);
+		while (acked_position < position) {
+			if (System.nanoTime() >= deadline)
+				return false;
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	/**
+	 * Stop shipping, and disconnect from the standby.
+	 */
+	public void close() {
+		closed = true;
+		disconnect();
+		shipper.interrupt();
+		try {
+			shipper.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void disconnect() {
+		Socket socket = this.socket;
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	// the shipper thread: connects to the standby, and ships the journal to it until closed
+	private void ship() {
+		boolean reported = false;
+		while (!closed) {
+			try (Socket socket = new Socket()) {
+				socket.connect(standby, CONNECT_TIMEOUT_MILLIS);
+				socket.setTcpNoDelay(true);
+				this.socket = socket;
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				long position = in.readLong();
+				if (position > journal.durablePosition())
+					throw new IOException("the standby is ahead of the journal, at position " + position + " of "
+							+ journal.durablePosition());
+				in_flight.clear();
+				acked_position = position;
+				shipped_position = position;
+				System.out.println("Replicating to the standby at " + standby + " from position " + position);
+				reported = false;
+				startAckReader(socket, in);
+
+				while (!closed && !socket.isClosed()) {
+					long end = journal.awaitDurablePosition(position, POLL_MILLIS);
+					while (position < end)
+						position = shipFrame(out, position, end);
+					out.flush();
+				}
+			} catch (IOException e) {
+				if (!closed && !reported) {
+					System.out.println("Not replicating to the standby at " + standby + ": " + e.getMessage());
+					reported = true;
+				}
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				this.socket = null;
+			}
+			if (closed)
+				return;
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	// reads the acknowledgements of the standby until the connection is closed (and then closes it, so that
+	// the shipper connects again)
+	private void startAckReader(final Socket socket, final DataInputStream in) {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						long position = in.readLong();
+						acked_position = position;
+						for (long[] frame; (frame = in_flight.peek()) != null && frame[0] <= position;)
+							in_flight.poll();
+					}
+				} catch (IOException e) {
+					// the connection is gone
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// closing anyway
+					}
+				}
+			}
+		}, "replication-acks");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	// sends one frame of the records from the given position on, and returns the position after them
+	private long shipFrame(DataOutputStream out, long from_position, long end) throws IOException {
+		count = 0;
+		Journal.Handler collect = new Journal.Handler() {
+			public void apply(String account_number, long amount_cents, long timestamp_millis, long position) {
+				accounts[count] = account_number;
+				amounts_cents[count] = amount_cents;
+				timestamps_millis[count] = timestamp_millis;
+				count++;
+			}
+
+			public void transfer(String from_account, String to_account, long amount_cents, long timestamp_millis,
+					long position) {
+				to_accounts[count] = to_account;
+				apply(from_account, amount_cents, timestamp_millis, position);
+			}
+		};
+		long position = journal.read(from_position, end, MAX_FRAME_RECORDS, collect);
+
+		out.writeInt(count);
+		out.writeLong(from_position);
+		out.writeLong(position);
+		for (int i = 0; i < count; i++) {
+			out.writeByte(to_accounts[i] == null ? RECORD : TRANSFER);
+			out.writeLong(timestamps_millis[i]);
+			out.writeLong(amounts_cents[i]);
+			out.writeUTF(accounts[i]);
+			if (to_accounts[i] != null)
+				out.writeUTF(to_accounts[i]);
+			accounts[i] = null;
+			to_accounts[i] = null;
+		}
+		in_flight.add(new long[] { position, System.nanoTime() });
+		shipped_position = position;
+		return position;
+	}
+
+}
@@ -0,0 +1,145 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Renders text reports (e.g. the account listing of printAllAccounts) into a reusable buffer, and writes the
+ * buffer out to a channel in large chunks. Fixed-width columns are padded in place, so rendering a row does
+ * not need String.format or any intermediate String.
+ *
+ * The output is the same, byte for byte, as printing the same text with System.out.println (in the default
+ * charset, with the system line separator).
+ */
+public class ReportWriter {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+	// largest number of cents whose dollar value Double.toString prints without an exponent (below 10^7)
+	private static final long PLAIN_CENTS_LIMIT = 1000000000L;
+
+	private final WritableByteChannel channel;
+	private final CharBuffer chars;
+	private final ByteBuffer bytes;
+	private final CharsetEncoder encoder;
+
+	public ReportWriter(WritableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE, Charset.defaultCharset());
+	}
+
+	public ReportWriter(WritableByteChannel channel, int buffer_size, Charset charset) {
+		this.channel = channel;
+		this.chars = CharBuffer.allocate(buffer_size);
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.bytes = ByteBuffer.allocate((int) Math.ceil(buffer_size * encoder.maxBytesPerChar()));
+	}
+
+	public ReportWriter append(String s) throws IOException {
+		if (s == null)
+			s = "null";
+		int start = 0;
+		while (start < s.length()) {
+			if (!chars.hasRemaining())
+				drain();
+			int count = Math.min(chars.remaining(), s.length() - start);
+			chars.put(s, start, start + count);
+			start += count;
+		}
+		return this;
+	}
+
+	public ReportWriter append(char c) throws IOException {
+		if (!chars.hasRemaining())
+			drain();
+		chars.put(c);
+		return this;
+	}
+
+	/**
+	 * Append s left-justified in a column of the given width, like String.format("%-&lt;width&gt;s", s):
+	 * shorter values are padded with spaces, longer ones are not cut.
+	 */
+	public ReportWriter appendPadded(String s, int width) throws IOException {
+		if (s == null)
+			s = "null";
+		append(s);
+		for (int i = s.length(); i < width; i++)
+			append(' ');
+		return this;
+	}
+
+	/**
+	 * Append an amount of money given in cents the way Double.toString prints it in dollars (e.g. 469.79,
+	 * -0.5, 0.0), without making a double or a String for it.
+	 */
+	public ReportWriter appendCents(long cents) throws IOException {
+		if (cents <= -PLAIN_CENTS_LIMIT || cents >= PLAIN_CENTS_LIMIT)
+			return append(Double.toString(cents / 100.0));
+
+		if (cents < 0) {
+			append('-');
+			cents = -cents;
+		}
+		appendDigits(cents / 100);
+		append('.');
+		int fraction = (int) (cents % 100);
+		if (fraction % 10 == 0) {
+			append((char) ('0' + fraction / 10));
+		} else {
+			append((char) ('0' + fraction / 10));
+			append((char) ('0' + fraction % 10));
+		}
+		return this;
+	}
+
+	public ReportWriter newLine() throws IOException {
+		return append(LINE_SEPARATOR);
+	}
+
+	/**
+	 * Write everything rendered so far to the channel.
+	 */
+	public void flush() throws IOException {
+		drain();
+		encoder.reset();
+		writeBytes();
+	}
+
+	private void appendDigits(long value) throws IOException {
+		if (value >= 10)
+			appendDigits(value / 10);
+		append((char) ('0' + value % 10));
+	}
+
+	// encode the rendered chars into bytes, writing the bytes out whenever they fill up
+	private void drain() throws IOException {
+		chars.flip();
+		while (true) {
+			CoderResult result = encoder.encode(chars, bytes, false);
+			if (result.isOverflow()) {
+				writeBytes();
+				continue;
+			}
+			break;
+		}
+		// an unfinished surrogate pair stays in the buffer, for the next drain
+		chars.compact();
+		if (bytes.remaining() < bytes.capacity() / 2)
+			writeBytes();
+	}
+
+	private void writeBytes() throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining())
+			channel.write(bytes);
+		bytes.clear();
+	}
+}
@@ -0,0 +1,46 @@
+package app;
+
+/**
+ * What an idempotent addTransaction call did: the transaction it was given, its result, and the balance of
+ * the account right after it. This is what the retries of the same request id get back (see
+ * SimpleBankingApp.addTransactionOutcome).
+ */
+public final class RequestOutcome {
+
+	private final String account_number;
+	private final long amount_cents;
+	private final TransactionResult result;
+	private final long balance_cents;
+
+	RequestOutcome(String account_number, long amount_cents, TransactionResult result, long balance_cents) {
+		this.account_number = account_number;
+		this.amount_cents = amount_cents;
+		this.result = result;
+		this.balance_cents = balance_cents;
+	}
+
+	public String getAccount_number() {
+		return account_number;
+	}
+
+	public long getAmount_cents() {
+		return amount_cents;
+	}
+
+	public TransactionResult getResult() {
+		return result;
+	}
+
+	/**
+	 * @return the balance of the account right after the transaction, in cents, or 0 if it was not accepted
+	 */
+	public long getBalance_cents() {
+		return balance_cents;
+	}
+
+	// true if a retry with this account and amount is the same request as the one of this outcome
+	boolean isSameRequest(String account_number, long amount_cents) {
+		return this.amount_cents == amount_cents
+				&& (this.account_number == null ? account_number == null : this.account_number.equals(account_number));
+	}
+}
@@ -0,0 +1,394 @@
+package app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import model.AccountKey;
+
+/**
+ * The front of a sharded deployment: the accounts are partitioned over several worker processes, each a
+ * BankingServer that only registers the accounts of its own shard (see AccountKey.shard and
+ * SimpleBankingApp.setShard), and this router serves the same API as a single BankingServer by forwarding each
+ * request over HTTP:
+ * <pre>
+ *   POST /transactions, GET /accounts/{number}/balance   to the shard of the account
+ *   POST /transfers                                      to the shard of both accounts; a transfer between
+ *                                                        two shards is refused (501), as it could not be atomic
+ *   GET  /accounts, GET /accounts?holder={username}      to every shard, and the results are put together
+ *   GET  /users/{username}                               to any shard: every worker loads all the users
+ *   GET  /metrics                                        to every shard, one after the other
+ * </pre>
+ * Invalid account numbers go to shard 0, which gives the same error a single server would.
+ */
+public class ShardRouter {
+
+	/**
+	 * Keep up to 256 connections alive to each worker (the JDK's HTTP client keeps 5), so that forwarding does
+	 * not reconnect, unless set on the command line. This is a system property, read once by the JDK for every
+	 * HttpURLConnection of the JVM, so this is only for the main of a process that runs the router, before it
+	 * starts it (with BankingServer.setServerProperties for the router's own server). A process that embeds the
+	 * router passes it as a launch flag instead: -Dhttp.maxConnections=256
+	 */
+	public static void setClientProperties() {
+		if (System.getProperty("http.maxConnections") == null)
+			System.setProperty("http.maxConnections", "256");
+	}
+
+	static final int CONNECT_TIMEOUT_MILLIS = 5000;
+	static final int READ_TIMEOUT_MILLIS = 60000;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	// the requests to the shards of a fan-out, apart from the executor of the requests waiting for them
+	private final ExecutorService fan_out = BankingServer.newRequestExecutor();
+	private final String[] shards;
+
+	private ShardRouter(HttpServer server, ExecutorService executor, String[] shards) {
+		this.server = server;
+		this.executor = executor;
+		this.shards = shards;
+	}
+
+	/**
+	 * Start routing to the given workers, on the given port of every interface.
+	 *
+	 * @param port 0 for any free port (see getPort)
+	 * @param shards the base URLs of the workers (e.g. http://127.0.0.1:8081), in the order of their shard
+	 */
+	public static ShardRouter start(int port, List<String> shards) throws IOException {
+		if (shards.isEmpty())
+			throw new IllegalArgumentException("no shards");
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), BankingServer.BACKLOG);
+		ExecutorService executor = BankingServer.newRequestExecutor();
+		server.setExecutor(executor);
+		final ShardRouter router = new ShardRouter(server, executor, shards.toArray(new String[0]));
+		server.createContext("/transactions", handler(new BankingServer.Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				router.postTransaction(exchange);
+			}
+		}));
+		server.createContext("/transfers", handler(new BankingServer.Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				router.postTransfer(exchange);
+			}
+		}));
+		server.createContext("/accounts", handler(new BankingServer.Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				router.getAccounts(exchange);
+			}
+		}));
+		server.createContext("/users", handler(new BankingServer.Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				router.getUser(exchange);
+			}
+		}));
+		server.createContext("/metrics", handler(new BankingServer.Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				router.getMetrics(exchange);
+			}
+		}));
+		server.start();
+		return router;
+	}
+
+	// as BankingServer.handler, and a worker that cannot be reached is a 502
+	static HttpHandler handler(final BankingServer.Endpoint endpoint) {
+		return BankingServer.handler(new BankingServer.Endpoint() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					endpoint.handle(exchange);
+				} catch (IOException e) {
+					if (exchange.getResponseCode() < 0)
+						BankingServer.send(exchange, 502, BankingServer.error("shard unavailable: " + e));
+				}
+			}
+		});
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	public String getShardUrl(int shard) {
+		return shards[shard];
+	}
+
+	public void stop(int delay_seconds) {
+		server.stop(delay_seconds);
+		executor.shutdown();
+		fan_out.shutdown();
+		try {
+			executor.awaitTermination(delay_seconds + 1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the shard of an account, or 0 if it is not a valid account number
+	 */
+	public int shardOf(String account_number) {
+		long key = AccountKey.of(account_number);
+		return key == AccountKey.NO_KEY ? 0 : AccountKey.shard(key, shards.length);
+	}
+
+	// POST /transactions: to the shard of the account, with the Idempotency-Key (if any)
+	void postTransaction(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			BankingServer.send(exchange, 405, BankingServer.error("use POST"));
+			return;
+		}
+		Map<String, String> parameters = BankingServer.parameters(exchange);
+		String account_number = parameters.get("account");
+		String path = "/transactions?account=" + encode(account_number) + "&amount=" + encode(parameters.get("amount"));
+		relay(exchange, forward(shardOf(account_number), "POST", path,
+				exchange.getRequestHeaders().getFirst("Idempotency-Key")));
+	}
+
+	// POST /transfers: to the shard of both accounts
+	void postTransfer(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			BankingServer.send(exchange, 405, BankingServer.error("use POST"));
+			return;
+		}
+		Map<String, String> parameters = BankingServer.parameters(exchange);
+		String from = parameters.get("from");
+		String to = parameters.get("to");
+		int shard = shardOf(from);
+		if (shard != shardOf(to)) {
+			BankingServer.send(exchange, 501, BankingServer.error("CROSS_SHARD_TRANSFER"));
+			return;
+		}
+		relay(exchange, forward(shard, "POST", "/transfers?from=" + encode(from) + "&to=" + encode(to) + "&amount="
+				+ encode(parameters.get("amount")), null));
+	}
+
+	// GET /accounts/{number}/balance to one shard, GET /accounts and /accounts?holder= to all of them
+	void getAccounts(HttpExchange exchange) throws IOException {
+		if (!"GET".equals(exchange.getRequestMethod())) {
+			BankingServer.send(exchange, 405, BankingServer.error("use GET"));
+			return;
+		}
+		String raw_path = exchange.getRequestURI().getRawPath();
+		String raw_query = exchange.getRequestURI().getRawQuery();
+		String[] path = raw_path.split("/");
+		if (path.length == 4 && path[3].equals("balance")) {
+			relay(exchange, forward(shardOf(BankingServer.decodePath(path[2])), "GET", raw_path, null));
+			return;
+		}
+		if (path.length != 2) {
+			BankingServer.send(exchange, 404, BankingServer.error("not found"));
+			return;
+		}
+
+		if (raw_query != null && BankingServer.parameters(exchange).get("holder") != null) {
+			// the accounts of one user: small, so the shards are asked in parallel
+			List<Response> responses = forwardToAll("GET", raw_path + "?" + raw_query);
+			StringBuilder json = new StringBuilder(256);
+			json.append('[');
+			Response not_found = null;
+			boolean found = false;
+			for (Response response : responses) {
+				if (response.status != 200) {
+					not_found = response;
+					continue;
+				}
+				found = true;
+				String elements = new String(response.body, StandardCharsets.UTF_8).trim();
+				elements = elements.substring(1, elements.length() - 1);
+				if (!elements.isEmpty()) {
+					if (json.length() > 1)
+						json.append(',');
+					json.append(elements);
+				}
+			}
+			if (!found) {
+				relay(exchange, not_found);
+				return;
+			}
+			BankingServer.send(exchange, 200, json.append(']').toString());
+			return;
+		}
+
+		// every account: the list of each shard is streamed through in turn, without the brackets
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write('[');
+			boolean any = false;
+			for (int shard = 0; shard < shards.length; shard++) {
+				HttpURLConnection connection = open(shard, "GET", raw_path, null);
+				try (InputStream in = connection.getInputStream()) {
+					any |= copyElements(in, out, any);
+				}
+			}
+			out.write(']');
+		}
+	}
+
+	// GET /users/{username}: every worker has every user, so any shard will do
+	void getUser(HttpExchange exchange) throws IOException {
+		String raw_path = exchange.getRequestURI().getRawPath();
+		relay(exchange, forward(Math.floorMod(raw_path.hashCode(), shards.length), exchange.getRequestMethod(),
+				raw_path, null));
+	}
+
+	// GET /metrics: the metrics of every shard, one after the other
+	void getMetrics(HttpExchange exchange) throws IOException {
+		if (!"GET".equals(exchange.getRequestMethod())) {
+			BankingServer.send(exchange, 405, BankingServer.error("use GET"));
+			return;
+		}
+		List<Response> responses = forwardToAll("GET", "/metrics");
+		StringBuilder text = new StringBuilder();
+		for (int shard = 0; shard < shards.length; shard++) {
+			text.append("# shard ").append(shard).append(' ').append(shards[shard]).append('\n');
+			text.append(new String(responses.get(shard).body, StandardCharsets.UTF_8));
+		}
+		byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	static final class Response {
+		final int status;
+		final String content_type;
+		final byte[] body;
+
+		Response(int status, String content_type, byte[] body) {
+			this.status = status;
+			this.content_type = content_type;
+			this.body = body;
+		}
+	}
+
+	HttpURLConnection open(int shard, String method, String path, String idempotency_key) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(shards[shard] + path).openConnection();
+		connection.setRequestMethod(method);
+		connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+		connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+		if (idempotency_key != null)
+			connection.setRequestProperty("Idempotency-Key", idempotency_key);
+		if ("POST".equals(method)) {
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(0);
+		}
+		return connection;
+	}
+
+	Response forward(int shard, String method, String path, String idempotency_key) throws IOException {
+		HttpURLConnection connection = open(shard, method, path, idempotency_key);
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		byte[] body = in == null ? new byte[0] : BankingServer.readBody(in);
+		if (in != null)
+			in.close(); // read to the end, so the connection is kept alive for the next request
+		return new Response(status, connection.getContentType(), body);
+	}
+
+	List<Response> forwardToAll(final String method, final String path) throws IOException {
+		List<Future<Response>> futures = new ArrayList<Future<Response>>(shards.length);
+		for (int shard = 0; shard < shards.length; shard++) {
+			final int index = shard;
+			futures.add(fan_out.submit(new Callable<Response>() {
+				public Response call() throws IOException {
+					return forward(index, method, path, null);
+				}
+			}));
+		}
+		List<Response> responses = new ArrayList<Response>(shards.length);
+		for (Future<Response> future : futures) {
+			try {
+				responses.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while waiting for the shards", e);
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+		}
+		return responses;
+	}
+
+	static void relay(HttpExchange exchange, Response response) throws IOException {
+		if (response.content_type != null)
+			exchange.getResponseHeaders().set("Content-Type", response.content_type);
+		exchange.sendResponseHeaders(response.status, response.body.length == 0 ? -1 : response.body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(response.body);
+		}
+	}
+
+	/**
+	 * Copy the elements of a JSON array (everything between its outer brackets) from in to out.
+	 *
+	 * @param comma true to write a comma before the elements, if there are any
+	 * @return true if there were any elements
+	 */
+	static boolean copyElements(InputStream in, OutputStream out, boolean comma) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		boolean opened = false;
+		boolean any = false;
+		int held = -1; // the last byte read, held back in case it is the closing bracket
+		for (int n; (n = in.read(buffer)) > 0;) {
+			int start = 0;
+			if (!opened) {
+				while (start < n && buffer[start] != '[')
+					start++;
+				if (start == n)
+					continue;
+				opened = true;
+				start++;
+			}
+			if (start == n)
+				continue;
+			// everything but the last byte of the buffer is written, after the byte held from before
+			if (!any && (held >= 0 || n - 1 > start)) {
+				if (comma)
+					out.write(',');
+				any = true;
+			}
+			if (held >= 0)
+				out.write(held);
+			out.write(buffer, start, n - 1 - start);
+			held = buffer[n - 1] & 0xFF;
+		}
+		// held is now the closing bracket, which is left out
+		return any;
+	}
+
+	static String encode(String value) {
+		if (value == null)
+			return "";
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
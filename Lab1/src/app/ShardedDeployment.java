@@ -0,0 +1,136 @@
+package app;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the banking API as several local processes: one BankingServer worker per shard, each started as
+ * <pre>
+ *   java -cp ... app.BankingServer {port} {journal or -} {index}/{count}
+ * </pre>
+ * and a ShardRouter in this process in front of them. Each worker has a journal of its own (shard-{index}.journal
+ * in the journal directory, if there is one), so the shards fail and recover independently.
+ */
+public class ShardedDeployment {
+
+	static final long STARTUP_TIMEOUT_MILLIS = 30000;
+
+	private final List<Process> workers;
+	private final ShardRouter router;
+
+	private ShardedDeployment(List<Process> workers, ShardRouter router) {
+		this.workers = workers;
+		this.router = router;
+	}
+
+	/**
+	 * Start the workers, wait until they all serve requests, then start the router.
+	 *
+	 * @param port of the router, 0 for any free port
+	 * @param shards the number of worker processes
+	 * @param journal_directory where the workers keep their journal, or null for none
+	 */
+	public static ShardedDeployment start(int port, int shards, String journal_directory) throws IOException {
+		if (shards < 1)
+			throw new IllegalArgumentException("shards: " + shards);
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> workers = new ArrayList<Process>(shards);
+		List<String> urls = new ArrayList<String>(shards);
+		try {
+			for (int i = 0; i < shards; i++) {
+				int worker_port = freePort();
+				String journal = journal_directory == null ? "-"
+						: new File(journal_directory, "shard-" + i + ".journal").getPath();
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						BankingServer.class.getName(), Integer.toString(worker_port), journal, i + "/" + shards);
+				builder.inheritIO();
+				workers.add(builder.start());
+				urls.add("http://127.0.0.1:" + worker_port);
+			}
+			for (int i = 0; i < shards; i++)
+				awaitWorker(workers.get(i), urls.get(i));
+			return new ShardedDeployment(workers, ShardRouter.start(port, urls));
+		} catch (IOException | RuntimeException e) {
+			for (Process worker : workers)
+				worker.destroy();
+			throw e;
+		}
+	}
+
+	// a free port right now: the worker binds it soon after, and fails to start in the unlikely case it was taken
+	static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	// polls GET /metrics until the worker answers
+	static void awaitWorker(Process worker, String url) throws IOException {
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+		while (true) {
+			try {
+				HttpURLConnection connection = (HttpURLConnection) new URL(url + "/metrics").openConnection();
+				connection.setConnectTimeout(1000);
+				int status = connection.getResponseCode();
+				connection.getInputStream().close();
+				if (status == 200)
+					return;
+			} catch (IOException e) {
+				// not listening yet
+			}
+			if (!worker.isAlive())
+				throw new IOException("the worker for " + url + " exited with " + worker.exitValue());
+			if (System.currentTimeMillis() > deadline)
+				throw new IOException("the worker for " + url + " did not start in time");
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while waiting for " + url, e);
+			}
+		}
+	}
+
+	public ShardRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * Stop the router, then the workers (which close their journal on the way out).
+	 */
+	public void stop() {
+		router.stop(0);
+		for (Process worker : workers)
+			worker.destroy();
+		for (Process worker : workers) {
+			try {
+				worker.waitFor();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	//////////////////////////////////////////////////////
+	public static void main(String[] args) throws IOException {
+		// optional: the port of the router, the number of shards, and the directory of the journals
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : BankingServer.DEFAULT_PORT;
+		int shards = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		BankingServer.setServerProperties();
+		ShardRouter.setClientProperties();
+		final ShardedDeployment deployment = start(port, shards, args.length > 2 ? args[2] : null);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				deployment.stop();
+			}
+		}));
+		System.out.println("Routing the banking API on port " + deployment.getRouter().getPort() + " to " + shards
+				+ " shards");
+	}
+}
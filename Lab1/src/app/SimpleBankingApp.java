@@ -1,43 +1,138 @@
 package app;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import model.Account;
+import model.AccountBalance;
+import model.AccountKey;
+import model.DailyRollups;
+import model.Money;
 import model.Transaction;
+import model.TransactionStore;
 import model.User;
+import utils.DedupeCache;
+import utils.MonotonicClock;
 
 public class SimpleBankingApp {
 	public static Vector<User> users = new Vector<User>();
 	public static Vector<Account> accounts  = new Vector<Account>();
-	public static Vector<Transaction> transactions =  new Vector<Transaction>();
+	// all transactions and the running balance of every account, partitioned by account number (see Ledger)
+	public static Ledger ledger = new Ledger();
+	// index of the users by (normalized) username, kept in step with users by registerUser
+	static ConcurrentHashMap<String, User> users_by_username = new ConcurrentHashMap<String, User>();
+	// index of the accounts by (normalized) username of their holder, kept in step with accounts by registerAccount.
+	// Each list is guarded by its own lock.
+	static ConcurrentHashMap<String, List<Account>> accounts_by_holder = new ConcurrentHashMap<String, List<Account>>();
+	// where the balances are checkpointed (next to the journal), and the thread that does it periodically
+	static String checkpoint_path;
+	static ScheduledExecutorService checkpointer;
+	// ships the journal to a hot standby, if there is one (see startReplication)
+	static Replicator replicator;
+	static final long CHECKPOINT_PERIOD_MILLIS = 60 * 1000;
+	// the outcome of the idempotent addTransaction calls, by request id, for at least 10 minutes (and at most
+	// 2 million request ids)
+	static final long DEDUPE_WINDOW_MILLIS = 10 * 60 * 1000;
+	static final int DEDUPE_MAX_REQUESTS = 1000000;
+	static DedupeCache<String, RequestOutcome> requests = new DedupeCache<String, RequestOutcome>(
+			DEDUPE_WINDOW_MILLIS, DEDUPE_MAX_REQUESTS);
+	// the part of the accounts this process holds, when they are partitioned over several (see ShardRouter)
+	static int shard_index = 0;
+	static int shard_count = 1;
 	
 	public static void loadUserData() {
 		// structure of each record: username (email address), password, first_name, last_name, mobile_number
 		
 		// in the ideal case (real deployment of the app), we will read from file or database, but let's hard-code for now
 		User aUser = new User("mike", "my_passwd", "Mike", "Smith", "07771234567");
-		users.add(aUser);
+		registerUser(aUser);
 		
 		aUser = new User("james.cameron@gmail.com", "angel", "James", "Cameron",  "07777654321");
-		users.add(aUser);
+		registerUser(aUser);
 		
 		aUser = new User("julia.roberts@gmail.com", "change_me",   "Julia", "roberts",   "07770123456");
-		users.add(aUser); 
+		registerUser(aUser); 
 		
 	}
 	
+	/**
+	 * Add a user to the system, unless there is already a user with the same username. Usernames are 
+	 * email addresses, so they are compared ignoring case and surrounding spaces. Safe to call from 
+	 * several threads at once: for a given username, exactly one registration wins.
+	 * 
+	 * @param aUser
+	 * @return true if the user was added, false if the username is already taken
+	 */
+	public static boolean registerUser(User aUser) {
+		if (users_by_username.putIfAbsent(normalizeUsername(aUser.getUsername()), aUser) != null)
+			return false;
+		users.add(aUser);
+		return true;
+	}
+	
+	/**
+	 * Find a user by username (ignoring case and surrounding spaces), without going over all users.
+	 * 
+	 * @param username
+	 * @return the user, or null if there is no user with that username
+	 */
+	public static User findUser(String username) {
+		return username == null ? null : users_by_username.get(normalizeUsername(username));
+	}
+	
+	static String normalizeUsername(String username) {
+		return username.trim().toLowerCase(Locale.ROOT);
+	}
+	
 	public static void printAllUsers() {
-		System.out.println("There are: " + users.size() + " users in the system.");	
-		System.out.println(String.format("%-25s| %-15s| %-15s| %-15s| %-15s", 
-				"username", "password", "first_name", "last_name", "mobile_number"));
-		System.out.println("-------------------------------------------------------------------------------------------");
-		for  (int i = 0; i < users.size(); i++) 
-            System.out.println(users.get(i).toString());	
-		System.out.println();
+		try {
+			System.out.flush();
+			printAllUsers(Channels.newChannel(System.out));
+			System.out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Same as printAllUsers(), to any channel (e.g. a file). The rows are rendered into a buffer and written
+	 * out in large chunks.
+	 */
+	public static void printAllUsers(WritableByteChannel channel) throws IOException {
+		long start = System.nanoTime();
+		ReportWriter report = new ReportWriter(channel);
+		report.append("There are: ").append(Integer.toString(users.size())).append(" users in the system.").newLine();
+		report.appendPadded("username", 25).append("| ").appendPadded("password", 15).append("| ")
+				.appendPadded("first_name", 15).append("| ").appendPadded("last_name", 15).append("| ")
+				.appendPadded("mobile_number", 15).newLine();
+		report.append("-------------------------------------------------------------------------------------------").newLine();
+		for  (int i = 0; i < users.size(); i++) {
+			User aUser = users.get(i);
+			// same layout as User.toString()
+			report.appendPadded(aUser.getUsername(), 25).append("| ").appendPadded(aUser.getPassword(), 15).append("| ")
+					.appendPadded(aUser.getFirst_name(), 15).append("| ").appendPadded(aUser.getLast_name(), 15).append("| ")
+					.appendPadded(aUser.getMobile_number(), 15).newLine();
+		}
+		report.newLine();
+		report.flush();
+		Metrics.PRINT_ALL_USERS.record(start);
 	}
 	
 	public static void loadAccountData()  {
@@ -46,67 +141,775 @@ public class SimpleBankingApp {
 
 		// in the ideal case, we will read from file or database, but let's hard-code for now
 		Account anAccount;
+		SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
 		try {
-			anAccount = new Account("5495-1234", "mike", "Standard", new SimpleDateFormat("dd/MM/yyyy").parse("20/08/2019"));
-			accounts.add(anAccount);
+			anAccount = new Account("5495-1234", "mike", "Standard", dateFormat.parse("20/08/2019"));
+			registerAccount(anAccount);
 			
-			anAccount = new Account("5495-1239", "mike", "Standard", new SimpleDateFormat("dd/MM/yyyy").parse("20/08/2020"));
-			accounts.add(anAccount);
+			anAccount = new Account("5495-1239", "mike", "Standard", dateFormat.parse("20/08/2020"));
+			registerAccount(anAccount);
 
-			anAccount = new Account("5495-1291", "mike", "Saving", new SimpleDateFormat("dd/MM/yyyy").parse("21/07/2019"));
-			accounts.add(anAccount);
+			anAccount = new Account("5495-1291", "mike", "Saving", dateFormat.parse("21/07/2019"));
+			registerAccount(anAccount);
 
-			anAccount = new Account("5495-6789", "David.McDonald@gmail.com", "Saving", new SimpleDateFormat("dd/MM/yyyy").parse("20/08/2019"));
-			accounts.add(anAccount);
+			anAccount = new Account("5495-6789", "David.McDonald@gmail.com", "Saving", dateFormat.parse("20/08/2019"));
+			registerAccount(anAccount);
 
 		} catch (ParseException e) {			
 			e.printStackTrace();
 		}  
 	}
 	
+	/**
+	 * Load users from a CSV (or TSV, if the name ends with .tsv) file, streaming it so that it never has to
+	 * fit in memory. Same structure as above: username, password, first_name, last_name, mobile_number
+	 * 
+	 * @param path of the file
+	 * @param has_header true if the first line holds the column names
+	 * @return the number of users loaded (users whose username is already taken are skipped)
+	 * @throws IOException if the file cannot be read or has a row that cannot be parsed; the users of the rows
+	 * before that one are loaded (see DataLoader)
+	 */
+	public static long loadUserData(String path, boolean has_header) throws IOException {
+		long start = System.nanoTime();
+		final long[] duplicates = new long[1];
+		long rows = DataLoader.forFile(path, has_header).withProgress(DataLoader.CONSOLE_PROGRESS, 1000000)
+				.forEachRow(path, new DataLoader.RowHandler() {
+					public void handle(DataLoader.Row row) {
+						if (!registerUser(new User(row.field(0), row.field(1), row.field(2), row.field(3), row.field(4))))
+							duplicates[0]++;
+					}
+				});
+		if (duplicates[0] > 0)
+			System.out.println("Skipped " + duplicates[0] + " users whose username was already taken.");
+		Metrics.LOAD_USERS.record(start);
+		return rows - duplicates[0];
+	}
+	
+	/**
+	 * Load accounts from a CSV (or TSV) file, streaming it. Same structure as above: account number, 
+	 * username of account holder, account type, account opening date (dd/MM/yyyy).
+	 * The accounts are opened in the ledger in batches (see Ledger.openAccounts).
+	 * 
+	 * @param path of the file
+	 * @param has_header true if the first line holds the column names
+	 * @return the number of accounts loaded (accounts whose number is already taken, or is not a valid account
+	 * number, are skipped)
+	 * @throws IOException if the file cannot be read or has a row that cannot be parsed; the accounts of the
+	 * rows before that one are loaded (see DataLoader)
+	 */
+	public static long loadAccountData(String path, boolean has_header) throws IOException {
+		long start = System.nanoTime();
+		final int batch_size = 8192;
+		final Account[] batch = new Account[batch_size];
+		final String[] account_numbers = new String[batch_size];
+		final boolean[] opened = new boolean[batch_size];
+		final int[] count = new int[1];
+		final long[] skipped = new long[1];
+		long rows;
+		try {
+			rows = DataLoader.forFile(path, has_header).withProgress(DataLoader.CONSOLE_PROGRESS, 1000000)
+					.forEachRow(path, new DataLoader.RowHandler() {
+						public void handle(DataLoader.Row row) {
+							Account account = new Account(row.field(0), row.field(1), row.field(2), row.date(3));
+							if (!holds(AccountKey.of(account.getAccount_number()))) {
+								skipped[0]++;
+								return;
+							}
+							batch[count[0]] = account;
+							account_numbers[count[0]] = account.getAccount_number();
+							if (++count[0] == batch_size) {
+								skipped[0] += registerAccounts(batch, account_numbers, opened, count[0]);
+								count[0] = 0;
+							}
+						}
+					});
+		} finally {
+			// also when a row cannot be parsed, so that every row before it is loaded, as with the other files
+			skipped[0] += registerAccounts(batch, account_numbers, opened, count[0]);
+		}
+		if (skipped[0] > 0)
+			System.out.println("Skipped " + skipped[0] + " accounts whose number was already taken or invalid.");
+		Metrics.LOAD_ACCOUNTS.record(start);
+		return rows - skipped[0];
+	}
+	
+	/**
+	 * Load transactions from a CSV (or TSV) file, streaming it. Structure of each record: account number, 
+	 * amount in dollars (e.g. -50.21), date and time of the transaction (dd/MM/yyyy HH:mm:ss).
+	 * The transactions are added to the ledger in batches. Each one is validated as by addTransaction: those of
+	 * accounts that do not exist, without an account number or with an amount of zero are rejected (and counted
+	 * in the metrics, see getRejectedTransactionCount).
+	 * 
+	 * @param path of the file
+	 * @param has_header true if the first line holds the column names
+	 * @return the number of transactions loaded
+	 * @throws IOException if the file cannot be read or has a row that cannot be parsed; the transactions of
+	 * the rows before that one are in the ledger (see DataLoader)
+	 */
+	public static long loadTransactionData(String path, boolean has_header) throws IOException {
+		long start = System.nanoTime();
+		final int batch_size = 8192;
+		final String[] account_numbers = new String[batch_size];
+		final long[] amounts_cents = new long[batch_size];
+		final long[] timestamps_millis = new long[batch_size];
+		final int[] count = new int[1];
+		final long[] rejected = new long[1];
+		
+		long rows;
+		try {
+			rows = DataLoader.forFile(path, has_header).withProgress(DataLoader.CONSOLE_PROGRESS, 1000000)
+					.forEachRow(path, new DataLoader.RowHandler() {
+						public void handle(DataLoader.Row row) {
+							String account_number = row.field(0);
+							long amount_cents = row.cents(1);
+							long timestamp_millis = row.timestampMillis(2);
+							if (!check(account_number, amount_cents).isAccepted()) {
+								rejected[0]++;
+								return;
+							}
+							account_numbers[count[0]] = account_number;
+							amounts_cents[count[0]] = amount_cents;
+							timestamps_millis[count[0]] = timestamp_millis;
+							if (++count[0] == batch_size) {
+								ledger.appendBatch(account_numbers, amounts_cents, timestamps_millis, count[0]);
+								count[0] = 0;
+							}
+						}
+					});
+		} finally {
+			// also when a row cannot be parsed, so that every row before it is loaded, as with the other files
+			ledger.appendBatch(account_numbers, amounts_cents, timestamps_millis, count[0]);
+		}
+		if (rejected[0] > 0)
+			System.out.println("Rejected " + rejected[0] + " transactions of accounts that do not exist, or of no amount.");
+		Metrics.LOAD_TRANSACTIONS.record(start);
+		return rows - rejected[0];
+	}
+	
+	/**
+	 * Add an account to the system (it is opened in the ledger, so that transactions can be added to it), 
+	 * and to the list of accounts of its holder, unless there is already an account with the same number.
+	 * 
+	 * @param anAccount
+	 * @return true if the account was added, false if the account number is already taken, is not a valid
+	 * account number (digits and dashes, up to 16 characters: see AccountKey) or belongs to another shard
+	 * (see setShard)
+	 */
+	public static boolean registerAccount(Account anAccount) {
+		if (!holds(AccountKey.of(anAccount.getAccount_number())) || !ledger.openAccount(anAccount.getAccount_number()))
+			return false;
+		addAccount(anAccount);
+		return true;
+	}
+	
+	// registers a batch of accounts that this shard holds, and returns how many were skipped as already taken
+	private static int registerAccounts(Account[] batch, String[] account_numbers, boolean[] opened, int count) {
+		ledger.openAccounts(account_numbers, opened, count);
+		int skipped = 0;
+		for (int i = 0; i < count; i++) {
+			if (opened[i])
+				addAccount(batch[i]);
+			else
+				skipped++;
+			batch[i] = null;
+		}
+		return skipped;
+	}
+	
+	// whether the account number is valid and its account belongs to this shard
+	private static boolean holds(long key) {
+		return key != AccountKey.NO_KEY && (shard_count <= 1 || AccountKey.shard(key, shard_count) == shard_index);
+	}
+	
+	// adds an account opened in the ledger to the list of accounts of its holder, and to all the accounts
+	private static void addAccount(Account anAccount) {
+		List<Account> holderAccounts = accounts_by_holder.get(normalizeUsername(anAccount.getUsername_of_account_holder()));
+		if (holderAccounts == null) {
+			List<Account> created = new ArrayList<Account>();
+			holderAccounts = accounts_by_holder.putIfAbsent(normalizeUsername(anAccount.getUsername_of_account_holder()), created);
+			if (holderAccounts == null)
+				holderAccounts = created;
+		}
+		synchronized (holderAccounts) {
+			holderAccounts.add(anAccount);
+		}
+		accounts.add(anAccount);
+	}
+	
+	/**
+	 * Only hold the accounts of one shard out of several from now on: the others are skipped by registerAccount
+	 * (and so by the loaders), and their transactions are rejected as for an unknown account. Users are not
+	 * partitioned. To be called before loading any account.
+	 * 
+	 * @param index of the shard, from 0 to count - 1
+	 * @param count the number of shards, 1 for all the accounts
+	 */
+	public static void setShard(int index, int count) {
+		if (count < 1 || index < 0 || index >= count)
+			throw new IllegalArgumentException("shard " + index + " of " + count);
+		shard_index = index;
+		shard_count = count;
+	}
+	
+	/**
+	 * Get the accounts held by a user, without going over all accounts. Note that the index is by the holder
+	 * at the time the account was registered.
+	 * 
+	 * @param username of the account holder (case and surrounding spaces are ignored)
+	 * @return a copy of the list of accounts of the user, in the order they were registered
+	 */
+	public static List<Account> getAccountsOf(String username) {
+		List<Account> holderAccounts = username == null ? null : accounts_by_holder.get(normalizeUsername(username));
+		if (holderAccounts == null)
+			return new ArrayList<Account>();
+		synchronized (holderAccounts) {
+			return new ArrayList<Account>(holderAccounts);
+		}
+	}
+	
+	/**
+	 * Get every account of a user with its balance, e.g. for the customer dashboard. This takes time in
+	 * proportion to the number of accounts of that user only.
+	 * 
+	 * @param username of the account holder (case and surrounding spaces are ignored)
+	 * @return one AccountBalance per account of the user
+	 */
+	public static List<AccountBalance> getPortfolio(String username) {
+		List<Account> holderAccounts = getAccountsOf(username);
+		List<AccountBalance> portfolio = new ArrayList<AccountBalance>(holderAccounts.size());
+		for (Account anAccount : holderAccounts)
+			portfolio.add(new AccountBalance(anAccount, ledger.getBalanceCents(anAccount.getAccount_number())));
+		return portfolio;
+	}
+	
 	public static void printAllAccounts() {
-		System.out.println("There are: " + accounts.size() + " accounts in the system.");
+		try {
+			System.out.flush();
+			printAllAccounts(Channels.newChannel(System.out));
+			System.out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Same as printAllAccounts(), to any channel (e.g. a file). The rows are rendered into a buffer and 
+	 * written out in large chunks, and the opening dates are only formatted once per account.
+	 */
+	public static void printAllAccounts(WritableByteChannel channel) throws IOException {
+		long start = System.nanoTime();
+		ReportWriter report = new ReportWriter(channel);
+		report.append("There are: ").append(Integer.toString(accounts.size())).append(" accounts in the system.").newLine();
 		//System.out.println("Account_number | username_of_account_holder | account_type | account_opening_date");
 
-		System.out.println(String.format("%-10s| %-30s| %-10s| %-15s| %-15s", 
-				"Account #", "username_of_account_holder", "type", "opening_date", "Balance"));
-		System.out.println("--------------------------------------------------------------------------------");
+		report.appendPadded("Account #", 10).append("| ").appendPadded("username_of_account_holder", 30).append("| ")
+				.appendPadded("type", 10).append("| ").appendPadded("opening_date", 15).append("| ")
+				.appendPadded("Balance", 15).newLine();
+		report.append("--------------------------------------------------------------------------------").newLine();
 		
-		for  (int i = 0; i < accounts.size(); i++) 
-            System.out.println(accounts.get(i).toString() + "| $" + getBalance(accounts.get(i).getAccount_number()));
+		for  (int i = 0; i < accounts.size(); i++) {
+			Account anAccount = accounts.get(i);
+			// same layout as Account.toString()
+			report.appendPadded(anAccount.getAccount_number(), 9).append(" | ")
+					.appendPadded(anAccount.getUsername_of_account_holder(), 29).append(" | ")
+					.appendPadded(anAccount.getAccount_type(), 9).append(" | ")
+					.appendPadded(anAccount.getFormattedOpening_date(), 15)
+					.append("| $").appendCents(ledger.getBalanceCents(anAccount.getAccount_number())).newLine();
+		}
 		
-		System.out.println();
+		report.newLine();
+		report.flush();
+		Metrics.PRINT_ALL_ACCOUNTS.record(start);
+	}
+	
+	/**
+	 * Add a transaction to an existing account. Transactions of an account that does not exist are rejected
+	 * (and counted, see getRejectedTransactionCount); the check is a single lookup in the ledger. A missing
+	 * account number or an amount of zero is rejected too, as by addTransactions.
+	 * 
+	 * @param account_number
+	 * @param amount positive for a deposit, negative for a withdrawal
+	 * @return true if the transaction was added, false if it was rejected
+	 */
+	public static boolean addTransaction(String account_number, double amount) { 
+		return addTransactionCents(account_number, Money.toCents(amount));
 	}
 	
-	public static void addTransaction(String account_number, double amount) { 
-		Transaction aTransaction =  new Transaction(account_number, amount, Calendar.getInstance().getTime());
-		transactions.add(aTransaction);
+	/**
+	 * Same as addTransaction, with the amount given in cents (a deposit of $50.21 is 5021 cents)
+	 */
+	public static boolean addTransactionCents(String account_number, long amount_cents) { 
+		return addTransactionOutcome(account_number, amount_cents).getResult().isAccepted();
 	}
 	
 	/**
-	 * Calculate the balance of a given account (by its number). To do that, it needs to go over all transactions
-	 * that match the account and get their sum total. For example, if an account has only two transactions in the 
-	 * system, with values = $10.79 and $-140, the balance would be $-129.21
+	 * Same as addTransactionCents, and also gives the balance of the account right after the transaction
+	 */
+	public static RequestOutcome addTransactionOutcome(String account_number, long amount_cents) {
+		long start = System.nanoTime();
+		try {
+			TransactionResult result = check(account_number, amount_cents);
+			if (!result.isAccepted())
+				return new RequestOutcome(account_number, amount_cents, result, 0);
+			long[] balance_cents_after = new long[1];
+			ledger.append(account_number, amount_cents, MonotonicClock.currentTimeMillis(), balance_cents_after);
+			return new RequestOutcome(account_number, amount_cents, result, balance_cents_after[0]);
+		} finally {
+			Metrics.ADD_TRANSACTION.record(start);
+		}
+	}
+	
+	// the one validation of a transaction, for addTransaction, addTransactions and loadTransactionData:
+	// ACCEPTED if it can be added, or why not (which is counted in the metrics)
+	private static TransactionResult check(String account_number, long amount_cents) {
+		if (account_number == null || account_number.isEmpty()) {
+			Metrics.rejected_invalid.increment();
+			return TransactionResult.INVALID_ACCOUNT_NUMBER;
+		}
+		if (amount_cents == 0) {
+			Metrics.rejected_invalid.increment();
+			return TransactionResult.INVALID_AMOUNT;
+		}
+		if (!ledger.isOpen(account_number)) {
+			Metrics.rejected_unknown_account.increment();
+			return TransactionResult.UNKNOWN_ACCOUNT;
+		}
+		return TransactionResult.ACCEPTED;
+	}
+	
+	/**
+	 * Same as addTransaction, but safe to call again with the same request id, e.g. when a client retries
+	 * after a timeout: only the first call with a given id adds the transaction, and the calls after it get its
+	 * result (even if they were made while it was in progress). A call that reuses the id of a transaction with
+	 * another account or amount is rejected with REQUEST_ID_REUSED, and adds nothing. Request ids are
+	 * remembered for at least 10 minutes; a request whose call failed with an exception can be tried again
+	 * right away.
+	 * 
+	 * @param request_id chosen by the client, unique for each transaction it means to add
+	 * @param account_number
+	 * @param amount positive for a deposit, negative for a withdrawal
+	 * @return ACCEPTED, or why the transaction was rejected
+	 */
+	public static TransactionResult addTransaction(String request_id, String account_number, double amount) {
+		return addTransactionCents(request_id, account_number, Money.toCents(amount));
+	}
+	
+	/**
+	 * Same as addTransaction(request_id, account_number, amount), with the amount given in cents
+	 */
+	public static TransactionResult addTransactionCents(String request_id, String account_number, long amount_cents) {
+		return addTransactionOutcome(request_id, account_number, amount_cents).getResult();
+	}
+	
+	/**
+	 * Same as addTransactionCents(request_id, account_number, amount_cents), and also gives the balance of the
+	 * account right after the transaction. A retry gets the outcome of the first call, balance included, not
+	 * the balance the account has by the time of the retry.
+	 */
+	public static RequestOutcome addTransactionOutcome(String request_id, String account_number, long amount_cents) {
+		if (request_id == null)
+			throw new IllegalArgumentException("request_id is missing");
+		DedupeCache.Entry<RequestOutcome> entry;
+		while (true) {
+			entry = new DedupeCache.Entry<RequestOutcome>();
+			DedupeCache.Entry<RequestOutcome> first = requests.claim(request_id, entry);
+			if (first == null)
+				break;
+			Metrics.duplicate_requests.increment();
+			try {
+				RequestOutcome outcome = first.await();
+				if (outcome != null) {
+					if (outcome.isSameRequest(account_number, amount_cents))
+						return outcome;
+					return new RequestOutcome(account_number, amount_cents, TransactionResult.REQUEST_ID_REUSED, 0);
+				}
+				// the first request failed and was forgotten: claim the id again
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while waiting for request " + request_id);
+			}
+		}
+		
+		RequestOutcome outcome;
+		try {
+			outcome = addTransactionOutcome(account_number, amount_cents);
+		} catch (RuntimeException e) {
+			requests.forget(request_id, entry);
+			entry.complete(null);
+			throw e;
+		}
+		entry.complete(outcome);
+		return outcome;
+	}
+	
+	/**
+	 * @return the number of transactions rejected so far because their account does not exist
+	 */
+	public static long getRejectedTransactionCount() {
+		return Metrics.rejected_unknown_account.sum();
+	}
+	
+	/**
+	 * Add a whole batch of transactions (e.g. the rows of a payment file) in one go. Every transaction is 
+	 * validated as by addTransaction, and the valid ones are all given the same timestamp (their date is set)
+	 * and added to the ledger together, which takes far fewer locks and disk flushes than calling
+	 * addTransaction for each one. As with Ledger.append(Transaction), each one added is given its sequence
+	 * number in the ledger.
+	 * 
+	 * @param batch the transactions to add; their dates are ignored and overwritten
+	 * @return the result of each transaction, in the same order as the batch
+	 */
+	public static TransactionResult[] addTransactions(List<Transaction> batch) {
+		long start = System.nanoTime();
+		int count = batch.size();
+		TransactionResult[] results = new TransactionResult[count];
+		String[] account_numbers = new String[count];
+		long[] amounts_cents = new long[count];
+		long[] sequences = new long[count];
+		long now_nanos = MonotonicClock.currentTimeNanos();
+		
+		for (int i = 0; i < count; i++) {
+			Transaction aTransaction = batch.get(i);
+			results[i] = check(aTransaction.getAccount_number(), aTransaction.getTransaction_amount_cents());
+			if (results[i].isAccepted()) {
+				aTransaction.setTimestamp_nanos(now_nanos);
+				account_numbers[i] = aTransaction.getAccount_number();
+				amounts_cents[i] = aTransaction.getTransaction_amount_cents();
+			}
+		}
+		
+		ledger.appendBatch(account_numbers, amounts_cents, count, MonotonicClock.toMillis(now_nanos), sequences);
+		for (int i = 0; i < count; i++) {
+			if (results[i].isAccepted())
+				batch.get(i).setSequence(sequences[i]);
+		}
+		Metrics.ADD_TRANSACTIONS.record(start);
+		return results;
+	}
+	
+	/**
+	 * Move money from one account to another in one step: the withdrawal from the first account and the
+	 * deposit to the second are added together, or not at all (see Ledger.transfer). A transfer never takes
+	 * the first account below zero.
+	 * 
+	 * @param from_account
+	 * @param to_account
+	 * @param amount_cents must be positive
+	 * @return ACCEPTED, or why the transfer was rejected
+	 */
+	public static TransactionResult transfer(String from_account, String to_account, long amount_cents) {
+		long start = System.nanoTime();
+		try {
+			if (from_account == null || from_account.isEmpty() || to_account == null || to_account.isEmpty()
+					|| from_account.equals(to_account)) {
+				Metrics.rejected_invalid.increment();
+				return TransactionResult.INVALID_ACCOUNT_NUMBER;
+			}
+			if (amount_cents <= 0) {
+				Metrics.rejected_invalid.increment();
+				return TransactionResult.INVALID_AMOUNT;
+			}
+			if (!ledger.isOpen(from_account) || !ledger.isOpen(to_account)) {
+				Metrics.rejected_unknown_account.increment();
+				return TransactionResult.UNKNOWN_ACCOUNT;
+			}
+			if (!ledger.transfer(from_account, to_account, amount_cents, MonotonicClock.currentTimeMillis()))
+				return TransactionResult.INSUFFICIENT_FUNDS;
+			return TransactionResult.ACCEPTED;
+		} finally {
+			Metrics.TRANSFER.record(start);
+		}
+	}
+	
+	/**
+	 * Get the balance of a given account (by its number). The balance is the sum total of all transactions
+	 * that match the account, which the ledger keeps as a running total, so this is a single lookup. 
+	 * For example, if an account has only two transactions in the system, with values = $10.79 and $-140, 
+	 * the balance would be $-129.21
 	 * 
 	 * @param account_number
 	 * @return A double value, being the balance of the account
 	 */
 	public static double getBalance(String account_number) {
-	    double balance = 0.0; 
-
-	    for (Transaction transaction : transactions) {   
-	        if (transaction.getAccount_number().equals(account_number)) {
-	            balance += transaction.getTransaction_amount();
-	        }
-	    }
+		long start = System.nanoTime();
+		double balance = ledger.getBalance(account_number);
+		Metrics.GET_BALANCE.record(start);
+		return balance;
+	}
+	
+	/**
+	 * Same as getBalance, but exact: the balance is returned as a whole number of cents
+	 */
+	public static long getBalanceCents(String account_number) {
+		long start = System.nanoTime();
+		long balance = ledger.getBalanceCents(account_number);
+		Metrics.GET_BALANCE.record(start);
+		return balance;
+	}
+	
+	/**
+	 * Calculate the balance of a given account the slow way, by going over the transactions that could match 
+	 * the account and getting their sum total. Used to double-check the running balances of the ledger.
+	 * 
+	 * @param account_number
+	 * @return the balance of the account in cents as recorded in the transactions
+	 */
+	public static long recomputeBalanceCents(String account_number) {
+		return ledger.recomputeBalanceCents(account_number);
+	}
+	
+	/**
+	 * Verify mode: recompute every balance from the raw transactions and compare it with the running balances.
+	 * 
+	 * @return the number of accounts whose running balance does not match the transactions
+	 */
+	public static int verifyBalances() {
+		return ledger.verify();
+	}
 
-	    return balance;
+	/**
+	 * Go over the transactions of an account between two dates, in date order, e.g. for a monthly statement.
+	 * Only the transactions in the window are read (see Ledger.transactions).
+	 * 
+	 * @param account_number
+	 * @param from first date of the window, inclusive
+	 * @param to end of the window, exclusive
+	 * @param action is given a view on each transaction, which is reused for the next one
+	 * @return the number of transactions in the window
+	 */
+	public static int transactions(String account_number, Date from, Date to, Consumer<TransactionStore.View> action) {
+		return ledger.transactions(account_number, from.getTime(), to.getTime(), action);
+	}
+	
+	/**
+	 * Sum up the transactions of an account between two dates (credits, debits, their number, and the balances
+	 * at both ends), e.g. for the summary of a yearly statement. The sums come from the daily rollups of the
+	 * ledger, one per day, instead of the transactions (see Ledger.summarize).
+	 * 
+	 * @param account_number
+	 * @param from first day of the window, inclusive (UTC days)
+	 * @param to day after the last one of the window
+	 * @return the summary
+	 */
+	public static DailyRollups.Summary summarize(String account_number, Date from, Date to) {
+		return ledger.summarize(account_number, from.getTime(), to.getTime());
+	}
+	
+	/**
+	 * Credit every Saving account with the interest of a day on its balance at the end of that day (see
+	 * InterestEngine), in parallel on the common fork/join pool. Running the same day again, e.g. after a crash,
+	 * only credits the accounts that were not credited yet.
+	 * 
+	 * @param annual_rate_basis_points the yearly interest rate, in hundredths of a percent
+	 * @param day any time of the (UTC) day
+	 * @param progress_path where the progress of the run is kept, to restart it quickly; null for none
+	 * @return what was credited, and how fast
+	 * @throws IOException if the progress file cannot be written
+	 */
+	public static InterestEngine.Result accrueInterest(int annual_rate_basis_points, Date day, String progress_path)
+			throws IOException {
+		return new InterestEngine(ledger, annual_rate_basis_points).run(accounts, InterestEngine.SAVING,
+				DailyRollups.dayOf(day.getTime()), progress_path, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Same as summarize, day by day, e.g. for a dashboard.
+	 * 
+	 * @return the rollup of every day of the window that has transactions, in date order
+	 */
+	public static DailyRollups.Day[] dailyRollups(String account_number, Date from, Date to) {
+		return ledger.dailyRollups(account_number, from.getTime(), to.getTime());
+	}
+	
+	/**
+	 * Get the balance of every account at once, e.g. for end-of-day reports. The balances are summed from the
+	 * transactions in one parallel pass over the ledger, instead of one scan per account.
+	 * 
+	 * @return the balance in cents of every account (see Ledger.Balances)
+	 */
+	public static Ledger.Balances balancesForAll() {
+		return ledger.balancesForAll();
 	}
 
 	
 	
+	/**
+	 * Make the transactions durable: replay the journal at the given path (if the file exists) to rebuild the
+	 * balances, then write every new transaction to it. Must be called before any transaction is added.
+	 * 
+	 * @param path of the journal file
+	 * @param policy when the journal is forced to disk
+	 * @return the number of transactions replayed from the journal
+	 * @throws IOException
+	 */
+	public static long openJournal(String path, Journal.FsyncPolicy policy) throws IOException {
+		return openJournal(path, policy, 0);
+	}
+	
+	/**
+	 * Same as openJournal(path, policy), starting from the checkpoint of the ledger (in path + ".checkpoint")
+	 * if there is one, so that only the transactions journaled after it are replayed. If checkpoint_period_millis
+	 * is positive, a new checkpoint is taken that often in the background, while transactions keep coming in.
+	 * 
+	 * @return the number of transactions replayed from the journal
+	 * @throws IOException
+	 */
+	public static long openJournal(String path, Journal.FsyncPolicy policy, long checkpoint_period_millis) throws IOException {
+		Journal journal = new Journal(path, policy);
+		checkpoint_path = path + ".checkpoint";
+		long from_position = 0;
+		if (new File(checkpoint_path).exists()) {
+			try {
+				Checkpoint checkpoint = Checkpoint.restore(ledger, checkpoint_path);
+				from_position = checkpoint.getJournal_position();
+				// the journal may have been truncated up to the checkpoint, which is later than what it covers
+				MonotonicClock.advanceTo(checkpoint.getCreated_millis());
+				System.out.println("Restored the " + checkpoint);
+			} catch (IOException e) {
+				// the ledger is left untouched: fall back to replaying the whole journal
+				System.out.println("Ignoring the checkpoint " + checkpoint_path + ": " + e.getMessage());
+			}
+		}
+		long replayed = ledger.replay(journal, from_position);
+		ledger.attachJournal(journal);
+		
+		if (checkpoint_period_millis > 0) {
+			checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "checkpointer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			checkpointer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						checkpoint();
+					} catch (IOException e) {
+						System.out.println("Could not write the checkpoint " + checkpoint_path + ": " + e.getMessage());
+					}
+				}
+			}, checkpoint_period_millis, checkpoint_period_millis, TimeUnit.MILLISECONDS);
+		}
+		return replayed;
+	}
+	
+	/**
+	 * Write a checkpoint of every balance next to the journal, replacing the previous one (the transactions
+	 * journaled since then go to its history), and truncate the journal up to it, but not past what the
+	 * standby, if any, has acknowledged. Transactions can be added while it is being written.
+	 * 
+	 * @return the checkpoint written
+	 * @throws IOException
+	 */
+	public static Checkpoint checkpoint() throws IOException {
+		Journal journal = ledger.getJournal();
+		if (journal == null)
+			throw new IllegalStateException("no journal is open");
+		Checkpoint checkpoint = Checkpoint.write(ledger, checkpoint_path);
+		long position = checkpoint.getJournal_position();
+		Replicator replicator = SimpleBankingApp.replicator;
+		if (replicator != null)
+			position = Math.min(position, Math.max(0, replicator.getAckedPosition()));
+		journal.truncate(position);
+		return checkpoint;
+	}
+	
+	/**
+	 * Replicate the journal to a hot standby (see Standby), in the background: transactions do not wait for
+	 * the standby. The journal must be open.
+	 * 
+	 * @param host of the standby
+	 * @param port the standby receives the journal on
+	 */
+	public static void startReplication(String host, int port) {
+		Journal journal = ledger.getJournal();
+		if (journal == null)
+			throw new IllegalStateException("no journal is open");
+		if (replicator != null)
+			throw new IllegalStateException("already replicating");
+		replicator = Replicator.start(journal, host, port);
+	}
+	
+	/**
+	 * Stop replicating to the standby, once it has caught up with the journal (or after a second, if it does
+	 * not). The journal is forced first, as only what is on disk is shipped.
+	 */
+	public static void stopReplication() {
+		if (replicator == null)
+			return;
+		Journal journal = ledger.getJournal();
+		try {
+			if (journal != null && replicator.isConnected()) {
+				journal.flush();
+				replicator.awaitAcknowledged(journal.position(), 1000);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		replicator.close();
+		replicator = null;
+	}
+	
+	/**
+	 * Stop journaling (and replicating), after a last checkpoint so that the next startup has nothing to replay.
+	 * 
+	 * @throws IOException
+	 */
+	public static void closeJournal() throws IOException {
+		Journal journal = ledger.getJournal();
+		if (journal != null) {
+			stopReplication();
+			if (checkpointer != null) {
+				checkpointer.shutdown();
+				try {
+					checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				checkpointer = null;
+			}
+			checkpoint();
+			ledger.attachJournal(null);
+			journal.close();
+		}
+	}
+	
+	/**
+	 * Print the metrics of the operations so far (see Metrics).
+	 */
+	public static void printMetrics() {
+		System.out.print(Metrics.dump());
+	}
+	
+	/**
+	 * Forget every user, account and transaction (and reset the metrics), e.g. between two benchmark runs.
+	 * The journal (if any) must be closed first: it holds transactions that the new, empty ledger would not have.
+	 */
+	public static void reset() {
+		if (ledger.getJournal() != null)
+			throw new IllegalStateException("close the journal before resetting");
+		users.clear();
+		accounts.clear();
+		users_by_username.clear();
+		accounts_by_holder.clear();
+		Metrics.reset();
+		requests = new DedupeCache<String, RequestOutcome>(DEDUPE_WINDOW_MILLIS, DEDUPE_MAX_REQUESTS);
+		shard_index = 0;
+		shard_count = 1;
+		ledger = new Ledger();
+	}
+	
 	//////////////////////////////////////////////////////
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
+		Metrics.register();
+		
+		// optional: the path of a journal file, to keep the transactions between runs
+		if (args.length > 0) {
+			long replayed = openJournal(args[0], Journal.FsyncPolicy.GROUP_COMMIT, CHECKPOINT_PERIOD_MILLIS);
+			System.out.println("Replayed " + replayed + " transactions from the journal " + args[0]);
+		}
 		
 		loadUserData();
 		// let's print them all to see if they have been loaded (populated) properly
@@ -126,12 +929,15 @@ public class SimpleBankingApp {
 		
 		// and some more activities on the accounts
 		addTransaction("5495-1234", 520.00);
-		addTransaction("9999-1111", 21.00); // it seems this account does not exist in the loaded (populated) data, 
-											// but the addTransaction does not do that check, need to improve that function in future
+		addTransaction("9999-1111", 21.00); // this account does not exist in the loaded (populated) data, 
+											// so addTransaction rejects it (and counts the rejection)
 		// let's print the accounts and their balance to see if the above transaction have impacted their balances
 		System.out.println("Account: after the 2nd/3rd addTransaction function calls...");
 		printAllAccounts();
+		System.out.println("Transactions rejected (unknown account): " + getRejectedTransactionCount());
+		printMetrics();
 		
+		closeJournal();
 
 	}
 
@@ -0,0 +1,242 @@
+package app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * A hot standby: receives the journal of a primary from its Replicator (see there for the protocol) and applies
+ * every record to a ledger of its own as it comes, so that its balances are never more than a few frames behind.
+ * Taking over is only a matter of calling promote(), which stops the replication, and then serving requests
+ * with that ledger: nothing has to be reloaded.
+ *
+ * The standby keeps the journal position it has applied up to, and the primary goes on from there after a
+ * disconnection. Only one primary is served at a time.
+ *
+ * The ledger of the standby can have a journal of its own (see main): every frame is then written to it as it is
+ * applied (with one force per frame, and one per transfer in it), so that whatever the standby acknowledged, and everything it takes once
+ * promoted, survives a crash of the standby.
+ */
+public class Standby implements Closeable {
+
+	private final ServerSocket server;
+	private final Ledger ledger;
+	private final Thread receiver;
+	// held while a frame is applied, so that promote() never sees half a frame
+	private final Object apply_lock = new Object();
+	private volatile long applied_position;
+	private volatile boolean promoted;
+	private volatile Socket connection;
+
+	private Standby(ServerSocket server, Ledger ledger) {
+		this.server = server;
+		this.ledger = ledger;
+		this.receiver = new Thread(new Runnable() {
+			public void run() {
+				receive();
+			}
+		}, "replication-receiver");
+		receiver.setDaemon(true);
+	}
+
+	/**
+	 * Start waiting for the primary on the given port, to apply its journal to the ledger. The ledger should
+	 * have no transactions other than the replicated ones; it may have a journal (of its own, with positions
+	 * of its own) attached.
+	 *
+	 * @param port 0 for any free port (see getPort)
+	 */
+	public static Standby start(int port, Ledger ledger) throws IOException {
+		ServerSocket server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+		Standby standby = new Standby(server, ledger);
+		standby.receiver.start();
+		return standby;
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return the position of the primary's journal up to which the records have been applied
+	 */
+	public long getAppliedPosition() {
+		return applied_position;
+	}
+
+	public boolean isConnected() {
+		Socket connection = this.connection;
+		return connection != null && !connection.isClosed();
+	}
+
+	/**
+	 * Stop applying the primary's journal, e.g. because the primary is down and the standby is taking over.
+	 * The frame being applied, if any, is finished first. Afterwards the ledger is only changed by whoever
+	 * now uses it.
+	 *
+	 * @return the position of the primary's journal the ledger is up to date with
+	 */
+	public long promote() {
+		synchronized (apply_lock) {
+			promoted = true;
+		}
+		close();
+		return applied_position;
+	}
+
+	public boolean isPromoted() {
+		return promoted;
+	}
+
+	public void close() {
+		try {
+			server.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		Socket connection = this.connection;
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	// the receiver thread: serves one primary connection after the other, until promoted or closed
+	private void receive() {
+		String[] accounts = new String[Replicator.MAX_FRAME_RECORDS];
+		String[] to_accounts = new String[accounts.length];
+		long[] amounts_cents = new long[accounts.length];
+		long[] timestamps_millis = new long[accounts.length];
+		while (!promoted && !server.isClosed()) {
+			try (Socket connection = server.accept()) {
+				connection.setTcpNoDelay(true);
+				this.connection = connection;
+				if (promoted)
+					return;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 64 * 1024));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+				out.writeLong(applied_position);
+				out.flush();
+				while (true) {
+					int count = in.readInt();
+					long from_position = in.readLong();
+					long to_position = in.readLong();
+					if (count < 0 || count > accounts.length || from_position != applied_position)
+						throw new IOException("unexpected frame of " + count + " records from " + from_position
+								+ " (applied up to " + applied_position + ")");
+					for (int i = 0; i < count; i++) {
+						byte kind = in.readByte();
+						timestamps_millis[i] = in.readLong();
+						amounts_cents[i] = in.readLong();
+						accounts[i] = in.readUTF();
+						to_accounts[i] = kind == Replicator.TRANSFER ? in.readUTF() : null;
+					}
+					synchronized (apply_lock) {
+						if (promoted)
+							return;
+						apply(accounts, to_accounts, amounts_cents, timestamps_millis, count);
+						applied_position = to_position;
+					}
+					out.writeLong(to_position);
+					// one acknowledgement for all the frames that have already arrived
+					if (in.available() == 0)
+						out.flush();
+				}
+			} catch (IOException e) {
+				// the primary went away (or the standby was closed): wait for it to come back
+			} finally {
+				this.connection = null;
+			}
+		}
+	}
+
+	// applies the records of a frame in order: the ones in between transfers a batch at a time, with the
+	// transfers put aside (to_accounts is not null for them)
+	private void apply(String[] accounts, String[] to_accounts, long[] amounts_cents, long[] timestamps_millis,
+			int count) {
+		int start = 0;
+		for (int i = 0; i <= count; i++) {
+			if (i < count && to_accounts[i] == null)
+				continue;
+			if (i > start && start == 0)
+				ledger.appendBatch(accounts, amounts_cents, timestamps_millis, i);
+			else if (i > start)
+				ledger.appendBatch(Arrays.copyOfRange(accounts, start, i), Arrays.copyOfRange(amounts_cents, start, i),
+						Arrays.copyOfRange(timestamps_millis, start, i), i - start);
+			if (i < count) {
+				ledger.applyTransfer(accounts[i], to_accounts[i], amounts_cents[i], timestamps_millis[i]);
+				to_accounts[i] = null;
+			}
+			start = i + 1;
+		}
+	}
+
+	//////////////////////////////////////////////////////
+	public static void main(String[] args) throws IOException {
+		// the port to receive the journal on, the port to serve the banking API on once promoted, which
+		// happens when "promote" is entered on the standard input, and the directory of the standby's own
+		// journal and checkpoint
+		int replication_port = Integer.parseInt(args[0]);
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : BankingServer.DEFAULT_PORT;
+		File directory = new File(args.length > 2 ? args[2] : "standby");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create the directory " + directory);
+		// the standby only knows how far it is into the primary's journal while it runs: it starts from scratch
+		String journal_path = new File(directory, "journal").getPath();
+		SimpleBankingApp.openJournal(journal_path, Journal.FsyncPolicy.GROUP_COMMIT,
+				SimpleBankingApp.CHECKPOINT_PERIOD_MILLIS);
+		if (SimpleBankingApp.ledger.size() != 0) {
+			SimpleBankingApp.closeJournal();
+			throw new IllegalStateException("the standby's journal " + journal_path + " is not empty: start the "
+					+ "standby in a new directory (or serve that journal with BankingServer)");
+		}
+		Metrics.register();
+		SimpleBankingApp.loadUserData();
+		SimpleBankingApp.loadAccountData();
+		Standby standby = start(replication_port, SimpleBankingApp.ledger);
+		System.out.println("Standing by on port " + standby.getPort() + "; enter \"promote\" to take over");
+
+		BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+		for (String line; (line = console.readLine()) != null;) {
+			if (!line.trim().equals("promote"))
+				continue;
+			long start = System.nanoTime();
+			long position = standby.promote();
+			// what was replicated is in the standby's journal already; a checkpoint means a restart of the new
+			// primary does not have to replay it
+			SimpleBankingApp.checkpoint();
+			final BankingServer server = BankingServer.start(port);
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					server.stop(1);
+					try {
+						SimpleBankingApp.closeJournal();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}));
+			System.out.format("Promoted at position %d of the primary's journal in %.1f ms; serving the banking API on "
+					+ "port %d with the journal %s%n", position, (System.nanoTime() - start) / 1e6, server.getPort(),
+					journal_path);
+			return;
+		}
+		standby.close();
+		SimpleBankingApp.closeJournal();
+	}
+}
@@ -0,0 +1,23 @@
+package app;
+
+/**
+ * The outcome of adding one transaction, as returned per item by the batch API, or of a transfer.
+ */
+public enum TransactionResult {
+	/** the transaction was added to the ledger */
+	ACCEPTED,
+	/** the account number is missing (or, for a transfer, both account numbers are the same) */
+	INVALID_ACCOUNT_NUMBER,
+	/** the amount is zero (or, for a transfer, not positive) */
+	INVALID_AMOUNT,
+	/** there is no (open) account with that number */
+	UNKNOWN_ACCOUNT,
+	/** the balance of the account a transfer is from does not cover the amount */
+	INSUFFICIENT_FUNDS,
+	/** the request id was already used for a transaction with another account or amount */
+	REQUEST_ID_REUSED;
+
+	public boolean isAccepted() {
+		return this == ACCEPTED;
+	}
+}
@@ -0,0 +1,33 @@
+package benchmarks;
+
+import app.SimpleBankingApp;
+
+/**
+ * Transactions added one at a time through SimpleBankingApp (with the check that the account exists), to a
+ * ledger that already holds the given number of transactions.
+ */
+public class AddTransactionBenchmark extends Benchmark {
+
+	static final int TRANSACTIONS = 100000;
+
+	private String[] numbers;
+
+	public String name() {
+		return "addTransaction";
+	}
+
+	public void setUp(int transactions, int accounts) {
+		numbers = Fixtures.populate(transactions, accounts);
+	}
+
+	public long iteration(int thread) {
+		int n = numbers.length;
+		int accepted = 0;
+		for (int i = 0; i < TRANSACTIONS; i++) {
+			if (SimpleBankingApp.addTransactionCents(numbers[(int) ((i * 31L + thread) % n)], i % 2 == 0 ? 100 : -50))
+				accepted++;
+		}
+		sink(accepted);
+		return TRANSACTIONS;
+	}
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+/**
+ * One benchmark of the BenchmarkRunner. The runner calls setUp once for every combination of parameters, then
+ * times a number of iterations (the first ones as warmup), each made of a call to iteration() on every
+ * benchmark thread at the same time, and finally calls tearDown.
+ *
+ * An iteration does as many operations as it likes (e.g. a million balance lookups, or loading one file) and
+ * returns how many it did; the score is the average time per operation. Whatever the operations compute
+ * should be given to sink(), so that the JIT cannot optimize them away.
+ */
+public abstract class Benchmark {
+
+	private static volatile long sink;
+
+	/**
+	 * @return the name of the benchmark in the results
+	 */
+	public abstract String name();
+
+	/**
+	 * @return the numbers of threads to run the benchmark with; each one is a separate set of results
+	 */
+	public int[] threads() {
+		return new int[] { 1 };
+	}
+
+	/**
+	 * Prepare the state for the given parameters: a ledger of that many transactions over that many accounts.
+	 */
+	public abstract void setUp(int transactions, int accounts) throws Exception;
+
+	/**
+	 * Called before every iteration (warmup or measured), outside of the time measured, e.g. to start from a
+	 * fresh state each time.
+	 */
+	public void setUpIteration() throws Exception {
+	}
+
+	/**
+	 * Run one iteration on one of the benchmark threads.
+	 *
+	 * @param thread the index of the thread, from 0 to the number of threads - 1
+	 * @return the number of operations done
+	 */
+	public abstract long iteration(int thread) throws Exception;
+
+	public void tearDown() throws Exception {
+	}
+
+	/**
+	 * Consume a result, so that the code computing it is not removed as dead code.
+	 */
+	protected static void sink(long value) {
+		sink += value;
+	}
+}
@@ -0,0 +1,260 @@
+package benchmarks;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the benchmarks of the banking core for every combination of ledger size (number of transactions),
+ * number of accounts and number of threads, and writes the results as JSON or CSV, in the same layout as
+ * JMH's (so the same tools can read them). The score is the average time per operation in nanoseconds, with
+ * its 99.9% confidence interval.
+ *
+ * Options (all optional):
+ *   --transactions=1000,100000,1000000  ledger sizes; 100000000 needs a heap of several GB (-Xmx)
+ *   --accounts=1000,100000              numbers of accounts
+ *   --benchmarks=getBalance,...         which benchmarks to run (all by default)
+ *   --warmup=3 --iterations=5           iterations not measured, then measured
+ *   --format=json|csv                   json by default
+ *   --out=results.json                  standard output by default
+ *
+ * Progress is reported on standard error. Standard output is silenced while the benchmarks run (the loaders
+ * print what they loaded), and the results are written to it (or to the --out file) at the end.
+ */
+public class BenchmarkRunner {
+
+	static final Benchmark[] BENCHMARKS = { new GetBalanceBenchmark(), new AddTransactionBenchmark(),
+			new ContendedAppendBenchmark(), new LoadTransactionsBenchmark(), new LoadAccountsBenchmark(),
+			new PrintAllAccountsBenchmark() };
+
+	// two-sided 99.9% quantiles of Student's t distribution, for 1 to 30 degrees of freedom
+	static final double[] T_999 = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+			4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768, 3.745, 3.725,
+			3.707, 3.690, 3.674, 3.659, 3.646 };
+
+	static final class Result {
+		String benchmark;
+		int threads;
+		int transactions;
+		int accounts;
+		int warmup;
+		double[] scores; // ns/op of each measured iteration
+
+		double mean() {
+			double sum = 0;
+			for (double score : scores)
+				sum += score;
+			return sum / scores.length;
+		}
+
+		double error() {
+			int n = scores.length;
+			if (n < 2)
+				return Double.NaN;
+			double mean = mean();
+			double squares = 0;
+			for (double score : scores)
+				squares += (score - mean) * (score - mean);
+			double t = n - 1 <= T_999.length ? T_999[n - 2] : 3.291;
+			return t * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+		}
+	}
+
+	/**
+	 * Run one iteration on the given number of threads, started together.
+	 *
+	 * @return the average time per operation in ns, over all the threads
+	 */
+	static double iteration(final Benchmark benchmark, int threads) throws Exception {
+		benchmark.setUpIteration();
+		final CyclicBarrier start = new CyclicBarrier(threads);
+		final AtomicLong operations = new AtomicLong();
+		final AtomicLong thread_nanos = new AtomicLong();
+		final Exception[] failure = new Exception[1];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						long begin = System.nanoTime();
+						long done = benchmark.iteration(index);
+						thread_nanos.addAndGet(System.nanoTime() - begin);
+						operations.addAndGet(done);
+					} catch (Exception e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			}, "benchmark-" + t);
+			workers[t].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		if (failure[0] != null)
+			throw failure[0];
+		// the time of each thread over its own operations, as JMH's average time mode
+		return (double) thread_nanos.get() / operations.get();
+	}
+
+	static Result run(Benchmark benchmark, int transactions, int accounts, int threads, int warmup, int iterations)
+			throws Exception {
+		Result result = new Result();
+		result.benchmark = benchmark.name();
+		result.threads = threads;
+		result.transactions = transactions;
+		result.accounts = accounts;
+		result.warmup = warmup;
+		result.scores = new double[iterations];
+		for (int i = 0; i < warmup; i++)
+			iteration(benchmark, threads);
+		for (int i = 0; i < iterations; i++)
+			result.scores[i] = iteration(benchmark, threads);
+		return result;
+	}
+
+	static String json(List<Result> results) {
+		String jdk = System.getProperty("java.version");
+		String vm = System.getProperty("java.vm.name");
+		StringBuilder out = new StringBuilder("[\n");
+		for (int r = 0; r < results.size(); r++) {
+			Result result = results.get(r);
+			out.append("    {\n");
+			out.append("        \"benchmark\" : \"").append(result.benchmark).append("\",\n");
+			out.append("        \"mode\" : \"avgt\",\n");
+			out.append("        \"threads\" : ").append(result.threads).append(",\n");
+			out.append("        \"forks\" : 0,\n");
+			out.append("        \"jdkVersion\" : \"").append(jdk).append("\",\n");
+			out.append("        \"vmName\" : \"").append(vm).append("\",\n");
+			out.append("        \"warmupIterations\" : ").append(result.warmup).append(",\n");
+			out.append("        \"measurementIterations\" : ").append(result.scores.length).append(",\n");
+			out.append("        \"params\" : {\n");
+			out.append("            \"accounts\" : \"").append(result.accounts).append("\",\n");
+			out.append("            \"transactions\" : \"").append(result.transactions).append("\"\n");
+			out.append("        },\n");
+			out.append("        \"primaryMetric\" : {\n");
+			out.append("            \"score\" : ").append(number(result.mean())).append(",\n");
+			out.append("            \"scoreError\" : ").append(number(result.error())).append(",\n");
+			out.append("            \"scoreUnit\" : \"ns/op\",\n");
+			out.append("            \"rawData\" : [\n                [\n");
+			for (int i = 0; i < result.scores.length; i++)
+				out.append("                    ").append(number(result.scores[i]))
+						.append(i + 1 < result.scores.length ? ",\n" : "\n");
+			out.append("                ]\n            ]\n");
+			out.append("        }\n");
+			out.append(r + 1 < results.size() ? "    },\n" : "    }\n");
+		}
+		return out.append("]\n").toString();
+	}
+
+	static String csv(List<Result> results) {
+		StringBuilder out = new StringBuilder("\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\","
+				+ "\"Score Error (99.9%)\",\"Unit\",\"Param: accounts\",\"Param: transactions\"\n");
+		for (Result result : results) {
+			out.append('"').append(result.benchmark).append("\",\"avgt\",").append(result.threads).append(',')
+					.append(result.scores.length).append(',').append(number(result.mean())).append(',')
+					.append(number(result.error())).append(",\"ns/op\",").append(result.accounts).append(',')
+					.append(result.transactions).append('\n');
+		}
+		return out.toString();
+	}
+
+	static String number(double value) {
+		return Double.isNaN(value) ? "NaN" : String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	static int[] ints(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] transactions = { 1000, 100000, 1000000 };
+		int[] accounts = { 1000, 100000 };
+		List<String> names = null;
+		int warmup = 3;
+		int iterations = 5;
+		String format = "json";
+		String path = null;
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String option = equals < 0 ? arg : arg.substring(0, equals);
+			String value = equals < 0 ? "" : arg.substring(equals + 1);
+			if (option.equals("--transactions"))
+				transactions = ints(value);
+			else if (option.equals("--accounts"))
+				accounts = ints(value);
+			else if (option.equals("--benchmarks"))
+				names = Arrays.asList(value.split(","));
+			else if (option.equals("--warmup"))
+				warmup = Integer.parseInt(value);
+			else if (option.equals("--iterations"))
+				iterations = Integer.parseInt(value);
+			else if (option.equals("--format"))
+				format = value;
+			else if (option.equals("--out"))
+				path = value;
+			else
+				throw new IllegalArgumentException("unknown option " + arg);
+		}
+		if (!format.equals("json") && !format.equals("csv"))
+			throw new IllegalArgumentException("unknown format " + format);
+
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		List<Result> results = new ArrayList<Result>();
+		try {
+			for (Benchmark benchmark : BENCHMARKS) {
+				if (names != null && !names.contains(benchmark.name()))
+					continue;
+				for (int size : transactions) {
+					for (int count : accounts) {
+						benchmark.setUp(size, count);
+						try {
+							for (int threads : benchmark.threads()) {
+								Result result = run(benchmark, size, count, threads, warmup, iterations);
+								results.add(result);
+								System.err.format(Locale.ROOT, "%-20s transactions=%-10d accounts=%-8d threads=%d: %12.3f +- %.3f ns/op%n",
+										result.benchmark, size, count, threads, result.mean(), result.error());
+							}
+						} finally {
+							benchmark.tearDown();
+						}
+					}
+				}
+			}
+		} finally {
+			System.setOut(stdout);
+		}
+
+		String output = format.equals("json") ? json(results) : csv(results);
+		if (path == null) {
+			System.out.print(output);
+		} else {
+			try (OutputStream out = new FileOutputStream(path)) {
+				out.write(output.getBytes("UTF-8"));
+			} catch (IOException e) {
+				System.err.println("cannot write " + path + ": " + e.getMessage());
+				System.exit(1);
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package benchmarks;
+
+import app.Ledger;
+import app.SimpleBankingApp;
+import utils.MonotonicClock;
+
+/**
+ * Several threads appending to the ledger at the same time. With few accounts the threads mostly want the
+ * same stripes; with many accounts they mostly do not.
+ *
+ * The transactions are stamped with the clock, as addTransaction does: that is after every transaction of
+ * Fixtures.populate (stamped k seconds after the epoch), so they go at the end of the rows of their account
+ * instead of being inserted as back-dated ones.
+ */
+public class ContendedAppendBenchmark extends Benchmark {
+
+	static final int TRANSACTIONS_PER_THREAD = 50000;
+
+	private String[] numbers;
+
+	public String name() {
+		return "contendedAppend";
+	}
+
+	public int[] threads() {
+		return new int[] { 1, 2, 4, 8 };
+	}
+
+	public void setUp(int transactions, int accounts) {
+		numbers = Fixtures.populate(transactions, accounts);
+	}
+
+	public long iteration(int thread) {
+		Ledger ledger = SimpleBankingApp.ledger;
+		int n = numbers.length;
+		for (int i = 0; i < TRANSACTIONS_PER_THREAD; i++)
+			ledger.append(numbers[(int) ((i * 31L + thread * 7L) % n)], 100, MonotonicClock.currentTimeMillis());
+		return TRANSACTIONS_PER_THREAD;
+	}
+}
@@ -0,0 +1,121 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+
+import app.Ledger;
+import app.SimpleBankingApp;
+import model.Account;
+
+/**
+ * The data the benchmarks run on: accounts numbered 7000-0, 7000-1, ... and transactions spread evenly over them.
+ */
+final class Fixtures {
+
+	static final int BATCH_SIZE = 8192;
+
+	private Fixtures() {
+	}
+
+	static String accountNumber(int i) {
+		return "7000-" + i;
+	}
+
+	static String[] accountNumbers(int accounts) {
+		String[] numbers = new String[accounts];
+		for (int i = 0; i < accounts; i++)
+			numbers[i] = accountNumber(i);
+		return numbers;
+	}
+
+	/**
+	 * Reset SimpleBankingApp and fill it with the given number of accounts and transactions.
+	 *
+	 * @return the account numbers
+	 */
+	static String[] populate(long transactions, int accounts) {
+		SimpleBankingApp.reset();
+		String[] numbers = accountNumbers(accounts);
+		Date opened = new Date(0);
+		for (int i = 0; i < accounts; i++)
+			SimpleBankingApp.registerAccount(new Account(numbers[i], "user" + (i % 1000), "Standard", opened));
+		append(SimpleBankingApp.ledger, numbers, transactions);
+		return numbers;
+	}
+
+	/**
+	 * Add transactions to the ledger, going round the accounts, in batches.
+	 */
+	static void append(Ledger ledger, String[] numbers, long transactions) {
+		String[] batch_accounts = new String[BATCH_SIZE];
+		long[] batch_amounts = new long[BATCH_SIZE];
+		long[] batch_timestamps = new long[BATCH_SIZE];
+		for (long done = 0; done < transactions;) {
+			int count = (int) Math.min(BATCH_SIZE, transactions - done);
+			for (int i = 0; i < count; i++) {
+				long k = done + i;
+				batch_accounts[i] = numbers[(int) (k % numbers.length)];
+				batch_amounts[i] = k % 2 == 0 ? 1000 : -499;
+				batch_timestamps[i] = k * 1000;
+			}
+			ledger.appendBatch(batch_accounts, batch_amounts, batch_timestamps, count);
+			done += count;
+		}
+	}
+
+	/**
+	 * Write a temporary transaction file (no header) of the given number of rows over the accounts.
+	 */
+	static File transactionFile(long rows, String[] numbers) throws IOException {
+		File file = File.createTempFile("transactions", ".csv");
+		file.deleteOnExit();
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+			for (long k = 0; k < rows; k++) {
+				writer.write(numbers[(int) (k % numbers.length)]);
+				writer.write(k % 2 == 0 ? ",10.00," : ",-4.99,");
+				// one day per 10000 rows, as in a file of daily payments
+				int day = 1 + (int) (k / 10000 % 28);
+				writer.write((day < 10 ? "0" : "") + day + "/08/2019 10:15:00\n");
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Write a temporary account file (no header) of the given accounts.
+	 */
+	static File accountFile(String[] numbers) throws IOException {
+		File file = File.createTempFile("accounts", ".csv");
+		file.deleteOnExit();
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+			for (int i = 0; i < numbers.length; i++)
+				writer.write(numbers[i] + ",user" + (i % 1000) + ",Standard,20/08/2019\n");
+		}
+		return file;
+	}
+
+	/**
+	 * A channel that throws away what is written to it.
+	 */
+	static WritableByteChannel discard() {
+		return new WritableByteChannel() {
+			public int write(ByteBuffer src) {
+				int n = src.remaining();
+				src.position(src.limit());
+				return n;
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() {
+			}
+		};
+	}
+}
@@ -0,0 +1,30 @@
+package benchmarks;
+
+import app.SimpleBankingApp;
+
+/**
+ * Balance lookups, spread over all the accounts.
+ */
+public class GetBalanceBenchmark extends Benchmark {
+
+	static final int LOOKUPS = 1000000;
+
+	private String[] numbers;
+
+	public String name() {
+		return "getBalance";
+	}
+
+	public void setUp(int transactions, int accounts) {
+		numbers = Fixtures.populate(transactions, accounts);
+	}
+
+	public long iteration(int thread) {
+		long sum = 0;
+		int n = numbers.length;
+		for (int i = 0; i < LOOKUPS; i++)
+			sum += SimpleBankingApp.getBalanceCents(numbers[(int) ((i * 7919L) % n)]);
+		sink(sum);
+		return LOOKUPS;
+	}
+}
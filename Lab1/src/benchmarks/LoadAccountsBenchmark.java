@@ -0,0 +1,37 @@
+package benchmarks;
+
+import java.io.File;
+
+import app.SimpleBankingApp;
+
+/**
+ * Loading an account file of the given number of accounts (the number of transactions does not matter);
+ * the score is the time per account.
+ */
+public class LoadAccountsBenchmark extends Benchmark {
+
+	private File file;
+	private int accounts;
+
+	public String name() {
+		return "loadAccountData";
+	}
+
+	public void setUp(int transactions, int accounts) throws Exception {
+		this.accounts = accounts;
+		file = Fixtures.accountFile(Fixtures.accountNumbers(accounts));
+	}
+
+	public void setUpIteration() {
+		SimpleBankingApp.reset();
+	}
+
+	public long iteration(int thread) throws Exception {
+		sink(SimpleBankingApp.loadAccountData(file.getPath(), false));
+		return accounts;
+	}
+
+	public void tearDown() {
+		file.delete();
+	}
+}
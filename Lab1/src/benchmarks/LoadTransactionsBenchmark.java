@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.io.File;
+
+import app.Ledger;
+import app.SimpleBankingApp;
+
+/**
+ * Loading a transaction file of the given number of rows; the score is the time per row. Every iteration
+ * loads into a new ledger (with the accounts open), so the ledger does not grow from one to the next.
+ */
+public class LoadTransactionsBenchmark extends Benchmark {
+
+	private String[] numbers;
+	private File file;
+	private long rows;
+
+	public String name() {
+		return "loadTransactionData";
+	}
+
+	public void setUp(int transactions, int accounts) throws Exception {
+		numbers = Fixtures.populate(0, accounts);
+		rows = transactions;
+		file = Fixtures.transactionFile(rows, numbers);
+	}
+
+	public void setUpIteration() {
+		Ledger ledger = new Ledger();
+		for (String number : numbers)
+			ledger.openAccount(number);
+		SimpleBankingApp.ledger = ledger;
+	}
+
+	public long iteration(int thread) throws Exception {
+		sink(SimpleBankingApp.loadTransactionData(file.getPath(), false));
+		return rows;
+	}
+
+	public void tearDown() {
+		file.delete();
+	}
+}
@@ -0,0 +1,28 @@
+package benchmarks;
+
+import java.nio.channels.WritableByteChannel;
+
+import app.SimpleBankingApp;
+
+/**
+ * Rendering the account report (to a channel that throws it away); the score is the time per account.
+ */
+public class PrintAllAccountsBenchmark extends Benchmark {
+
+	private final WritableByteChannel discard = Fixtures.discard();
+	private int accounts;
+
+	public String name() {
+		return "printAllAccounts";
+	}
+
+	public void setUp(int transactions, int accounts) {
+		this.accounts = accounts;
+		Fixtures.populate(transactions, accounts);
+	}
+
+	public long iteration(int thread) throws Exception {
+		SimpleBankingApp.printAllAccounts(discard);
+		return accounts;
+	}
+}
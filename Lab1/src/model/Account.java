@@ -13,16 +13,37 @@ public class Account {
 	}
 	
 	public String toString() {
-        SimpleDateFormat sdf = new SimpleDateFormat("(MMM dd, yyyy)");
-        String formattedDate = sdf.format(account_opening_rate);
         return String.format("%-9s | %-29s | %-9s | %-15s", 
-                account_number, username_of_account_holder, account_type, formattedDate);
+                account_number, username_of_account_holder, account_type, getFormattedOpening_date());
     }
 	
+	/**
+	 * @return the opening date as shown in reports, e.g. "(Aug 20, 2019)". It is formatted only once, and 
+	 * formatted again only if the date changes.
+	 */
+	public String getFormattedOpening_date() {
+		if (account_opening_rate == null)
+			return "null";
+		if (formatted_opening_date == null || formatted_opening_millis != account_opening_rate.getTime()) {
+			formatted_opening_millis = account_opening_rate.getTime();
+			formatted_opening_date = OPENING_DATE_FORMAT.get().format(account_opening_rate);
+		}
+		return formatted_opening_date;
+	}
+	
+	// SimpleDateFormat is not thread-safe, so each thread gets its own
+	private static final ThreadLocal<SimpleDateFormat> OPENING_DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("(MMM dd, yyyy)");
+		}
+	};
+	
 	String account_number;
 	String username_of_account_holder;
 	String account_type;
 	Date account_opening_rate;
+	private String formatted_opening_date;
+	private long formatted_opening_millis;
 	
 	
 	public String getAccount_number() {
@@ -48,5 +69,6 @@ public class Account {
 	}
 	public void setAccount_opening_rate(Date account_opening_rate) {
 		this.account_opening_rate = account_opening_rate;
+		this.formatted_opening_date = null;
 	}
 }
@@ -0,0 +1,29 @@
+package model;
+
+/**
+ * An account together with its balance at the time it was read, e.g. one line of a user's portfolio.
+ */
+public class AccountBalance {
+	public AccountBalance(Account account, long balance_cents) {
+		super();
+		this.account = account;
+		this.balance_cents = balance_cents;
+	}
+	
+	public String toString() {
+		return account.toString() + "| $" + getBalance();
+	}
+	
+	Account account;
+	long balance_cents;
+	
+	public Account getAccount() {
+		return account;
+	}
+	public long getBalance_cents() {
+		return balance_cents;
+	}
+	public double getBalance() {
+		return Money.toDouble(balance_cents);
+	}
+}
@@ -0,0 +1,88 @@
+package model;
+
+/**
+ * Packs an account number such as "5495-1234" (branch prefix, dash, serial) into a single long, so that the
+ * ledger can look accounts up by a primitive key instead of hashing and comparing Strings.
+ *
+ * Each character takes 4 bits, the first one in the highest bits: a digit d is stored as d + 1 and the dash
+ * as 11, while 0 marks the end. Account numbers of up to 16 characters thus fit in a long, leading zeros
+ * included, and the packing can be undone. Anything else (letters, spaces, longer numbers) has no key.
+ */
+public final class AccountKey {
+
+	/** the key of anything that is not an account number; no account number has the key 0 */
+	public static final long NO_KEY = 0;
+
+	static final int MAX_LENGTH = 16;
+	static final int DASH = 11;
+
+	private AccountKey() {
+	}
+
+	/**
+	 * @param account_number
+	 * @return the key of the account number, or NO_KEY if it is null or not made of up to 16 digits and dashes
+	 */
+	public static long of(String account_number) {
+		if (account_number == null)
+			return NO_KEY;
+		int length = account_number.length();
+		if (length == 0 || length > MAX_LENGTH)
+			return NO_KEY;
+		long key = 0;
+		for (int i = 0; i < length; i++) {
+			char c = account_number.charAt(i);
+			int code;
+			if (c >= '0' && c <= '9')
+				code = c - '0' + 1;
+			else if (c == '-')
+				code = DASH;
+			else
+				return NO_KEY;
+			key |= (long) code << (60 - 4 * i);
+		}
+		return key;
+	}
+
+	/**
+	 * @param key as returned by of()
+	 * @return the account number the key was made from
+	 */
+	public static String toString(long key) {
+		if (key == NO_KEY)
+			throw new IllegalArgumentException("NO_KEY is not the key of an account number");
+		StringBuilder account_number = new StringBuilder(MAX_LENGTH);
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			int code = (int) (key >>> shift) & 0xF;
+			if (code == 0)
+				break;
+			account_number.append(code == DASH ? '-' : (char) ('0' + code - 1));
+		}
+		return account_number.toString();
+	}
+
+	/**
+	 * @return a well-mixed hash of a key (the finalizer of MurmurHash3), for hash tables and partitioning
+	 */
+	public static int hash(long key) {
+		return (int) mix(key);
+	}
+
+	/**
+	 * @return which of the given number of shards the account of a key belongs to, from 0 to shards - 1. This
+	 * uses the upper half of the mixed key, while hash() is the lower half, so the accounts of one shard are
+	 * still spread over all the stripes of its Ledger.
+	 */
+	public static int shard(long key, int shards) {
+		return (int) (((mix(key) >>> 32) * shards) >>> 32);
+	}
+
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
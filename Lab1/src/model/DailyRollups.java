@@ -0,0 +1,240 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * The transactions of one account summed up by day: for each day that has transactions, the sum of the credits,
+ * the sum of the debits, the number of transactions and the balance at the end of the day. The rollups are kept
+ * up to date as transactions are added, so a summary over a range of days reads one row per day instead of
+ * every transaction (a year is at most 366 rows).
+ *
+ * Days are UTC days (see dayOf). The rows are kept in parallel arrays sorted by day; a back-dated transaction
+ * inserts its day if needed and moves the closing balance of every later day. The balances are the sums of the
+ * transactions added here.
+ *
+ * Not thread-safe: the Ledger only uses it under the lock of the account's stripe.
+ */
+public class DailyRollups {
+
+	public static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private int[] days = new int[0];
+	private long[] credits_cents = new long[0];
+	private long[] debits_cents = new long[0];
+	private int[] counts = new int[0];
+	private long[] closing_cents = new long[0];
+	private int size;
+
+	/**
+	 * @return the day of a timestamp, as a number of days since 1970-01-01 (UTC); timestamps too far away for
+	 * an int (e.g. Long.MAX_VALUE as an open end) give the first or last int
+	 */
+	public static int dayOf(long timestamp_millis) {
+		long day = Math.floorDiv(timestamp_millis, MILLIS_PER_DAY);
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, day));
+	}
+
+	/**
+	 * Add a transaction to the rollup of its day.
+	 */
+	public void add(long timestamp_millis, long amount_cents) {
+		int day = dayOf(timestamp_millis);
+		int at;
+		if (size > 0 && days[size - 1] == day) {
+			// the usual case: another transaction of the latest day
+			at = size - 1;
+		} else if (size == 0 || days[size - 1] < day) {
+			at = insert(size, day);
+		} else {
+			at = Arrays.binarySearch(days, 0, size, day);
+			if (at < 0)
+				at = insert(-at - 1, day);
+		}
+		if (amount_cents >= 0)
+			credits_cents[at] += amount_cents;
+		else
+			debits_cents[at] -= amount_cents;
+		counts[at]++;
+		for (int i = at; i < size; i++)
+			closing_cents[i] += amount_cents;
+	}
+
+	// a new row for the day at the given index, closing with the balance of the day before it
+	private int insert(int at, int day) {
+		if (size == days.length) {
+			int capacity = Math.max(8, size * 2);
+			days = Arrays.copyOf(days, capacity);
+			credits_cents = Arrays.copyOf(credits_cents, capacity);
+			debits_cents = Arrays.copyOf(debits_cents, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			closing_cents = Arrays.copyOf(closing_cents, capacity);
+		}
+		int after = size - at;
+		System.arraycopy(days, at, days, at + 1, after);
+		System.arraycopy(credits_cents, at, credits_cents, at + 1, after);
+		System.arraycopy(debits_cents, at, debits_cents, at + 1, after);
+		System.arraycopy(counts, at, counts, at + 1, after);
+		System.arraycopy(closing_cents, at, closing_cents, at + 1, after);
+		days[at] = day;
+		credits_cents[at] = 0;
+		debits_cents[at] = 0;
+		counts[at] = 0;
+		closing_cents[at] = at == 0 ? 0 : closing_cents[at - 1];
+		size++;
+		return at;
+	}
+
+	/**
+	 * @return the number of days that have transactions
+	 */
+	public int size() {
+		return size;
+	}
+
+	// index of the first row whose day is at or after the given one
+	private int firstAtOrAfter(int day) {
+		int at = Arrays.binarySearch(days, 0, size, day);
+		return at < 0 ? -at - 1 : at;
+	}
+
+	/**
+	 * @return the balance at the end of the given day
+	 */
+	public long closing(int day) {
+		int end = day == Integer.MAX_VALUE ? size : firstAtOrAfter(day + 1);
+		return end == 0 ? 0 : closing_cents[end - 1];
+	}
+
+	/**
+	 * Sum up the days in [from_day, to_day).
+	 */
+	public Summary summarize(int from_day, int to_day) {
+		Summary summary = new Summary();
+		int first = firstAtOrAfter(from_day);
+		int end = Math.max(first, firstAtOrAfter(to_day));
+		summary.opening_cents = first == 0 ? 0 : closing_cents[first - 1];
+		summary.closing_cents = end == 0 ? 0 : closing_cents[end - 1];
+		for (int i = first; i < end; i++) {
+			summary.credits_cents += credits_cents[i];
+			summary.debits_cents += debits_cents[i];
+			summary.count += counts[i];
+		}
+		summary.days = end - first;
+		return summary;
+	}
+
+	/**
+	 * Copy the rows of the days in [from_day, to_day).
+	 */
+	public Day[] days(int from_day, int to_day) {
+		int first = firstAtOrAfter(from_day);
+		int end = Math.max(first, firstAtOrAfter(to_day));
+		Day[] copy = new Day[end - first];
+		for (int i = first; i < end; i++)
+			copy[i - first] = new Day(days[i], credits_cents[i], debits_cents[i], counts[i],
+					closing_cents[i]);
+		return copy;
+	}
+
+	/**
+	 * The rollup of one day.
+	 */
+	public static final class Day {
+		private final int day;
+		private final long credits_cents;
+		private final long debits_cents;
+		private final int count;
+		private final long closing_cents;
+
+		Day(int day, long credits_cents, long debits_cents, int count, long closing_cents) {
+			this.day = day;
+			this.credits_cents = credits_cents;
+			this.debits_cents = debits_cents;
+			this.count = count;
+			this.closing_cents = closing_cents;
+		}
+
+		/**
+		 * @return the day, as a number of days since 1970-01-01 (UTC)
+		 */
+		public int getDay() {
+			return day;
+		}
+
+		public long getCredits_cents() {
+			return credits_cents;
+		}
+
+		/**
+		 * @return the sum of the debits of the day, as a positive amount
+		 */
+		public long getDebits_cents() {
+			return debits_cents;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public long getClosing_cents() {
+			return closing_cents;
+		}
+	}
+
+	/**
+	 * The sum of the rollups of a range of days.
+	 */
+	public static final class Summary {
+		long opening_cents;
+		long closing_cents;
+		long credits_cents;
+		long debits_cents;
+		long count;
+		int days;
+
+		/**
+		 * @return the balance at the start of the range
+		 */
+		public long getOpening_cents() {
+			return opening_cents;
+		}
+
+		/**
+		 * @return the balance at the end of the range
+		 */
+		public long getClosing_cents() {
+			return closing_cents;
+		}
+
+		public long getCredits_cents() {
+			return credits_cents;
+		}
+
+		/**
+		 * @return the sum of the debits, as a positive amount
+		 */
+		public long getDebits_cents() {
+			return debits_cents;
+		}
+
+		/**
+		 * @return the number of transactions
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the number of days of the range that have transactions, i.e. the number of rows read
+		 */
+		public int getDays() {
+			return days;
+		}
+
+		public String toString() {
+			return Money.toDouble(opening_cents) + " + " + Money.toDouble(credits_cents) + " - "
+					+ Money.toDouble(debits_cents) + " = " + Money.toDouble(closing_cents) + ", " + count
+					+ " transactions on " + days + " days";
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package model;
+
+/**
+ * Amounts of money are stored as a whole number of cents (minor units) in a long, so that adding them up is
+ * exact and needs no rounding. These helpers convert from and to the double values used by the older API.
+ */
+public class Money {
+
+	public static final long CENTS_PER_UNIT = 100;
+
+	/**
+	 * @param amount an amount in dollars, e.g. 50.21
+	 * @return the amount in cents, rounded to the nearest cent, e.g. 5021
+	 */
+	public static long toCents(double amount) {
+		return Math.round(amount * CENTS_PER_UNIT);
+	}
+
+	/**
+	 * @param cents an amount in cents, e.g. 5021
+	 * @return the amount in dollars, e.g. 50.21
+	 */
+	public static double toDouble(long cents) {
+		return (double) cents / CENTS_PER_UNIT;
+	}
+
+	private Money() {
+	}
+}
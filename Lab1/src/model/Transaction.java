@@ -1,21 +1,63 @@
 package model;
 import java.util.Date;
 
+import utils.MonotonicClock;
+
 public class Transaction {
+	// timestamp_nanos of a transaction that has no date (yet)
+	public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+	
 	public Transaction(String account_number, double transaction_amount, Date transaction_date) {
+		this(account_number, Money.toCents(transaction_amount), transaction_date);
+	}
+	
+	private Transaction(String account_number, long transaction_amount_cents, Date transaction_date) {
 		super();
 		this.account_number = account_number;
-		this.transaction_amount = transaction_amount;
-		this.transaction_date = transaction_date;
+		this.transaction_amount_cents = transaction_amount_cents;
+		setTransaction_date(transaction_date);
+	}
+	
+	private Transaction(String account_number, long transaction_amount_cents, long timestamp_nanos, long sequence) {
+		this.account_number = account_number;
+		this.transaction_amount_cents = transaction_amount_cents;
+		this.timestamp_nanos = timestamp_nanos;
+		this.sequence = sequence;
+	}
+	
+	/**
+	 * Create a transaction from an amount that is already in cents (a deposit of $50.21 is 5021 cents).
+	 * This is a factory method rather than a constructor so that it cannot be mixed up with the double one.
+	 */
+	public static Transaction ofCents(String account_number, long transaction_amount_cents, Date transaction_date) {
+		return new Transaction(account_number, transaction_amount_cents, transaction_date);
+	}
+	
+	/**
+	 * Create a transaction stamped with the current time of the MonotonicClock, without making a Date.
+	 */
+	public static Transaction now(String account_number, long transaction_amount_cents) {
+		return new Transaction(account_number, transaction_amount_cents, MonotonicClock.currentTimeNanos(), 0);
+	}
+	
+	/**
+	 * Create a transaction with a timestamp in nanoseconds since the epoch and a sequence number (see
+	 * getSequence), e.g. from a row of the ledger.
+	 */
+	public static Transaction of(String account_number, long transaction_amount_cents, long timestamp_nanos, long sequence) {
+		return new Transaction(account_number, transaction_amount_cents, timestamp_nanos, sequence);
 	}
 	
 	public String toString() {
-		return account_number + ", " + transaction_amount + ", " + transaction_date;
+		return account_number + ", " + getTransaction_amount() + ", " + getTransaction_date();
 	}
 
 	
 	String account_number;
-	double transaction_amount;
+	long transaction_amount_cents;
+	long timestamp_nanos = NO_TIMESTAMP;
+	long sequence;
+	// made from timestamp_nanos the first time it is asked for
 	Date transaction_date;
 	public String getAccount_number() {
 		return account_number;
@@ -23,16 +65,53 @@ public class Transaction {
 	public void setAccount_number(String account_number) {
 		this.account_number = account_number;
 	}
+	public long getTransaction_amount_cents() {
+		return transaction_amount_cents;
+	}
+	public void setTransaction_amount_cents(long transaction_amount_cents) {
+		this.transaction_amount_cents = transaction_amount_cents;
+	}
+	// compatibility accessors, in dollars
 	public double getTransaction_amount() {
-		return transaction_amount;
+		return Money.toDouble(transaction_amount_cents);
 	}
 	public void setTransaction_amount(double transaction_amount) {
-		this.transaction_amount = transaction_amount;
+		this.transaction_amount_cents = Money.toCents(transaction_amount);
 	}
+	/**
+	 * @return the date of the transaction (to the millisecond), or null if it has none
+	 */
 	public Date getTransaction_date() {
+		if (transaction_date == null && timestamp_nanos != NO_TIMESTAMP)
+			transaction_date = new Date(getTimestamp_millis());
 		return transaction_date;
 	}
 	public void setTransaction_date(Date transaction_date) {
 		this.transaction_date = transaction_date;
+		this.timestamp_nanos = transaction_date == null ? NO_TIMESTAMP
+				: transaction_date.getTime() * 1000000L;
+	}
+	/**
+	 * @return the timestamp in nanoseconds since the epoch, or NO_TIMESTAMP
+	 */
+	public long getTimestamp_nanos() {
+		return timestamp_nanos;
+	}
+	public void setTimestamp_nanos(long timestamp_nanos) {
+		this.timestamp_nanos = timestamp_nanos;
+		this.transaction_date = null;
+	}
+	public long getTimestamp_millis() {
+		return MonotonicClock.toMillis(timestamp_nanos);
+	}
+	/**
+	 * @return the position of the transaction in the total order of the ledger (1 for the first transaction
+	 * appended), or 0 if it has not been appended to a ledger
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
 	}
 }
@@ -0,0 +1,275 @@
+package model;
+
+import java.util.Date;
+
+import utils.LongKeyMap;
+
+/**
+ * A column-oriented store of transactions. Instead of one Transaction object per row (with its own String and
+ * Date objects), the account, amount, timestamp and sequence number of every row are kept in parallel primitive
+ * arrays: an int account id (the account numbers themselves are stored once, in a dictionary), a long amount in
+ * cents, a long timestamp in milliseconds and a long sequence number (the order of the row in the whole ledger,
+ * see Transaction.getSequence). That is 28 bytes per row, and a full scan reads memory sequentially.
+ *
+ * The columns grow in fixed-size chunks, so adding rows never copies the rows already stored.
+ *
+ * Appends must be done by one thread at a time (the Ledger does them under its stripe lock), but any number of
+ * threads can read at the same time as the writer: the new size is published last, through a volatile field,
+ * so readers always see complete rows.
+ */
+public class TransactionStore {
+
+	static final int CHUNK_SHIFT = 12;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 4096 rows per chunk
+	static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private volatile Columns columns = new Columns(new int[4][], new long[4][], new long[4][], new long[4][]);
+	private volatile int size;
+
+	private volatile String[] account_numbers = new String[16];
+	private volatile int number_of_accounts;
+	// by the AccountKey of the account number; writer side only
+	private final LongKeyMap<Integer> account_ids = new LongKeyMap<Integer>();
+
+	/**
+	 * Add a row to the store.
+	 *
+	 * @param account_number
+	 * @param amount_cents
+	 * @param timestamp_millis
+	 * @return the row number of the new row
+	 */
+	public int append(String account_number, long amount_cents, long timestamp_millis) {
+		return append(accountId(account_number), amount_cents, timestamp_millis);
+	}
+
+	/**
+	 * Add a row to the store, for an account id returned by accountId(), without a sequence number.
+	 *
+	 * @return the row number of the new row
+	 */
+	public int append(int account_id, long amount_cents, long timestamp_millis) {
+		return append(account_id, amount_cents, timestamp_millis, 0);
+	}
+
+	/**
+	 * Same as append(account_id, amount_cents, timestamp_millis), with the sequence number of the row.
+	 *
+	 * @return the row number of the new row
+	 */
+	public int append(int account_id, long amount_cents, long timestamp_millis, long sequence) {
+		int row = size;
+		int chunk = row >>> CHUNK_SHIFT;
+		Columns current = columns;
+		if (chunk == current.accounts.length)
+			current = grow(current);
+		if (current.accounts[chunk] == null) {
+			current.accounts[chunk] = new int[CHUNK_SIZE];
+			current.amounts[chunk] = new long[CHUNK_SIZE];
+			current.timestamps[chunk] = new long[CHUNK_SIZE];
+			current.sequences[chunk] = new long[CHUNK_SIZE];
+		}
+		int offset = row & CHUNK_MASK;
+		current.accounts[chunk][offset] = account_id;
+		current.amounts[chunk][offset] = amount_cents;
+		current.timestamps[chunk][offset] = timestamp_millis;
+		current.sequences[chunk][offset] = sequence;
+		// publishing the new size last makes the row visible to readers
+		size = row + 1;
+		return row;
+	}
+
+	/**
+	 * Get the id of an account in this store, adding the account to the dictionary if it is not there yet.
+	 * Like append, this must only be called by the writer.
+	 *
+	 * @throws IllegalArgumentException if the account number has no AccountKey
+	 */
+	public int accountId(String account_number) {
+		long key = AccountKey.of(account_number);
+		if (key == AccountKey.NO_KEY)
+			throw new IllegalArgumentException("not an account number: " + account_number);
+		return accountId(key, AccountKey.hash(key), account_number);
+	}
+
+	/**
+	 * Same as accountId(String), for a caller that has the AccountKey of the account number and its hash
+	 * already.
+	 */
+	public int accountId(long key, int hash, String account_number) {
+		Integer id = account_ids.get(key, hash);
+		if (id != null)
+			return id;
+
+		String[] names = account_numbers;
+		if (number_of_accounts == names.length) {
+			String[] grown = new String[names.length * 2];
+			System.arraycopy(names, 0, grown, 0, number_of_accounts);
+			names = grown;
+		}
+		int new_id = number_of_accounts;
+		names[new_id] = account_number;
+		account_numbers = names;
+		account_ids.putNew(key, hash, new_id);
+		number_of_accounts = new_id + 1;
+		return new_id;
+	}
+
+	/**
+	 * @return the number of rows in the store
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int accountIdAt(int row) {
+		return columns.accounts[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+	}
+
+	public long amountCentsAt(int row) {
+		return columns.amounts[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+	}
+
+	public long timestampMillisAt(int row) {
+		return columns.timestamps[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+	}
+
+	public long sequenceAt(int row) {
+		return columns.sequences[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the number of accounts in the dictionary; every account id found in the rows is below it
+	 * (if the size was read first)
+	 */
+	public int accountCount() {
+		return number_of_accounts;
+	}
+
+	public String accountNumberOf(int account_id) {
+		return account_numbers[account_id];
+	}
+
+	/**
+	 * Sum the amounts of all the rows of one account, going over the amount and account columns only.
+	 *
+	 * @param account_id
+	 * @return the sum in cents
+	 */
+	public long sumAmountCents(int account_id) {
+		int count = size;
+		Columns current = columns;
+		long sum_cents = 0;
+		for (int chunk = 0, start = 0; start < count; chunk++, start += CHUNK_SIZE) {
+			int[] accounts = current.accounts[chunk];
+			long[] amounts = current.amounts[chunk];
+			int end = Math.min(CHUNK_SIZE, count - start);
+			for (int i = 0; i < end; i++) {
+				if (accounts[i] == account_id)
+					sum_cents += amounts[i];
+			}
+		}
+		return sum_cents;
+	}
+
+	/**
+	 * Make a (new) Transaction object out of one row.
+	 */
+	public Transaction get(int row) {
+		return Transaction.of(accountNumberOf(accountIdAt(row)), amountCentsAt(row),
+				timestampMillisAt(row) * 1000000L, sequenceAt(row));
+	}
+
+	/**
+	 * @return a view that can be moved over the rows of this store, to read them without making a Transaction
+	 * object for each one
+	 */
+	public View view() {
+		return new View(this);
+	}
+
+	private Columns grow(Columns current) {
+		int n = current.accounts.length * 2;
+		int[][] accounts = new int[n][];
+		long[][] amounts = new long[n][];
+		long[][] timestamps = new long[n][];
+		long[][] sequences = new long[n][];
+		System.arraycopy(current.accounts, 0, accounts, 0, current.accounts.length);
+		System.arraycopy(current.amounts, 0, amounts, 0, current.amounts.length);
+		System.arraycopy(current.timestamps, 0, timestamps, 0, current.timestamps.length);
+		System.arraycopy(current.sequences, 0, sequences, 0, current.sequences.length);
+		Columns grown = new Columns(accounts, amounts, timestamps, sequences);
+		columns = grown;
+		return grown;
+	}
+
+
+	// the chunk tables of the four columns, replaced together when they grow
+	static final class Columns {
+		final int[][] accounts;
+		final long[][] amounts;
+		final long[][] timestamps;
+		final long[][] sequences;
+
+		Columns(int[][] accounts, long[][] amounts, long[][] timestamps, long[][] sequences) {
+			this.accounts = accounts;
+			this.amounts = amounts;
+			this.timestamps = timestamps;
+			this.sequences = sequences;
+		}
+	}
+
+	/**
+	 * A movable window on one row of the store, with the same getters as Transaction. The same view is reused
+	 * for every row, so reading through it does not create any objects (except for getTransaction_date).
+	 */
+	public static final class View {
+		private final TransactionStore store;
+		private int row = -1;
+
+		View(TransactionStore store) {
+			this.store = store;
+		}
+
+		public View moveTo(int row) {
+			this.row = row;
+			return this;
+		}
+
+		public int getRow() {
+			return row;
+		}
+
+		public String getAccount_number() {
+			return store.accountNumberOf(store.accountIdAt(row));
+		}
+
+		public long getTransaction_amount_cents() {
+			return store.amountCentsAt(row);
+		}
+
+		public double getTransaction_amount() {
+			return Money.toDouble(store.amountCentsAt(row));
+		}
+
+		public long getTransaction_timestamp_millis() {
+			return store.timestampMillisAt(row);
+		}
+
+		public Date getTransaction_date() {
+			return new Date(store.timestampMillisAt(row));
+		}
+
+		public long getSequence() {
+			return store.sequenceAt(row);
+		}
+
+		public Transaction toTransaction() {
+			return store.get(row);
+		}
+
+		public String toString() {
+			return getAccount_number() + ", " + getTransaction_amount() + ", " + getTransaction_date();
+		}
+	}
+}
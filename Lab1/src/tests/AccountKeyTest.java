@@ -0,0 +1,133 @@
+package tests;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import model.AccountKey;
+import utils.LongKeyMap;
+import utils.TestUtils;
+
+public class AccountKeyTest {
+
+	// account numbers must get distinct keys that give the same number back, leading zeros included;
+	// anything that is not an account number must get no key
+	public static void testPacking() {
+		String[] numbers = { "5495-1234", "5495-0000", "0495-1234", "495-1234", "5495-123456789", "7000-1", "0",
+				"1234567890123456" };
+		boolean passed = true;
+		for (int i = 0; i < numbers.length; i++) {
+			long key = AccountKey.of(numbers[i]);
+			passed &= key != AccountKey.NO_KEY && AccountKey.toString(key).equals(numbers[i]);
+			for (int j = 0; j < i; j++)
+				passed &= key != AccountKey.of(numbers[j]);
+		}
+		String[] invalid = { null, "", "ACC-1", "5495 1234", "12345678901234567" };
+		for (String number : invalid)
+			passed &= AccountKey.of(number) == AccountKey.NO_KEY;
+
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testPacking passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testPacking FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// readers look up keys while the writer keeps adding (and the table keeps growing): every key added
+	// before a lookup started must be found, with its own value
+	public static void testMapWithConcurrentReaders() throws InterruptedException {
+		final LongKeyMap<String> map = new LongKeyMap<String>();
+		final int count = 200000;
+		final AtomicBoolean failed = new AtomicBoolean();
+		Thread[] readers = new Thread[3];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread(new Runnable() {
+				public void run() {
+					while (map.size() < count) {
+						int known = map.size();
+						for (int i = 0; i < known; i += 97) {
+							String number = "5495-" + i;
+							long key = AccountKey.of(number);
+							String value = map.get(key, AccountKey.hash(key));
+							if (!number.equals(value))
+								failed.set(true);
+						}
+					}
+				}
+			});
+			readers[t].start();
+		}
+		for (int i = 0; i < count; i++) {
+			String number = "5495-" + i;
+			long key = AccountKey.of(number);
+			map.putNew(key, AccountKey.hash(key), number);
+		}
+		for (Thread reader : readers)
+			reader.join();
+
+		long missing = AccountKey.of("9999-1111");
+		boolean passed = !failed.get() && map.size() == count && map.values().size() == count
+				&& map.get(missing, AccountKey.hash(missing)) == null;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testMapWithConcurrentReaders passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testMapWithConcurrentReaders FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// not a pass/fail test: the cost of adding a million accounts to a LongKeyMap (growing it from empty) and
+	// to a HashMap by account number, in the order of their numbers (whose String hashes are then consecutive
+	// too, so HashMap fills its table in order) and in a random order
+	public static void measureInserts() {
+		int n = 1000000;
+		Random random = new Random(1);
+		for (boolean consecutive : new boolean[] { true, false }) {
+			String[] numbers = new String[n];
+			long[] keys = new long[n];
+			int[] hashes = new int[n];
+			for (int i = 0; i < n; i++) {
+				numbers[i] = "7000-" + i;
+				int j = consecutive ? i : random.nextInt(i + 1);
+				numbers[i] = numbers[j];
+				numbers[j] = "7000-" + i;
+			}
+			for (int i = 0; i < n; i++) {
+				keys[i] = AccountKey.of(numbers[i]);
+				hashes[i] = AccountKey.hash(keys[i]);
+			}
+			for (int round = 0; round < 5; round++) {
+				System.gc();
+				long start = System.nanoTime();
+				LongKeyMap<String> map = new LongKeyMap<String>();
+				for (int i = 0; i < n; i++)
+					map.putNew(keys[i], hashes[i], numbers[i]);
+				long inserted = System.nanoTime();
+				for (int i = 0; i < n; i++)
+					map.get(keys[i], hashes[i]);
+				long looked_up = System.nanoTime();
+				map = null;
+				System.gc();
+				long hash_start = System.nanoTime();
+				HashMap<String, String> hash_map = new HashMap<String, String>();
+				for (int i = 0; i < n; i++)
+					hash_map.put(numbers[i], numbers[i]);
+				long hash_inserted = System.nanoTime();
+				for (int i = 0; i < n; i++)
+					hash_map.get(numbers[i]);
+				long hash_looked_up = System.nanoTime();
+				if (round >= 2)
+					System.out.format("measureInserts: %s account numbers: LongKeyMap %d ms to insert, %d ms to look up; "
+							+ "HashMap %d ms to insert, %d ms to look up%n", consecutive ? "ordered" : "shuffled",
+							(inserted - start) / 1000000, (looked_up - inserted) / 1000000,
+							(hash_inserted - hash_start) / 1000000, (hash_looked_up - hash_inserted) / 1000000);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		testPacking();
+		testMapWithConcurrentReaders();
+		measureInserts();
+	}
+
+}
@@ -0,0 +1,260 @@
+package tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import app.BankingServer;
+import app.SimpleBankingApp;
+import utils.TestUtils;
+
+public class BankingServerTest {
+
+	static int port;
+
+	// status code and body of a request made with HttpURLConnection
+	static String[] request(String method, String path) throws IOException {
+		return request(method, path, null);
+	}
+
+	// the same, with an Idempotency-Key header unless idempotency_key is null
+	static String[] request(String method, String path, String idempotency_key) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+		connection.setRequestMethod(method);
+		if (idempotency_key != null)
+			connection.setRequestProperty("Idempotency-Key", idempotency_key);
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int n; (n = in.read(buffer)) > 0;)
+			body.write(buffer, 0, n);
+		in.close();
+		return new String[] { Integer.toString(status), new String(body.toByteArray(), StandardCharsets.UTF_8) };
+	}
+
+	static int count(String s, String part) {
+		int count = 0;
+		for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1))
+			count++;
+		return count;
+	}
+
+	// every endpoint, with the sample data of SimpleBankingApp
+	public static void testEndpoints() throws IOException {
+		long balanceBefore = SimpleBankingApp.getBalanceCents("5495-1234");
+		String[] deposit = request("POST", "/transactions?account=5495-1234&amount=50.21");
+		long balanceAfterDeposit = SimpleBankingApp.getBalanceCents("5495-1234");
+		String[] unknown = request("POST", "/transactions?account=9999-1111&amount=21.00");
+		String[] zero = request("POST", "/transactions?account=5495-1234&amount=0");
+		String[] tooPrecise = request("POST", "/transactions?account=5495-1234&amount=1.001");
+		String[] balance = request("GET", "/accounts/5495-1234/balance");
+		String[] noAccount = request("GET", "/accounts/9999-1111/balance");
+		String[] all = request("GET", "/accounts");
+		String[] portfolio = request("GET", "/accounts?holder=mike");
+		String[] user = request("GET", "/users/mike");
+		String[] noUser = request("GET", "/users/nobody");
+		String[] wrongMethod = request("GET", "/transactions?account=5495-1234&amount=1");
+		long toBefore = SimpleBankingApp.getBalanceCents("5495-6789");
+		String[] transfer = request("POST", "/transfers?from=5495-1234&to=5495-6789&amount=1.50");
+		String[] overdraw = request("POST", "/transfers?from=5495-1234&to=5495-6789&amount=99999999");
+		// a retry gets the same answer as the first request, even though the balance has changed since
+		String[] idempotent = request("POST", "/transactions?account=5495-1234&amount=3.00", "key-1");
+		request("POST", "/transactions?account=5495-1234&amount=4.00");
+		String[] retry = request("POST", "/transactions?account=5495-1234&amount=3.00", "key-1");
+		String[] reused = request("POST", "/transactions?account=5495-1234&amount=5.00", "key-1");
+
+		boolean passed = deposit[0].equals("200") && balanceAfterDeposit == balanceBefore + 5021
+				&& unknown[0].equals("404") && unknown[1].contains("UNKNOWN_ACCOUNT")
+				&& zero[0].equals("400") && tooPrecise[0].equals("400")
+				&& balance[0].equals("200") && balance[1].contains("\"balance\":" + balanceAfterDeposit / 100.0)
+				&& noAccount[0].equals("404")
+				&& all[0].equals("200") && count(all[1], "\"account\":") == SimpleBankingApp.accounts.size()
+				&& portfolio[0].equals("200") && count(portfolio[1], "\"account\":") == 3
+				&& user[0].equals("200") && user[1].contains("\"first_name\":\"Mike\"") && !user[1].contains("password")
+				&& noUser[0].equals("404") && wrongMethod[0].equals("405")
+				&& transfer[0].equals("200") && SimpleBankingApp.getBalanceCents("5495-6789") == toBefore + 150
+				&& overdraw[0].equals("409") && overdraw[1].contains("INSUFFICIENT_FUNDS")
+				&& idempotent[0].equals("200") && retry[0].equals("200") && retry[1].equals(idempotent[1])
+				&& reused[0].equals("422") && reused[1].contains("REQUEST_ID_REUSED");
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testEndpoints passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testEndpoints FAILED: " + Arrays.deepToString(new Object[] {
+					deposit, unknown, zero, tooPrecise, balance, noAccount, all, portfolio, user, noUser, wrongMethod,
+					transfer, overdraw, idempotent, retry, reused })
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// a minimal HTTP/1.1 client on one keep-alive connection, to keep the cost of the client low
+	static final class Client {
+		final Socket socket;
+		final OutputStream out;
+		final InputStream in;
+		final byte[] buffer = new byte[8192];
+
+		Client() throws IOException {
+			socket = new Socket("localhost", port);
+			socket.setTcpNoDelay(true);
+			out = socket.getOutputStream();
+			in = socket.getInputStream();
+		}
+
+		// returns the status code
+		int send(String method, String path) throws IOException {
+			out.write((method + " " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			// read the headers, then as many bytes as the Content-Length
+			int length = 0;
+			int content_length = 0;
+			int end_of_headers = -1;
+			while (end_of_headers < 0) {
+				int n = in.read(buffer, length, buffer.length - length);
+				if (n < 0)
+					throw new IOException("connection closed");
+				length += n;
+				for (int i = 3; i < length; i++) {
+					if (buffer[i - 3] == '\r' && buffer[i - 2] == '\n' && buffer[i - 1] == '\r' && buffer[i] == '\n') {
+						end_of_headers = i + 1;
+						break;
+					}
+				}
+			}
+			String headers = new String(buffer, 0, end_of_headers, StandardCharsets.US_ASCII);
+			int at = headers.toLowerCase().indexOf("content-length:");
+			if (at >= 0)
+				content_length = Integer.parseInt(headers.substring(at + 15, headers.indexOf('\r', at)).trim());
+			int remaining = content_length - (length - end_of_headers);
+			while (remaining > 0) {
+				int n = in.read(buffer, 0, Math.min(buffer.length, remaining));
+				if (n < 0)
+					throw new IOException("connection closed");
+				remaining -= n;
+			}
+			return Integer.parseInt(headers.substring(9, 12));
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	// not a pass/fail test (except that every request must succeed): holds a number of idle connections open
+	// (-Dconnections=...), runs a mix of balance reads and deposits from several keep-alive clients meanwhile,
+	// and prints the latency percentiles. Every idle connection is then used once, to check it was still being
+	// served. By default it opens 50,000 idle connections, or as many as the file descriptor limit of the process
+	// allows: the client and the server are in the same process, so each connection takes two descriptors.
+	public static void measureLoad() throws IOException, InterruptedException {
+		int idle = Integer.getInteger("connections", defaultIdleConnections());
+		final int clients = 32;
+		final int requests = 2000;
+
+		// each idle connection makes one request first, so it is held as an idle keep-alive connection
+		List<Client> idleClients = new ArrayList<Client>(idle);
+		for (int i = 0; i < idle; i++) {
+			Client client = new Client();
+			client.send("GET", "/users/mike");
+			idleClients.add(client);
+		}
+
+		final long[][] latencies = new long[clients][requests];
+		final int[] failures = new int[1];
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for (int t = 0; t < clients; t++) {
+			final int index = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Client client = new Client();
+						for (int i = 0; i < requests; i++) {
+							long begin = System.nanoTime();
+							int status = i % 5 == 0 ? client.send("POST", "/transactions?account=5495-6789&amount=1.00")
+									: client.send("GET", "/accounts/5495-6789/balance");
+							latencies[index][i] = System.nanoTime() - begin;
+							if (status != 200) {
+								synchronized (failures) {
+									failures[0]++;
+								}
+							}
+						}
+						client.close();
+					} catch (IOException e) {
+						synchronized (failures) {
+							failures[0] += requests;
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		long elapsed = System.nanoTime() - start;
+
+		int idleServed = 0;
+		for (Client client : idleClients) {
+			try {
+				if (client.send("GET", "/accounts/5495-1234/balance") == 200)
+					idleServed++;
+			} catch (IOException e) {
+				// closed by the server
+			}
+			client.close();
+		}
+
+		long[] all = new long[clients * requests];
+		for (int t = 0; t < clients; t++)
+			System.arraycopy(latencies[t], 0, all, t * requests, requests);
+		Arrays.sort(all);
+		System.out.format("measureLoad: %,d requests from %d clients with %,d idle connections open: %,.0f requests/s ; "
+				+ "p50 %.0f us, p99 %.0f us, max %.0f us%n", all.length, clients, idle, all.length * 1e9 / elapsed,
+				all[all.length / 2] / 1e3, all[(int) (all.length * 0.99)] / 1e3, all[all.length - 1] / 1e3);
+
+		boolean passed = failures[0] == 0 && idleServed == idle;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "measureLoad passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "measureLoad FAILED: " + failures[0] + " failed requests, "
+					+ idleServed + " of " + idle + " idle connections served." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	static int defaultIdleConnections() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (!(os instanceof UnixOperatingSystemMXBean))
+			return 4000;
+		// leaving some descriptors for the clients, the journal, the JDK's own files, ...
+		long descriptors = ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount() - 1000;
+		return (int) Math.max(1000, Math.min(50000, descriptors / 2));
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		BankingServer.setServerProperties();
+		SimpleBankingApp.loadUserData();
+		SimpleBankingApp.loadAccountData();
+		BankingServer server = BankingServer.start(0);
+		port = server.getPort();
+		try {
+			testEndpoints();
+			measureLoad();
+		} finally {
+			server.stop(0);
+		}
+	}
+
+}
@@ -0,0 +1,333 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import app.Checkpoint;
+import app.Journal;
+import app.Ledger;
+import app.SimpleBankingApp;
+import model.Account;
+import model.DailyRollups;
+import model.TransactionStore;
+import utils.TestUtils;
+
+public class CheckpointTest {
+
+	static final Consumer<TransactionStore.View> NO_ACTION = new Consumer<TransactionStore.View>() {
+		public void accept(TransactionStore.View view) {
+		}
+	};
+
+	static File tempFile(String prefix) throws IOException {
+		File file = File.createTempFile(prefix, ".dat");
+		file.deleteOnExit();
+		// the history of a checkpoint goes next to it
+		new File(file.getPath() + ".history").deleteOnExit();
+		return file;
+	}
+
+	// checkpoints are taken while writers keep appending; restoring the last one and replaying the rest of
+	// the journal must give the same balances as replaying the whole journal, each transaction counted once,
+	// and keep every transaction (with its sequence number) in the history of its account
+	public static void testRestore() throws IOException, InterruptedException {
+		File journalFile = tempFile("journal");
+		File checkpointFile = tempFile("checkpoint");
+
+		final Ledger ledger = new Ledger(8);
+		Journal journal = new Journal(journalFile.getPath(), Journal.FsyncPolicy.PERIODIC, 64 * 1024, 10);
+		ledger.replay(journal, 0);
+		ledger.attachJournal(journal);
+
+		final AtomicInteger running = new AtomicInteger(4);
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			final int offset = t;
+			writers[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 50000; i++)
+						ledger.append("5495-" + (1000 + (i * 7 + offset) % 300), i % 2 == 0 ? 150 : -49, i);
+					running.decrementAndGet();
+				}
+			});
+			writers[t].start();
+		}
+		Checkpoint checkpoint = Checkpoint.write(ledger, checkpointFile.getPath());
+		while (running.get() > 1)
+			checkpoint = Checkpoint.write(ledger, checkpointFile.getPath());
+		for (Thread writer : writers)
+			writer.join();
+		journal.close();
+
+		Ledger fromCheckpoint = new Ledger(8);
+		Checkpoint restored = Checkpoint.restore(fromCheckpoint, checkpointFile.getPath());
+		journal = new Journal(journalFile.getPath(), Journal.FsyncPolicy.PERIODIC, 64 * 1024, 10);
+		long tail = fromCheckpoint.replay(journal, restored.getJournal_position());
+		journal.close();
+
+		Ledger fromScratch = new Ledger(8);
+		journal = new Journal(journalFile.getPath(), Journal.FsyncPolicy.PERIODIC, 64 * 1024, 10);
+		long all = fromScratch.replay(journal, 0);
+		journal.close();
+
+		boolean passed = all == ledger.size() && tail < all
+				&& restored.getJournal_position() == checkpoint.getJournal_position()
+				&& fromCheckpoint.totalBalanceCents() == ledger.totalBalanceCents()
+				&& fromScratch.totalBalanceCents() == ledger.totalBalanceCents()
+				&& fromCheckpoint.verify() == 0
+				&& fromCheckpoint.size() == ledger.size();
+		for (int a = 0; a < 300 && passed; a++) {
+			String accountNumber = "5495-" + (1000 + a);
+			passed = fromCheckpoint.getBalanceCents(accountNumber) == ledger.getBalanceCents(accountNumber)
+					&& fromCheckpoint.recomputeBalanceCents(accountNumber) == ledger.getBalanceCents(accountNumber)
+					&& fromCheckpoint.balancesForAll().getCents(accountNumber) == ledger.getBalanceCents(accountNumber)
+					&& fromCheckpoint.transactions(accountNumber, 0, Long.MAX_VALUE, NO_ACTION)
+							== ledger.transactions(accountNumber, 0, Long.MAX_VALUE, NO_ACTION);
+		}
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testRestore passed (replayed " + tail + " of " + all
+					+ " transactions after the checkpoint)." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testRestore FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// a damaged checkpoint must be refused without touching the ledger
+	public static void testCorruptCheckpoint() throws IOException {
+		File checkpointFile = tempFile("checkpoint");
+		Ledger ledger = new Ledger(4);
+		ledger.append("5495-1234", 1079, 1L);
+		Checkpoint.write(ledger, checkpointFile.getPath());
+
+		RandomAccessFile raw = new RandomAccessFile(checkpointFile, "rw");
+		raw.seek(raw.length() - 12);
+		raw.write(0x55);
+		raw.close();
+
+		Ledger restored = new Ledger(4);
+		boolean refused = false;
+		try {
+			Checkpoint.restore(restored, checkpointFile.getPath());
+		} catch (IOException e) {
+			refused = true;
+		}
+
+		boolean passed = refused && restored.getBalanceCents("5495-1234") == 0 && !restored.isOpen("5495-1234");
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testCorruptCheckpoint passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testCorruptCheckpoint FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// with the journal truncated after every checkpoint, a restart must still have every transaction: the
+	// balances from the checkpoint, the transactions before it from its history and the rest from the journal,
+	// numbered in the order of the journal
+	public static void testTruncatedJournal() throws IOException {
+		File journalFile = tempFile("journal");
+		File checkpointFile = tempFile("checkpoint");
+
+		Ledger ledger = new Ledger(4);
+		Journal journal = new Journal(journalFile.getPath(), Journal.FsyncPolicy.PERIODIC, 4096, 10);
+		ledger.replay(journal, 0);
+		ledger.attachJournal(journal);
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 1000; i++)
+				ledger.append("5495-" + (1000 + i % 50), i % 3 == 0 ? -20 : 100, round * 1000 + i);
+			Checkpoint checkpoint = Checkpoint.write(ledger, checkpointFile.getPath());
+			journal.truncate(checkpoint.getJournal_position());
+		}
+		for (int i = 0; i < 100; i++)
+			ledger.append("5495-" + (1000 + i % 50), 7, 500 + i);
+		long firstPosition = journal.firstPosition();
+		journal.close();
+
+		Ledger restored = new Ledger(4);
+		Checkpoint checkpoint = Checkpoint.restore(restored, checkpointFile.getPath());
+		journal = new Journal(journalFile.getPath(), Journal.FsyncPolicy.PERIODIC, 4096, 10);
+		long tail = restored.replay(journal, checkpoint.getJournal_position());
+		journal.close();
+
+		boolean passed = firstPosition > 0 && tail == 100 && checkpoint.getHistory_transactions() == 5000
+				&& restored.size() == ledger.size() && restored.lastSequence() == ledger.size()
+				&& restored.totalBalanceCents() == ledger.totalBalanceCents() && restored.verify() == 0;
+		for (int a = 0; a < 50 && passed; a++) {
+			String accountNumber = "5495-" + (1000 + a);
+			passed = amountsOf(restored, accountNumber).equals(amountsOf(ledger, accountNumber))
+					&& restored.summarize(accountNumber, 0, DailyRollups.MILLIS_PER_DAY).toString()
+							.equals(ledger.summarize(accountNumber, 0, DailyRollups.MILLIS_PER_DAY).toString());
+		}
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testTruncatedJournal passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testTruncatedJournal FAILED: replayed " + tail
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	static List<Long> amountsOf(Ledger ledger, String accountNumber) {
+		final List<Long> amounts = new ArrayList<Long>();
+		ledger.transactions(accountNumber, 0, Long.MAX_VALUE, new Consumer<TransactionStore.View>() {
+			public void accept(TransactionStore.View view) {
+				amounts.add(view.getTransaction_amount_cents());
+			}
+		});
+		return amounts;
+	}
+
+	// closes the journal of SimpleBankingApp (which writes a checkpoint) and opens it again in a fresh app, as
+	// a restart does; the accounts are registered again, as loading them does
+	static long restart(String journalPath, String... accountNumbers) throws IOException {
+		SimpleBankingApp.closeJournal();
+		SimpleBankingApp.reset();
+		long replayed = SimpleBankingApp.openJournal(journalPath, Journal.FsyncPolicy.PERIODIC);
+		for (String accountNumber : accountNumbers)
+			SimpleBankingApp.registerAccount(new Account(accountNumber, "user", "Standard", new Date(0)));
+		return replayed;
+	}
+
+	static List<Long> amountsBetween(String accountNumber, long from_millis, long to_millis) {
+		final List<Long> amounts = new ArrayList<Long>();
+		SimpleBankingApp.transactions(accountNumber, new Date(from_millis), new Date(to_millis),
+				new Consumer<TransactionStore.View>() {
+					public void accept(TransactionStore.View view) {
+						amounts.add(view.getTransaction_amount_cents());
+					}
+				});
+		return amounts;
+	}
+
+	// the transactions from before a restart must still be found by range queries after it, including after
+	// a second restart from the checkpoint of a restored ledger
+	public static void testRangesAfterRestart() throws IOException {
+		String journalPath = tempFile("journal").getPath();
+		new File(journalPath + ".checkpoint").deleteOnExit();
+		new File(journalPath + ".checkpoint.history").deleteOnExit();
+		String accountNumber = "5495-1234";
+		long day = DailyRollups.MILLIS_PER_DAY;
+		long start = 20000 * day;
+		SimpleBankingApp.reset();
+		SimpleBankingApp.openJournal(journalPath, Journal.FsyncPolicy.PERIODIC);
+		SimpleBankingApp.registerAccount(new Account(accountNumber, "user", "Standard", new Date(0)));
+		for (int i = 0; i < 30; i++)
+			SimpleBankingApp.ledger.append(accountNumber, i % 3 == 0 ? -250 : 1000 + i, start + i * day / 3);
+		List<Long> before = amountsBetween(accountNumber, start + day, start + 5 * day);
+
+		long replayed = restart(journalPath, accountNumber);
+		List<Long> after = amountsBetween(accountNumber, start + day, start + 5 * day);
+		SimpleBankingApp.ledger.append(accountNumber, 5, start + 11 * day);
+		replayed += restart(journalPath, accountNumber);
+		List<Long> again = amountsBetween(accountNumber, start + day, start + 5 * day);
+		int all = amountsBetween(accountNumber, 0, Long.MAX_VALUE).size();
+		SimpleBankingApp.closeJournal();
+		SimpleBankingApp.reset();
+
+		boolean passed = replayed == 0 && before.size() == 12 && before.equals(after) && before.equals(again)
+				&& all == 31;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testRangesAfterRestart passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testRangesAfterRestart FAILED: " + before + " ; " + after
+					+ " ; " + again + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// the daily rollups must be the same after a restart: summaries, days and closing balances of the days
+	// before it, not only the current balance
+	public static void testRollupsAfterRestart() throws IOException {
+		String journalPath = tempFile("journal").getPath();
+		new File(journalPath + ".checkpoint").deleteOnExit();
+		new File(journalPath + ".checkpoint.history").deleteOnExit();
+		String accountNumber = "5495-1234";
+		long day = DailyRollups.MILLIS_PER_DAY;
+		int first = 20000;
+		SimpleBankingApp.reset();
+		SimpleBankingApp.openJournal(journalPath, Journal.FsyncPolicy.PERIODIC);
+		SimpleBankingApp.registerAccount(new Account(accountNumber, "user", "Standard", new Date(0)));
+		for (int i = 0; i < 40; i++)
+			SimpleBankingApp.ledger.append(accountNumber, i % 4 == 0 ? -300 : 100 * i, first * day + i * day / 4);
+		String summary = SimpleBankingApp.summarize(accountNumber, new Date((first + 2) * day), new Date((first + 7) * day)).toString();
+		int days = SimpleBankingApp.dailyRollups(accountNumber, new Date(0), new Date(Long.MAX_VALUE)).length;
+		long closing = SimpleBankingApp.ledger.getClosingBalanceCents(accountNumber, first + 3);
+		long balance = SimpleBankingApp.getBalanceCents(accountNumber);
+
+		restart(journalPath, accountNumber);
+		boolean passed = summary.equals(SimpleBankingApp.summarize(accountNumber, new Date((first + 2) * day),
+						new Date((first + 7) * day)).toString())
+				&& days == 10 && SimpleBankingApp.dailyRollups(accountNumber, new Date(0), new Date(Long.MAX_VALUE)).length == days
+				&& closing != balance && SimpleBankingApp.ledger.getClosingBalanceCents(accountNumber, first + 3) == closing
+				&& SimpleBankingApp.getBalanceCents(accountNumber) == balance;
+		SimpleBankingApp.closeJournal();
+		SimpleBankingApp.reset();
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testRollupsAfterRestart passed (" + summary + ")."
+					+ TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testRollupsAfterRestart FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// not a pass/fail test: prints the startup time with a full replay against a checkpoint and a short tail
+	public static void measureStartup() throws IOException {
+		File journalFile = tempFile("journal");
+		File checkpointFile = tempFile("checkpoint");
+		int count = 2000000;
+		int batch = 10000;
+		String[] accountNumbers = new String[batch];
+		long[] amounts = new long[batch];
+		for (int i = 0; i < batch; i++) {
+			accountNumbers[i] = "5495-" + (10000 + i % 5000);
+			amounts[i] = i % 2 == 0 ? 1000 : -500;
+		}
+
+		Ledger ledger = new Ledger();
+		Journal journal = new Journal(journalFile.getPath(), Journal.FsyncPolicy.PERIODIC);
+		ledger.replay(journal, 0);
+		ledger.attachJournal(journal);
+		for (int i = 0; i < count; i += batch) {
+			ledger.appendBatch(accountNumbers, amounts, batch, i);
+			if (i == count - 10 * batch)
+				Checkpoint.write(ledger, checkpointFile.getPath());
+		}
+		journal.close();
+
+		long start = System.nanoTime();
+		journal = new Journal(journalFile.getPath(), Journal.FsyncPolicy.PERIODIC);
+		new Ledger().replay(journal, 0);
+		journal.close();
+		long full = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		Ledger restored = new Ledger();
+		Checkpoint checkpoint = Checkpoint.restore(restored, checkpointFile.getPath());
+		journal = new Journal(journalFile.getPath(), Journal.FsyncPolicy.PERIODIC);
+		long tail = restored.replay(journal, checkpoint.getJournal_position());
+		journal.close();
+		long fromCheckpoint = System.nanoTime() - start;
+
+		// the history is read by the first query that needs it
+		start = System.nanoTime();
+		restored.transactions(accountNumbers[0], 0, Long.MAX_VALUE, NO_ACTION);
+		long history = System.nanoTime() - start;
+
+		System.out.format("measureStartup: full replay of %,d transactions: %.0f ms ; checkpoint + %,d transactions: %.0f ms"
+				+ " (then %.0f ms to read the history on first use)%n", count, full / 1e6, tail, fromCheckpoint / 1e6,
+				history / 1e6);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		testRestore();
+		testCorruptCheckpoint();
+		testTruncatedJournal();
+		testRangesAfterRestart();
+		testRollupsAfterRestart();
+		measureStartup();
+	}
+
+}
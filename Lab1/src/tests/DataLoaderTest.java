@@ -0,0 +1,201 @@
+package tests;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import app.DataLoader;
+import app.Metrics;
+import app.SimpleBankingApp;
+import utils.TestUtils;
+
+public class DataLoaderTest {
+
+	static File writeFile(String suffix, String content) throws IOException {
+		File file = File.createTempFile("data", suffix);
+		file.deleteOnExit();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		writer.write(content);
+		writer.close();
+		return file;
+	}
+
+	// header, comment, empty and \r\n lines, a tab-separated file and a last line without a new line
+	public static void testForEachRow() throws IOException {
+		File file = writeFile(".tsv", "account\tamount\n# a comment\n5495-1234\t-50.21\r\n\n5495-6789\t 21 \n5495-1239\t.5");
+		final List<String> accounts = new ArrayList<String>();
+		final List<Long> amounts = new ArrayList<Long>();
+		long rows = DataLoader.forFile(file.getPath(), true).forEachRow(file.getPath(), new DataLoader.RowHandler() {
+			public void handle(DataLoader.Row row) {
+				accounts.add(row.field(0));
+				amounts.add(row.cents(1));
+			}
+		});
+
+		boolean passed = rows == 3
+				&& accounts.get(0).equals("5495-1234") && amounts.get(0) == -5021
+				&& accounts.get(1).equals("5495-6789") && amounts.get(1) == 2100
+				&& accounts.get(2).equals("5495-1239") && amounts.get(2) == 50;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testForEachRow passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testForEachRow FAILED: " + accounts + " " + amounts + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// loads users, accounts and transactions from files into the app, with enough accounts to go over
+	// several read buffers, and prints the rows per second
+	public static void testLoadFiles() throws IOException {
+		File users = writeFile(".csv", "username,password,first_name,last_name,mobile_number\n"
+				+ "mike,my_passwd,Mike,Smith,07771234567\n");
+
+		int count = 1000000;
+		File accounts = File.createTempFile("accounts", ".csv");
+		accounts.deleteOnExit();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(accounts), 1 << 16);
+		for (int i = 0; i < count; i++)
+			writer.write("7000-" + i + ",mike,Standard,20/08/2019\n");
+		writer.close();
+
+		File transactions = writeFile(".csv", "7000-1,10.79,20/08/2019 10:15:00\n7000-1,-140,21/08/2019 09:00:00\n");
+
+		long loadedUsers = SimpleBankingApp.loadUserData(users.getPath(), true);
+		long loadedAccounts = SimpleBankingApp.loadAccountData(accounts.getPath(), false);
+		long loadedTransactions = SimpleBankingApp.loadTransactionData(transactions.getPath(), false);
+
+		boolean passed = loadedUsers == 1 && loadedAccounts == count && loadedTransactions == 2
+				&& SimpleBankingApp.accounts.get(count - 1).getAccount_number().equals("7000-" + (count - 1))
+				&& SimpleBankingApp.getBalanceCents("7000-1") == -12921;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testLoadFiles passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testLoadFiles FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// a row that cannot be parsed stops the file with its line number: the rows before it are loaded (all of
+	// them, even those of a batch that was not full yet) and the rows after it are not
+	public static void testPartialLoad() throws IOException {
+		File accounts = writeFile(".csv", "7100-1,mike,Standard,20/08/2019\n# a comment\n7100-2,mike,Standard,20/08/2019\n"
+				+ "7100-3,mike,Standard,2019-08-20\n7100-4,mike,Standard,20/08/2019\n");
+		File transactions = writeFile(".csv", "7100-1,10.00,20/08/2019 10:15:00\n7100-2,5.00,20/08/2019 10:16:00\n"
+				+ "7100-1,2.50,20/08/2019 10:17:00\n7100-2,ten,20/08/2019 10:18:00\n7100-1,100.00,20/08/2019 10:19:00\n");
+		String accountsError = null;
+		try {
+			SimpleBankingApp.loadAccountData(accounts.getPath(), false);
+		} catch (IOException e) {
+			accountsError = e.getMessage();
+		}
+		String transactionsError = null;
+		try {
+			SimpleBankingApp.loadTransactionData(transactions.getPath(), false);
+		} catch (IOException e) {
+			transactionsError = e.getMessage();
+		}
+
+		boolean passed = accountsError != null && accountsError.contains("line 4")
+				&& SimpleBankingApp.ledger.isOpen("7100-2") && !SimpleBankingApp.ledger.isOpen("7100-3")
+				&& !SimpleBankingApp.ledger.isOpen("7100-4")
+				&& transactionsError != null && transactionsError.contains("line 4")
+				&& SimpleBankingApp.getBalanceCents("7100-1") == 1250 && SimpleBankingApp.getBalanceCents("7100-2") == 500;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testPartialLoad passed (" + transactionsError + ")."
+					+ TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testPartialLoad FAILED: " + accountsError + " ; "
+					+ transactionsError + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// an amount whose cents do not fit in a long is rejected like any other amount that cannot be parsed,
+	// instead of wrapping around
+	public static void testAmountOverflow() throws IOException {
+		File file = writeFile(".csv", "92233720368547758.07\n-92233720368547758.07\n92233720368547758.08\n"
+				+ "100000000000000000\n");
+		final List<Long> amounts = new ArrayList<Long>();
+		final List<String> errors = new ArrayList<String>();
+		DataLoader.forFile(file.getPath(), false).forEachRow(file.getPath(), new DataLoader.RowHandler() {
+			public void handle(DataLoader.Row row) {
+				try {
+					amounts.add(row.cents(0));
+				} catch (NumberFormatException e) {
+					errors.add(e.getMessage());
+				}
+			}
+		});
+
+		boolean passed = amounts.size() == 2 && amounts.get(0) == Long.MAX_VALUE && amounts.get(1) == -Long.MAX_VALUE
+				&& errors.size() == 2 && errors.get(0).contains("out of range") && errors.get(1).contains("out of range");
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testAmountOverflow passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testAmountOverflow FAILED: " + amounts + " " + errors
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	static long rejectedInvalid() throws JMException {
+		return ((Long) ManagementFactory.getPlatformMBeanServer().getAttribute(
+				new ObjectName("SimpleBankingApp:type=Ledger"), "RejectedInvalid")).longValue();
+	}
+
+	// the rows of a transaction file are validated as by addTransaction: an amount of zero, an empty account
+	// number or an unknown account is rejected and counted, and the rows around it are loaded
+	public static void testRejectedTransactions() throws IOException, JMException {
+		Metrics.register();
+		long invalidBefore = rejectedInvalid();
+		long unknownBefore = SimpleBankingApp.getRejectedTransactionCount();
+		long balanceBefore = SimpleBankingApp.getBalanceCents("7000-1");
+		File transactions = writeFile(".csv", "7000-1,1.00,20/08/2019 10:15:00\n7000-1,0,20/08/2019 10:16:00\n"
+				+ "7000-1,0.00,20/08/2019 10:17:00\n,5.00,20/08/2019 10:18:00\n9999-1111,5.00,20/08/2019 10:19:00\n"
+				+ "7000-1,2.00,20/08/2019 10:20:00\n");
+		long loaded = SimpleBankingApp.loadTransactionData(transactions.getPath(), false);
+
+		boolean passed = loaded == 2 && SimpleBankingApp.getBalanceCents("7000-1") == balanceBefore + 300
+				&& rejectedInvalid() == invalidBefore + 3
+				&& SimpleBankingApp.getRejectedTransactionCount() == unknownBefore + 1;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testRejectedTransactions passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testRejectedTransactions FAILED: loaded " + loaded
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// accounts opened in batches are skipped when their number is taken, also by an earlier row of the same
+	// batch, or is not a valid account number
+	public static void testDuplicateAccounts() throws IOException {
+		SimpleBankingApp.loadAccountData(writeFile(".csv", "7200-1,mike,Standard,20/08/2019\n").getPath(), false);
+		int before = SimpleBankingApp.accounts.size();
+		File accounts = writeFile(".csv", "7200-1,mike,Standard,20/08/2019\n7200-2,mike,Standard,20/08/2019\n"
+				+ "7200-2,mike,Saving,20/08/2019\nACC-1,mike,Standard,20/08/2019\n7200-3,mike,Saving,20/08/2019\n");
+		long loaded = SimpleBankingApp.loadAccountData(accounts.getPath(), false);
+
+		boolean passed = loaded == 2 && SimpleBankingApp.accounts.size() == before + 2
+				&& SimpleBankingApp.ledger.isOpen("7200-2") && SimpleBankingApp.ledger.isOpen("7200-3")
+				&& SimpleBankingApp.accounts.get(before).getAccount_type().equals("Standard");
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testDuplicateAccounts passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testDuplicateAccounts FAILED: loaded " + loaded
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	public static void main(String[] args) throws IOException, JMException {
+		testForEachRow();
+		testLoadFiles();
+		testPartialLoad();
+		testAmountOverflow();
+		testRejectedTransactions();
+		testDuplicateAccounts();
+	}
+
+}
@@ -0,0 +1,115 @@
+package tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import app.RequestOutcome;
+import app.SimpleBankingApp;
+import app.TransactionResult;
+import utils.DedupeCache;
+import utils.TestUtils;
+
+public class DedupeCacheTest {
+
+	// a retried request gets the first result and adds nothing; another request id is a new transaction
+	public static void testRetries() {
+		long balanceBefore = SimpleBankingApp.getBalanceCents("5495-1234");
+		TransactionResult first = SimpleBankingApp.addTransaction("req-1", "5495-1234", 10.00);
+		TransactionResult retry = SimpleBankingApp.addTransaction("req-1", "5495-1234", 10.00);
+		TransactionResult other = SimpleBankingApp.addTransaction("req-2", "5495-1234", 10.00);
+		TransactionResult unknown = SimpleBankingApp.addTransaction("req-3", "9999-1111", 10.00);
+		TransactionResult unknownRetry = SimpleBankingApp.addTransaction("req-3", "9999-1111", 10.00);
+		// a retry gets the balance right after the first call, not the one the account has by then; the same id
+		// with another amount or account is rejected
+		RequestOutcome outcome = SimpleBankingApp.addTransactionOutcome("req-4", "5495-1234", 500);
+		SimpleBankingApp.addTransactionCents("5495-1234", 700);
+		RequestOutcome outcomeRetry = SimpleBankingApp.addTransactionOutcome("req-4", "5495-1234", 500);
+		TransactionResult otherAmount = SimpleBankingApp.addTransactionCents("req-4", "5495-1234", 600);
+		TransactionResult otherAccount = SimpleBankingApp.addTransactionCents("req-4", "5495-6789", 500);
+
+		boolean passed = first == TransactionResult.ACCEPTED && retry == TransactionResult.ACCEPTED
+				&& other == TransactionResult.ACCEPTED && unknown == TransactionResult.UNKNOWN_ACCOUNT
+				&& unknownRetry == TransactionResult.UNKNOWN_ACCOUNT
+				&& outcome.getResult() == TransactionResult.ACCEPTED && outcome.getBalance_cents() == balanceBefore + 2500
+				&& outcomeRetry.getResult() == TransactionResult.ACCEPTED
+				&& outcomeRetry.getBalance_cents() == balanceBefore + 2500
+				&& otherAmount == TransactionResult.REQUEST_ID_REUSED && otherAccount == TransactionResult.REQUEST_ID_REUSED
+				&& SimpleBankingApp.getBalanceCents("5495-1234") == balanceBefore + 3200;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testRetries passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testRetries FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// many threads send the same request ids at the same time, while the tiny window keeps switching the
+	// generations: each id must be let through exactly once
+	public static void testConcurrentClaims() throws InterruptedException {
+		final DedupeCache<Integer, Integer> cache = new DedupeCache<Integer, Integer>(1, 100);
+		final int ids = 20000;
+		final int threads = 4;
+		final AtomicInteger claimed = new AtomicInteger();
+		final AtomicInteger wrong = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						for (int id = 0; id < ids; id++) {
+							DedupeCache.Entry<Integer> entry = new DedupeCache.Entry<Integer>();
+							DedupeCache.Entry<Integer> first = cache.claim(id, entry);
+							if (first == null) {
+								claimed.incrementAndGet();
+								entry.complete(id);
+							} else if (first.await() != id) {
+								wrong.incrementAndGet();
+							}
+						}
+					} catch (InterruptedException e) {
+						wrong.incrementAndGet();
+					}
+				}
+			});
+			workers[t].start();
+		}
+		start.countDown();
+		for (Thread worker : workers)
+			worker.join();
+
+		// with a window of 1 ms, ids are only remembered for a short while, so a late thread may claim an id
+		// again once it has been dropped; but never two threads within the window
+		boolean passed = wrong.get() == 0 && claimed.get() >= ids && cache.size() <= 2 * (100 + threads);
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testConcurrentClaims passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testConcurrentClaims FAILED: " + claimed.get() + " claims, "
+					+ wrong.get() + " wrong results, " + cache.size() + " ids remembered." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// not a pass/fail test: the memory stays flat and claims stay cheap over many more ids than the cache holds
+	public static void measureClaims() {
+		DedupeCache<String, Integer> cache = new DedupeCache<String, Integer>(60000, 500000);
+		int n = 5000000;
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			DedupeCache.Entry<Integer> entry = new DedupeCache.Entry<Integer>();
+			if (cache.claim("request-" + i, entry) == null)
+				entry.complete(i);
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.format("measureClaims: %,d request ids: %.0f ns per claim, %,d ids remembered at the end%n", n,
+				(double) elapsed / n, cache.size());
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		SimpleBankingApp.loadUserData();
+		SimpleBankingApp.loadAccountData();
+		testRetries();
+		testConcurrentClaims();
+		measureClaims();
+	}
+
+}
@@ -0,0 +1,176 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import app.InterestEngine;
+import app.Journal;
+import app.Ledger;
+import app.SimpleBankingApp;
+import model.Account;
+import model.DailyRollups;
+import utils.TestUtils;
+
+public class InterestEngineTest {
+
+	static final int DAY = 20000; // 2024-10-04
+	static final long DAY_MILLIS = DailyRollups.MILLIS_PER_DAY;
+
+	// every other account is a Saving account, with a balance (sometimes negative) at the end of DAY and a
+	// deposit the day after, which must not earn anything
+	static List<Account> populate(Ledger ledger, int count) {
+		List<Account> accounts = new ArrayList<Account>(count);
+		for (int i = 0; i < count; i++) {
+			String number = "5495-" + i;
+			accounts.add(new Account(number, "user" + i, i % 2 == 0 ? "Saving" : "Standard", new Date(0)));
+			ledger.openAccount(number);
+			ledger.append(number, i % 7 == 0 ? -1000 : 1000 + i * 37L, (DAY - 1) * DAY_MILLIS + i);
+			ledger.append(number, 500, DAY * DAY_MILLIS + i);
+			ledger.append(number, 99999, (DAY + 1) * DAY_MILLIS + 5);
+		}
+		return accounts;
+	}
+
+	static File progressFile() throws IOException {
+		File file = File.createTempFile("interest", ".progress");
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+
+	// Saving accounts get the interest of their closing balance of the day, rounded half even; others nothing
+	public static void testInterest() throws IOException {
+		InterestEngine engine = new InterestEngine(new Ledger(), 100);
+		boolean passed = engine.interestCents(3650000) == 100 // 1% of 36,500.00 for a day is 1.00
+				&& engine.interestCents(18250) == 0 // 0.5 cent, rounded to the even 0
+				&& engine.interestCents(54750) == 2 // 1.5 cents, rounded to the even 2
+				&& engine.interestCents(-3650000) == 0 && engine.interestCents(0) == 0;
+
+		Ledger ledger = new Ledger();
+		List<Account> accounts = populate(ledger, 20000);
+		long[] before = new long[accounts.size()];
+		for (int i = 0; i < before.length; i++)
+			before[i] = ledger.getBalanceCents(accounts.get(i).getAccount_number());
+		InterestEngine.Result result = new InterestEngine(ledger, 250).run(accounts, "saving", DAY,
+				progressFile().getPath(), ForkJoinPool.commonPool());
+
+		long credited = 0;
+		InterestEngine check = new InterestEngine(ledger, 250);
+		for (int i = 0; i < before.length; i++) {
+			String number = accounts.get(i).getAccount_number();
+			long closing = ledger.getClosingBalanceCents(number, DAY);
+			long expected = i % 2 == 0 ? check.interestCents(closing) : 0;
+			passed &= ledger.getBalanceCents(number) == before[i] + expected;
+			if (expected > 0) {
+				credited++;
+				// posted at midnight after the day
+				passed &= ledger.summarize(number, (DAY + 1) * DAY_MILLIS, (DAY + 2) * DAY_MILLIS).getCredits_cents()
+						== expected + 99999;
+			}
+		}
+		passed &= result.getAccounts() == 10000 && result.getCredited() == credited && credited > 8000;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testInterest passed (" + result + ")." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testInterest FAILED: " + result + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// running the same day again must credit nobody twice: the chunks in the progress file are skipped, and
+	// those missing from it (posted before a crash could record them) are found in the ledger
+	public static void testRestart() throws IOException {
+		Ledger ledger = new Ledger();
+		List<Account> accounts = populate(ledger, 30000);
+		File progress = progressFile();
+		InterestEngine engine = new InterestEngine(ledger, 250);
+		InterestEngine.Result first = engine.run(accounts, InterestEngine.SAVING, DAY, progress.getPath(),
+				ForkJoinPool.commonPool());
+		long total = ledger.totalBalanceCents();
+
+		InterestEngine.Result again = engine.run(accounts, InterestEngine.SAVING, DAY, progress.getPath(),
+				ForkJoinPool.commonPool());
+		// as if the run had crashed after posting every chunk but recording only the first one
+		try (RandomAccessFile file = new RandomAccessFile(progress, "rw")) {
+			file.readLine();
+			file.readLine();
+			file.setLength(file.getFilePointer());
+		}
+		InterestEngine.Result restarted = engine.run(accounts, InterestEngine.SAVING, DAY, progress.getPath(),
+				ForkJoinPool.commonPool());
+		// another day is another run
+		InterestEngine.Result next_day = engine.run(accounts, InterestEngine.SAVING, DAY + 1, progress.getPath(),
+				ForkJoinPool.commonPool());
+
+		int chunks = (15000 + 4095) / 4096;
+		boolean passed = first.getCredited() > 0 && first.getChunks_skipped() == 0
+				&& again.getCredited() == 0 && again.getChunks_skipped() == chunks
+				&& restarted.getCredited() == 0 && restarted.getChunks_skipped() == 1
+				&& next_day.getCredited() > 0 && next_day.getChunks_skipped() == 0
+				&& ledger.totalBalanceCents() == total + next_day.getInterest_cents();
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testRestart passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testRestart FAILED: " + first + "; " + again + "; "
+					+ restarted + "; " + next_day + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// after a restart (closeJournal writes a checkpoint, openJournal restores it), running the same day again
+	// without a progress file must find the interest posted before the restart and credit nobody twice
+	public static void testRerunAfterRestart() throws IOException {
+		File journal = File.createTempFile("journal", ".dat");
+		journal.deleteOnExit();
+		new File(journal.getPath() + ".checkpoint").deleteOnExit();
+		List<Account> accounts = new ArrayList<Account>();
+		for (int i = 0; i < 1000; i++)
+			accounts.add(new Account("5495-" + i, "user" + i, i % 2 == 0 ? "Saving" : "Standard", new Date(0)));
+		SimpleBankingApp.reset();
+		SimpleBankingApp.openJournal(journal.getPath(), Journal.FsyncPolicy.PERIODIC);
+		for (Account account : accounts) {
+			SimpleBankingApp.registerAccount(account);
+			SimpleBankingApp.ledger.append(account.getAccount_number(), 1000000, (DAY - 1) * DAY_MILLIS + 5);
+		}
+		Date day = new Date(DAY * DAY_MILLIS);
+		InterestEngine.Result first = SimpleBankingApp.accrueInterest(250, day, null);
+		long total = SimpleBankingApp.ledger.totalBalanceCents();
+
+		SimpleBankingApp.closeJournal();
+		SimpleBankingApp.reset();
+		SimpleBankingApp.openJournal(journal.getPath(), Journal.FsyncPolicy.PERIODIC);
+		for (Account account : accounts)
+			SimpleBankingApp.registerAccount(account);
+		InterestEngine.Result again = SimpleBankingApp.accrueInterest(250, day, null);
+		boolean passed = first.getCredited() == 500 && first.getInterest_cents() > 0 && again.getCredited() == 0
+				&& SimpleBankingApp.ledger.totalBalanceCents() == total;
+		SimpleBankingApp.closeJournal();
+		SimpleBankingApp.reset();
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testRerunAfterRestart passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testRerunAfterRestart FAILED: " + first + "; " + again
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// not a pass/fail test: the throughput of a run over a million accounts, half of them Saving
+	public static void measureThroughput() throws IOException {
+		Ledger ledger = new Ledger();
+		List<Account> accounts = populate(ledger, 1000000);
+		InterestEngine.Result result = new InterestEngine(ledger, 250).run(accounts, InterestEngine.SAVING, DAY,
+				progressFile().getPath(), ForkJoinPool.commonPool());
+		System.out.println("measureThroughput: " + result);
+	}
+
+	public static void main(String[] args) throws IOException {
+		testInterest();
+		testRestart();
+		testRerunAfterRestart();
+		measureThroughput();
+	}
+
+}
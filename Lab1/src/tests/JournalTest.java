@@ -0,0 +1,211 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import app.Journal;
+import app.Ledger;
+import utils.TestUtils;
+
+public class JournalTest {
+
+	static long replayInto(final Ledger ledger, Journal journal) throws IOException {
+		return journal.replay(new Journal.Handler() {
+			public void apply(String account_number, long amount_cents, long timestamp_millis, long position) {
+				ledger.append(account_number, amount_cents, timestamp_millis);
+			}
+
+			public void transfer(String from_account, String to_account, long amount_cents, long timestamp_millis,
+					long position) {
+				ledger.transfer(from_account, to_account, amount_cents, timestamp_millis);
+			}
+		});
+	}
+
+	// transactions written through a ledger must come back, with the same balances, after a restart.
+	// The small region size makes the journal go over many regions.
+	public static void testReplay() throws IOException {
+		File file = File.createTempFile("journal", ".dat");
+		file.deleteOnExit();
+
+		Ledger ledger = new Ledger();
+		Journal journal = new Journal(file.getPath(), Journal.FsyncPolicy.GROUP_COMMIT, 256, 10);
+		replayInto(ledger, journal);
+		ledger.attachJournal(journal);
+		for (int i = 0; i < 1000; i++)
+			ledger.append(i % 3 == 0 ? "5495-1234" : "5495-6789", i, System.currentTimeMillis());
+		journal.close();
+
+		Ledger restarted = new Ledger();
+		Journal reopened = new Journal(file.getPath(), Journal.FsyncPolicy.GROUP_COMMIT, 256, 10);
+		long replayed = replayInto(restarted, reopened);
+		reopened.close();
+
+		boolean passed = replayed == 1000
+				&& restarted.getBalanceCents("5495-1234") == ledger.getBalanceCents("5495-1234")
+				&& restarted.getBalanceCents("5495-6789") == ledger.getBalanceCents("5495-6789");
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testReplay passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testReplay FAILED: replayed " + replayed + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// a record that was torn by a crash must be dropped (and only that one), and the journal must go on
+	// from there
+	public static void testTornRecord() throws IOException {
+		File file = File.createTempFile("journal", ".dat");
+		file.deleteOnExit();
+
+		Journal journal = new Journal(file.getPath(), Journal.FsyncPolicy.EVERY_WRITE, 4096, 10);
+		journal.replay(null);
+		journal.write("5495-1234", 100, 1L);
+		long start_of_last = journal.position();
+		journal.write("5495-1234", 200, 2L);
+		journal.close();
+
+		// corrupt the amount of the last record
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		raw.seek(start_of_last + 16);
+		raw.writeLong(999);
+		raw.close();
+
+		Ledger ledger = new Ledger();
+		journal = new Journal(file.getPath(), Journal.FsyncPolicy.EVERY_WRITE, 4096, 10);
+		long replayedAfterCrash = replayInto(ledger, journal);
+		journal.write("5495-1234", 300, 3L);
+		journal.close();
+
+		ledger = new Ledger();
+		journal = new Journal(file.getPath(), Journal.FsyncPolicy.EVERY_WRITE, 4096, 10);
+		long replayed = replayInto(ledger, journal);
+		journal.close();
+
+		boolean passed = replayedAfterCrash == 1 && replayed == 2 && ledger.getBalanceCents("5495-1234") == 400;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testTornRecord passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testTornRecord FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// a transfer is one record, which comes back whole after a restart; if any part of it (here the account
+	// credited) did not make it to disk, neither of its transactions comes back
+	public static void testTransferRecords() throws IOException {
+		File file = File.createTempFile("journal", ".dat");
+		file.deleteOnExit();
+
+		Ledger ledger = new Ledger();
+		Journal journal = new Journal(file.getPath(), Journal.FsyncPolicy.EVERY_WRITE, 256, 10);
+		replayInto(ledger, journal);
+		ledger.attachJournal(journal);
+		ledger.append("5495-1234", 1000, 1L);
+		// enough transfers to go over several regions
+		long start_of_last = 0;
+		for (int i = 0; i < 20; i++) {
+			start_of_last = journal.position();
+			ledger.transfer("5495-1234", "5495-6789", 10, 2L);
+		}
+		long end_of_last = journal.position();
+		// one record, which starts where the previous one ended, or at the next region if it did not fit
+		int length = Journal.transferLength("5495-1234", "5495-6789");
+		boolean one_record = end_of_last - start_of_last == length || end_of_last % 256 == length;
+		journal.close();
+
+		Ledger restarted = new Ledger();
+		journal = new Journal(file.getPath(), Journal.FsyncPolicy.EVERY_WRITE, 256, 10);
+		long replayed = replayInto(restarted, journal);
+		journal.close();
+
+		// the last byte of the last transfer is the last byte of the account credited
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		raw.seek(end_of_last - 1);
+		raw.writeByte('0');
+		raw.close();
+		Ledger crashed = new Ledger();
+		journal = new Journal(file.getPath(), Journal.FsyncPolicy.EVERY_WRITE, 256, 10);
+		long replayedAfterCrash = replayInto(crashed, journal);
+		journal.close();
+
+		boolean passed = one_record && replayed == 21 && restarted.getBalanceCents("5495-1234") == 800
+				&& restarted.getBalanceCents("5495-6789") == 200
+				&& replayedAfterCrash == 20 && crashed.getBalanceCents("5495-1234") == 810
+				&& crashed.getBalanceCents("5495-6789") == 190;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testTransferRecords passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testTransferRecords FAILED: replayed " + replayed + ", then "
+					+ replayedAfterCrash + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// truncating drops the regions before the given position from the file, but not the positions of the
+	// records after it, which can still be read and replayed (also after a restart) while new ones are written
+	public static void testTruncate() throws IOException {
+		File file = File.createTempFile("journal", ".dat");
+		file.deleteOnExit();
+
+		Ledger ledger = new Ledger();
+		Journal journal = new Journal(file.getPath(), Journal.FsyncPolicy.EVERY_WRITE, 256, 10);
+		replayInto(ledger, journal);
+		ledger.attachJournal(journal);
+		for (int i = 0; i < 100; i++)
+			ledger.append("5495-1234", 10, i);
+		long middle = journal.position();
+		for (int i = 0; i < 100; i++)
+			ledger.append("5495-1234", 1, i);
+		long sizeBefore = file.length();
+		long first = journal.truncate(middle);
+		long sizeAfter = file.length();
+		for (int i = 0; i < 10; i++)
+			ledger.append("5495-1234", 1000, i);
+		journal.close();
+
+		Ledger restarted = new Ledger();
+		journal = new Journal(file.getPath(), Journal.FsyncPolicy.EVERY_WRITE, 256, 10);
+		long replayed = restarted.replay(journal, middle);
+		boolean refused = false;
+		try {
+			journal.replay(0, null);
+		} catch (IOException e) {
+			refused = true;
+		}
+		journal.close();
+
+		boolean passed = first == middle / 256 * 256 && first > 0 && sizeAfter < sizeBefore
+				&& replayed == 110 && restarted.getBalanceCents("5495-1234") == 10100 && refused;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testTruncate passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testTruncate FAILED: starts at " + first + ", replayed "
+					+ replayed + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// not a pass/fail test: prints the average cost of an append for each fsync policy
+	public static void measureAppendLatency() throws IOException {
+		for (Journal.FsyncPolicy policy : Journal.FsyncPolicy.values()) {
+			File file = File.createTempFile("journal", ".dat");
+			file.deleteOnExit();
+			Journal journal = new Journal(file.getPath(), policy);
+			journal.replay(null);
+			int count = policy == Journal.FsyncPolicy.PERIODIC ? 1000000 : 2000;
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				journal.awaitDurable(journal.write("5495-1234", i, i));
+			long elapsed = System.nanoTime() - start;
+			journal.close();
+			System.out.format("measureAppendLatency: %-12s %8.2f us per append%n", policy, elapsed / 1000.0 / count);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		testReplay();
+		testTornRecord();
+		testTransferRecords();
+		testTruncate();
+		measureAppendLatency();
+	}
+
+}
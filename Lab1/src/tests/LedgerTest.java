@@ -0,0 +1,372 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import app.Journal;
+import app.Ledger;
+import model.DailyRollups;
+import model.Transaction;
+import model.TransactionStore;
+import utils.TestUtils;
+
+public class LedgerTest {
+
+	public static void testAppendAndBalance() {
+		Ledger ledger = new Ledger(4);
+		ledger.append(new Transaction("5495-1234", 10.79, new Date()));
+		ledger.append(new Transaction("5495-1234", -140, new Date()));
+		ledger.append(new Transaction("5495-6789", 21.00, new Date()));
+
+		assert ledger.size() == 3;
+		assert ledger.getBalanceCents("5495-1234") == 1079 - 14000;
+		assert ledger.getBalance("5495-1234") == -129.21;
+		assert ledger.getBalance("5495-6789") == 21.00;
+		assert ledger.getBalance("9999-1111") == 0.0;
+		assert ledger.verify() == 0;
+
+		if (ledger.size() == 3 && ledger.getBalanceCents("5495-1234") == ledger.recomputeBalanceCents("5495-1234")
+				&& ledger.totalBalanceCents() == 1079 - 14000 + 2100)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testAppendAndBalance passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testAppendAndBalance FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// several threads append to their own accounts (and to one shared account) at the same time;
+	// no transaction may get lost and every balance must match the transactions
+	public static void testConcurrentAppends() throws InterruptedException {
+		final Ledger ledger = new Ledger();
+		final int threads = 8;
+		final int perThread = 20000;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final String accountNumber = "5495-" + (1000 + t);
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < perThread; i++) {
+						ledger.append(new Transaction(accountNumber, 1.00, new Date()));
+						ledger.append(new Transaction("5495-0000", 1.00, new Date()));
+					}
+				}
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+
+		boolean passed = ledger.size() == 2L * threads * perThread
+				&& ledger.getBalance("5495-0000") == threads * perThread
+				&& ledger.getBalance("5495-1000") == perThread
+				&& ledger.verify() == 0;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testConcurrentAppends passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testConcurrentAppends FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// transactions appended by several threads get every sequence number from 1 up exactly once, and the
+	// transactions of each account have increasing sequence numbers in the order they were appended
+	public static void testSequenceNumbers() throws InterruptedException {
+		final Ledger ledger = new Ledger();
+		final int threads = 4;
+		final int perThread = 10000;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final String accountNumber = "5495-" + (3000 + t);
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < perThread; i++) {
+						ledger.append(accountNumber, i, i);
+						ledger.append("5495-3999", 1, i);
+					}
+				}
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+
+		final int n = 2 * threads * perThread;
+		final boolean[] seen = new boolean[n + 1];
+		final Map<String, Long> last = new HashMap<String, Long>();
+		final boolean[] ordered = { true };
+		ledger.forEach(new Consumer<TransactionStore.View>() {
+			public void accept(TransactionStore.View view) {
+				long sequence = view.getSequence();
+				if (sequence < 1 || sequence > n || seen[(int) sequence])
+					ordered[0] = false;
+				else
+					seen[(int) sequence] = true;
+				Long previous = last.put(view.getAccount_number(), sequence);
+				if (previous != null && previous >= sequence)
+					ordered[0] = false;
+			}
+		});
+		Transaction appended = Transaction.now("5495-3000", 100);
+		long before = System.currentTimeMillis();
+		ledger.append(appended);
+		// a transaction without a date is stamped with the time it is appended at
+		Transaction undated = Transaction.ofCents("5495-3000", 100, null);
+		ledger.append(undated);
+		final long[] stored_millis = new long[1];
+		ledger.transactions("5495-3000", before - 1000, Long.MAX_VALUE, new Consumer<TransactionStore.View>() {
+			public void accept(TransactionStore.View view) {
+				stored_millis[0] = view.getTransaction_timestamp_millis();
+			}
+		});
+
+		boolean passed = ordered[0] && ledger.lastSequence() == n + 2 && appended.getSequence() == n + 1
+				&& Math.abs(appended.getTransaction_date().getTime() - before) < 1000
+				&& undated.getSequence() == n + 2 && Math.abs(undated.getTransaction_date().getTime() - before) < 1000
+				&& stored_millis[0] == undated.getTimestamp_millis();
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testSequenceNumbers passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testSequenceNumbers FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// threads move money between a few accounts at random, in both directions, at the same time: no money
+	// may be created or lost, no account may go below zero, and nothing may deadlock
+	public static void testTransfersConserveMoney() throws InterruptedException {
+		final Ledger ledger = new Ledger();
+		final int accounts = 50;
+		final long opening = 100000;
+		for (int a = 0; a < accounts; a++)
+			ledger.append("5495-" + (2000 + a), opening, 0);
+		final int threads = 8;
+		final int perThread = 50000;
+		final long[] accepted = new long[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random(index);
+					for (int i = 0; i < perThread; i++) {
+						int from = random.nextInt(accounts);
+						int to = (from + 1 + random.nextInt(accounts - 1)) % accounts;
+						if (ledger.transfer("5495-" + (2000 + from), "5495-" + (2000 + to), 1 + random.nextInt(50000), i))
+							accepted[index]++;
+					}
+				}
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		long total = 0;
+		boolean negative = false;
+		long transfers = 0;
+		for (long n : accepted)
+			transfers += n;
+		for (int a = 0; a < accounts; a++) {
+			long balance = ledger.getBalanceCents("5495-" + (2000 + a));
+			total += balance;
+			negative |= balance < 0;
+		}
+
+		boolean passed = total == accounts * opening && !negative && transfers > 0
+				&& ledger.size() == accounts + 2 * transfers && ledger.verify() == 0;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testTransfersConserveMoney passed (" + transfers
+					+ " transfers)." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testTransfersConserveMoney FAILED: total " + total
+					+ " instead of " + accounts * opening + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// the parallel pass must give the same balance as the running balance of every account, including accounts
+	// without any transaction, with enough rows to be split into several tasks
+	public static void testBalancesForAll() {
+		Ledger ledger = new Ledger(8);
+		Random random = new Random(42);
+		int accounts = 5000;
+		String[] accountNumbers = new String[accounts];
+		long[] amounts = new long[accounts];
+		for (int i = 0; i < accounts; i++)
+			accountNumbers[i] = "5495-" + (10000 + i);
+		for (int round = 0; round < 200; round++) {
+			for (int i = 0; i < accounts; i++)
+				amounts[i] = random.nextInt(200001) - 100000;
+			ledger.appendBatch(accountNumbers, amounts, accounts, System.currentTimeMillis());
+		}
+		ledger.openAccount("5495-0000");
+
+		long start = System.nanoTime();
+		Ledger.Balances balances = ledger.balancesForAll();
+		long elapsed = System.nanoTime() - start;
+
+		boolean passed = balances.size() == accounts + 1 && balances.contains("5495-0000")
+				&& balances.getCents("5495-0000") == 0 && !balances.contains("5495-9999");
+		for (int i = 0; i < accounts && passed; i++)
+			passed = balances.getCents(accountNumbers[i]) == ledger.getBalanceCents(accountNumbers[i]);
+		for (int i = 0; i < balances.size() && passed; i++)
+			passed = balances.balanceCentsAt(i) == ledger.getBalanceCents(balances.accountNumberAt(i));
+		assert passed;
+		if (passed)
+			System.out.format(TestUtils.TEXT_COLOR_GREEN + "testBalancesForAll passed (%,d transactions in %.1f ms)."
+					+ TestUtils.TEXT_COLOR_RESET + "%n", ledger.size(), elapsed / 1e6);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testBalancesForAll FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// the transactions of an account in a time window must come back in timestamp order, including back-dated
+	// ones, and be exactly those a full scan finds
+	public static void testTransactionsInRange() {
+		Ledger ledger = new Ledger(4);
+		Random random = new Random(7);
+		for (int i = 0; i < 200000; i++) {
+			// mostly increasing timestamps, with one in ten back-dated
+			long timestamp = i % 10 == 0 ? random.nextInt(200000) : i;
+			ledger.append("5495-" + (1000 + i % 100), i, timestamp);
+		}
+
+		final List<Long> timestamps = new ArrayList<Long>();
+		final long[] sum = new long[1];
+		int visited = ledger.transactions("5495-1007", 50000, 60000, new Consumer<TransactionStore.View>() {
+			public void accept(TransactionStore.View view) {
+				timestamps.add(view.getTransaction_timestamp_millis());
+				sum[0] += view.getTransaction_amount_cents();
+			}
+		});
+		final long[] expected = new long[2];
+		ledger.forEach(new Consumer<TransactionStore.View>() {
+			public void accept(TransactionStore.View view) {
+				long timestamp = view.getTransaction_timestamp_millis();
+				if (view.getAccount_number().equals("5495-1007") && timestamp >= 50000 && timestamp < 60000) {
+					expected[0]++;
+					expected[1] += view.getTransaction_amount_cents();
+				}
+			}
+		});
+		boolean sorted = true;
+		for (int i = 1; i < timestamps.size(); i++)
+			sorted &= timestamps.get(i - 1) <= timestamps.get(i);
+
+		boolean passed = sorted && visited == timestamps.size() && visited == expected[0] && sum[0] == expected[1]
+				&& ledger.transactions("5495-1007", 60000, 50000, null) == 0
+				&& ledger.transactions("9999-1111", 0, Long.MAX_VALUE, null) == 0;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testTransactionsInRange passed (" + visited
+					+ " transactions in the window)." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testTransactionsInRange FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// not a pass/fail test: prints the throughput of the batch API against one append per transaction,
+	// with a group-commit journal attached (where batching matters most)
+	public static void measureBatchThroughput() throws IOException {
+		int count = 20000;
+		String[] accountNumbers = new String[count];
+		long[] amounts = new long[count];
+		for (int i = 0; i < count; i++) {
+			accountNumbers[i] = "5495-" + (1000 + i % 500);
+			amounts[i] = i % 2 == 0 ? 1000 : -500;
+		}
+
+		File file = File.createTempFile("journal", ".dat");
+		file.deleteOnExit();
+		Journal journal = new Journal(file.getPath(), Journal.FsyncPolicy.GROUP_COMMIT);
+		journal.replay(null);
+		Ledger ledger = new Ledger();
+		ledger.attachJournal(journal);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			ledger.append(accountNumbers[i], amounts[i], System.currentTimeMillis());
+		long perCall = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int from = 0; from < count; from += 1000) {
+			String[] batchAccounts = Arrays.copyOfRange(accountNumbers, from, from + 1000);
+			long[] batchAmounts = Arrays.copyOfRange(amounts, from, from + 1000);
+			ledger.appendBatch(batchAccounts, batchAmounts, 1000, System.currentTimeMillis());
+		}
+		long batched = System.nanoTime() - start;
+		journal.close();
+
+		System.out.format("measureBatchThroughput: per call: %,.0f transactions/s ; batches of 1000: %,.0f transactions/s%n",
+				count * 1e9 / perCall, count * 1e9 / batched);
+	}
+
+	// the summary of a year from the daily rollups must be what summing the transactions of that year gives,
+	// with back-dated transactions too; prints how long each way takes
+	public static void testDailyRollups() {
+		Ledger ledger = new Ledger(4);
+		Random random = new Random(11);
+		long day = DailyRollups.MILLIS_PER_DAY;
+		for (int i = 0; i < 300000; i++) {
+			// two years, a few hundred transactions a day per account, mostly in order
+			long timestamp = i % 10 == 0 ? random.nextInt(730) * day + random.nextInt((int) day) : i * (730 * day / 300000);
+			ledger.append("5495-" + (1000 + i % 10), random.nextInt(20000) - 9000, timestamp);
+		}
+		final long from = 100 * day;
+		final long to = 466 * day;
+
+		ledger.summarize("5495-1004", from, to); // not timed: loads the classes
+		long start = System.nanoTime();
+		DailyRollups.Summary summary = ledger.summarize("5495-1003", from, to);
+		long summary_nanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		final long[] expected = new long[4]; // credits, debits, count, balance before the window
+		ledger.transactions("5495-1003", 0, to, new Consumer<TransactionStore.View>() {
+			public void accept(TransactionStore.View view) {
+				long amount = view.getTransaction_amount_cents();
+				if (view.getTransaction_timestamp_millis() < from) {
+					expected[3] += amount;
+					return;
+				}
+				if (amount >= 0)
+					expected[0] += amount;
+				else
+					expected[1] -= amount;
+				expected[2]++;
+			}
+		});
+		long scan_nanos = System.nanoTime() - start;
+
+		long daily_count = 0;
+		DailyRollups.Day[] days = ledger.dailyRollups("5495-1003", from, to);
+		for (DailyRollups.Day rollup : days)
+			daily_count += rollup.getCount();
+
+		boolean passed = summary.getCredits_cents() == expected[0] && summary.getDebits_cents() == expected[1]
+				&& summary.getCount() == expected[2] && summary.getOpening_cents() == expected[3]
+				&& summary.getClosing_cents() == expected[3] + expected[0] - expected[1]
+				&& summary.getDays() == 366 && days.length == 366 && daily_count == expected[2]
+				&& days[365].getClosing_cents() == summary.getClosing_cents()
+				&& ledger.summarize("5495-1003", 0, Long.MAX_VALUE).getClosing_cents() == ledger.getBalanceCents("5495-1003")
+				&& ledger.summarize("9999-1111", 0, to).getCount() == 0;
+		assert passed;
+		if (passed)
+			System.out.format(TestUtils.TEXT_COLOR_GREEN + "testDailyRollups passed (a year of %d transactions: "
+					+ "%.1f us from the rollups, %.1f us from the transactions)." + TestUtils.TEXT_COLOR_RESET + "%n",
+					expected[2], summary_nanos / 1e3, scan_nanos / 1e3);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testDailyRollups FAILED: " + summary + " but "
+					+ Arrays.toString(expected) + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+		testAppendAndBalance();
+		testConcurrentAppends();
+		testTransfersConserveMoney();
+		testSequenceNumbers();
+		testBalancesForAll();
+		testTransactionsInRange();
+		testDailyRollups();
+		measureBatchThroughput();
+	}
+
+}
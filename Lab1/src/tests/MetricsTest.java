@@ -0,0 +1,141 @@
+package tests;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import app.Metrics;
+import app.SimpleBankingApp;
+import model.Transaction;
+import utils.LatencyHistogram;
+import utils.TestUtils;
+
+public class MetricsTest {
+
+	// the percentiles of 1..100000 must be within the precision of the buckets (about 3%)
+	public static void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 100000; value++)
+			histogram.record(value);
+		long p50 = histogram.getValueAtPercentile(50);
+		long p99 = histogram.getValueAtPercentile(99);
+		boolean passed = histogram.getCount() == 100000 && histogram.getMax() == 100000
+				&& Math.abs(histogram.getMean() - 50000.5) < 1e-6
+				&& Math.abs(p50 - 50000) <= 50000 * 0.03 && Math.abs(p99 - 99000) <= 99000 * 0.03
+				&& histogram.getValueAtPercentile(100) == 100000 && histogram.getValueAtPercentile(0) == 1;
+		histogram.reset();
+		passed &= histogram.getCount() == 0 && histogram.getValueAtPercentile(99) == 0;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testHistogram passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testHistogram FAILED: p50 " + p50 + ", p99 " + p99
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// every call and rejection is counted, and shows in JMX and in the dump
+	public static void testOperations() throws JMException {
+		Metrics.register();
+		Metrics.register(); // a second time is a no-op
+		long additions = Metrics.ADD_TRANSACTION.getCount();
+		long lookups = Metrics.GET_BALANCE.getCount();
+		long rejected = SimpleBankingApp.getRejectedTransactionCount();
+		SimpleBankingApp.addTransaction("5495-1234", 10.00);
+		SimpleBankingApp.addTransaction("9999-1111", 10.00);
+		SimpleBankingApp.getBalanceCents("5495-1234");
+		SimpleBankingApp.getBalance("5495-1234");
+		List<Transaction> batch = new ArrayList<Transaction>();
+		batch.add(Transaction.ofCents("5495-1234", 0, null));
+		SimpleBankingApp.addTransactions(batch);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Object jmxCount = server.getAttribute(new ObjectName("SimpleBankingApp:type=Operation,name=addTransaction"), "Count");
+		Object jmxTransactions = server.getAttribute(new ObjectName("SimpleBankingApp:type=Ledger"), "Transactions");
+		String dump = Metrics.dump();
+
+		boolean passed = Metrics.ADD_TRANSACTION.getCount() == additions + 2 && Metrics.GET_BALANCE.getCount() == lookups + 2
+				&& SimpleBankingApp.getRejectedTransactionCount() == rejected + 1 && Metrics.ADD_TRANSACTIONS.getCount() >= 1
+				&& Metrics.ADD_TRANSACTION.getMaxNanos() > 0
+				&& ((Long) jmxCount).longValue() == Metrics.ADD_TRANSACTION.getCount()
+				&& ((Long) jmxTransactions).longValue() == SimpleBankingApp.ledger.size()
+				&& dump.contains("addTransaction ") && dump.contains("rejected_invalid ");
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testOperations passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testOperations FAILED:\n" + dump + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// values recorded from several threads at once are all counted
+	public static void testConcurrentRecording() throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final int per_thread = 200000;
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final long value = 1000 * (t + 1);
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < per_thread; i++)
+						histogram.record(value);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		boolean passed = histogram.getCount() == (long) threads.length * per_thread && histogram.getMax() == 8000
+				&& Math.abs(histogram.getMean() - 4500) < 1e-6;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testConcurrentRecording passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testConcurrentRecording FAILED: " + histogram.getCount()
+					+ " values, max " + histogram.getMax() + ", mean " + histogram.getMean() + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// not a pass/fail test: the cost of recording one latency (which includes a read of System.nanoTime, whose
+	// cost is shown on its own), from one thread and then from several at once
+	public static void measureOverhead() throws InterruptedException {
+		final int n = 10000000;
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++)
+			System.nanoTime();
+		System.out.format("measureOverhead: %.1f ns per System.nanoTime()%n", (double) (System.nanoTime() - start) / n);
+		final Metrics.Operation operation = Metrics.GET_BALANCE;
+		for (int threads : new int[] { 1, 1, 2, 4, 8 }) {
+			final int per_thread = n / threads;
+			Thread[] recorders = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				recorders[t] = new Thread(new Runnable() {
+					public void run() {
+						for (int i = 0; i < per_thread; i++)
+							operation.record(System.nanoTime());
+					}
+				});
+			}
+			start = System.nanoTime();
+			for (Thread recorder : recorders)
+				recorder.start();
+			for (Thread recorder : recorders)
+				recorder.join();
+			long elapsed = System.nanoTime() - start;
+			System.out.format("measureOverhead: %d thread(s): %.1f ns per recording (%.1f million recordings/s in all)%n",
+					threads, (double) elapsed / n, n * 1e3 / elapsed);
+		}
+	}
+
+	public static void main(String[] args) throws JMException, InterruptedException {
+		SimpleBankingApp.loadUserData();
+		SimpleBankingApp.loadAccountData();
+		testHistogram();
+		testOperations();
+		testConcurrentRecording();
+		measureOverhead();
+		System.out.print(Metrics.dump());
+	}
+
+}
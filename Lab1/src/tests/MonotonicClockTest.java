@@ -0,0 +1,90 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+
+import app.Journal;
+import app.Ledger;
+import utils.MonotonicClock;
+import utils.TestUtils;
+
+public class MonotonicClockTest {
+
+	// over more than one calibration, the clock never goes backwards, and stays with the wall clock
+	public static void testFollowsWallClock() {
+		long end = System.currentTimeMillis() + 2500;
+		long previous = MonotonicClock.currentTimeNanos();
+		boolean monotonic = true;
+		long reads = 0;
+		while (System.currentTimeMillis() < end) {
+			long now = MonotonicClock.currentTimeNanos();
+			monotonic &= now >= previous;
+			previous = now;
+			reads++;
+		}
+		long off_millis = Math.abs(MonotonicClock.currentTimeMillis() - System.currentTimeMillis());
+
+		boolean passed = monotonic && off_millis <= 5;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testFollowsWallClock passed (" + reads + " reads)."
+					+ TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testFollowsWallClock FAILED: monotonic " + monotonic
+					+ ", " + off_millis + " ms from the wall clock" + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// after a restart, the clock goes on from the latest timestamp in the journal, even when the wall clock
+	// is behind it (as it is here, by an hour)
+	public static void testSeededFromJournal() throws IOException {
+		File file = File.createTempFile("journal", ".dat");
+		file.deleteOnExit();
+		long later = System.currentTimeMillis() + 3600 * 1000L;
+		Journal journal = new Journal(file.getPath(), Journal.FsyncPolicy.EVERY_WRITE, 4096, 10);
+		journal.write("5495-1234", 100, later - 1);
+		journal.writeTransfer("5495-1234", "5495-6789", 10, later);
+		journal.close();
+
+		Ledger restarted = new Ledger();
+		journal = new Journal(file.getPath(), Journal.FsyncPolicy.EVERY_WRITE, 4096, 10);
+		restarted.replay(journal, 0);
+		journal.close();
+		long now = MonotonicClock.currentTimeMillis();
+
+		boolean passed = now >= later && now < later + 1000;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testSeededFromJournal passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testSeededFromJournal FAILED: " + now + " for " + later
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// advanceTo only ever moves the clock forwards, and a calibration does not take it back to the wall clock
+	public static void testAdvanceTo() throws InterruptedException {
+		long later = MonotonicClock.currentTimeMillis() + 2 * 3600 * 1000L;
+		MonotonicClock.advanceTo(later);
+		long advanced = MonotonicClock.currentTimeMillis();
+		MonotonicClock.advanceTo(later - 60 * 1000L);
+		long not_back = MonotonicClock.currentTimeMillis();
+		// past the next calibration
+		Thread.sleep(1200);
+		long calibrated = MonotonicClock.currentTimeMillis();
+
+		boolean passed = advanced >= later && not_back >= advanced && calibrated >= later + 1200
+				&& calibrated < later + 2200;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testAdvanceTo passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testAdvanceTo FAILED: " + advanced + ", " + not_back + ", "
+					+ calibrated + " for " + later + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		testFollowsWallClock();
+		testSeededFromJournal();
+		testAdvanceTo();
+	}
+
+}
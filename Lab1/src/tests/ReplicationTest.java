@@ -0,0 +1,207 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import app.Journal;
+import app.Ledger;
+import app.Replicator;
+import app.Standby;
+import utils.TestUtils;
+
+public class ReplicationTest {
+
+	static final int ACCOUNTS = 100;
+
+	static Journal newJournal() throws IOException {
+		return newJournal(tempPath(), 10);
+	}
+
+	static String tempPath() throws IOException {
+		File file = File.createTempFile("journal", ".dat");
+		file.deleteOnExit();
+		return file.getPath();
+	}
+
+	static Journal newJournal(String path, long period_millis) throws IOException {
+		// small regions, so that the journal has padding to skip
+		Journal journal = new Journal(path, Journal.FsyncPolicy.PERIODIC, 64 * 1024, period_millis);
+		journal.replay(null);
+		return journal;
+	}
+
+	static boolean sameBalances(Ledger primary, Ledger standby) {
+		for (int i = 0; i < ACCOUNTS; i++) {
+			if (primary.getBalanceCents("5495-" + i) != standby.getBalanceCents("5495-" + i))
+				return false;
+		}
+		return primary.size() == standby.size();
+	}
+
+	// deposits, withdrawals and transfers from several threads while the journal is being shipped: once the
+	// standby has acknowledged the end of the journal, it must have the same balances as the primary
+	public static void testShipping() throws IOException, InterruptedException {
+		final Ledger primary = new Ledger();
+		Journal journal = newJournal();
+		primary.attachJournal(journal);
+		Ledger copy = new Ledger();
+		Standby standby = Standby.start(0, copy);
+		Replicator replicator = Replicator.start(journal, "localhost", standby.getPort());
+
+		final int per_thread = 50000;
+		Thread[] threads = new Thread[4];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < per_thread; i++) {
+						String account = "5495-" + (i * 7 + seed) % ACCOUNTS;
+						if (i % 10 == 0)
+							primary.transfer(account, "5495-" + (i * 13 + seed + 1) % ACCOUNTS, 1 + i % 50, i);
+						else
+							primary.append(account, i % 3 == 0 ? -(i % 100) : i % 1000, i);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		long end = journal.position();
+		boolean caught_up = replicator.awaitAcknowledged(end, 30000);
+		long elapsed = System.nanoTime() - start;
+
+		boolean passed = caught_up && sameBalances(primary, copy) && standby.getAppliedPosition() == end
+				&& replicator.getLagBytes() == 0 && replicator.getLagMillis() == 0;
+		System.out.format("testShipping: %,d transactions replicated in %.0f ms%n", primary.size(), elapsed / 1e6);
+		replicator.close();
+		standby.close();
+		journal.close();
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testShipping passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testShipping FAILED: acknowledged " + replicator.getAckedPosition()
+					+ " of " + end + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// a standby that comes up late must catch up with the whole journal; once promoted, it must no longer
+	// change, and the primary must see it fall behind
+	public static void testCatchUpAndPromote() throws IOException, InterruptedException {
+		Ledger primary = new Ledger();
+		Journal journal = newJournal();
+		primary.attachJournal(journal);
+		int port;
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		Replicator replicator = Replicator.start(journal, "localhost", port);
+		for (int i = 0; i < 20000; i++)
+			primary.append("5495-" + i % ACCOUNTS, i, i);
+		boolean lagging = replicator.getLagBytes() == journal.position() && !replicator.isConnected();
+
+		Ledger copy = new Ledger();
+		Standby standby = Standby.start(port, copy);
+		boolean caught_up = replicator.awaitAcknowledged(journal.position(), 30000) && sameBalances(primary, copy);
+
+		long start = System.nanoTime();
+		long promoted_at = standby.promote();
+		double promote_millis = (System.nanoTime() - start) / 1e6;
+		long size = copy.size();
+		for (int i = 0; i < 1000; i++)
+			primary.append("5495-" + i % ACCOUNTS, 1, i);
+		Thread.sleep(200);
+		boolean detached = copy.size() == size && promoted_at == standby.getAppliedPosition()
+				&& replicator.getLagBytes() > 0;
+		System.out.format("testCatchUpAndPromote: promoted in %.2f ms%n", promote_millis);
+		replicator.close();
+		journal.close();
+
+		boolean passed = lagging && caught_up && detached;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testCatchUpAndPromote passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testCatchUpAndPromote FAILED: " + lagging + " " + caught_up
+					+ " " + detached + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// what is written but not forced to disk yet must not be shipped: after a power loss of the primary, the
+	// standby would be ahead of its journal
+	public static void testShipsOnlyDurable() throws IOException, InterruptedException {
+		Ledger primary = new Ledger();
+		// the periodic flusher does not come round during the test
+		Journal journal = newJournal(tempPath(), 3600 * 1000);
+		primary.attachJournal(journal);
+		for (int i = 0; i < 1000; i++)
+			primary.append("5495-" + i % ACCOUNTS, i, i);
+		Ledger copy = new Ledger();
+		Standby standby = Standby.start(0, copy);
+		Replicator replicator = Replicator.start(journal, "localhost", standby.getPort());
+		Thread.sleep(300);
+		boolean held_back = replicator.isConnected() && standby.getAppliedPosition() == 0 && copy.size() == 0;
+
+		journal.flush();
+		boolean caught_up = replicator.awaitAcknowledged(journal.position(), 30000) && sameBalances(primary, copy);
+		replicator.close();
+		standby.close();
+		journal.close();
+
+		boolean passed = held_back && caught_up;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testShipsOnlyDurable passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testShipsOnlyDurable FAILED: " + held_back + " " + caught_up
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// a standby with a journal of its own must get back, after a restart, both what it was shipped and what it
+	// took once promoted
+	public static void testPromotedStandbyIsDurable() throws IOException, InterruptedException {
+		Ledger primary = new Ledger();
+		Journal journal = newJournal();
+		primary.attachJournal(journal);
+		Ledger copy = new Ledger();
+		String copyPath = tempPath();
+		Journal copyJournal = newJournal(copyPath, 10);
+		copy.attachJournal(copyJournal);
+		Standby standby = Standby.start(0, copy);
+		Replicator replicator = Replicator.start(journal, "localhost", standby.getPort());
+		for (int i = 0; i < 5000; i++) {
+			if (i % 10 == 0)
+				primary.transfer("5495-" + i % ACCOUNTS, "5495-" + (i + 1) % ACCOUNTS, 1, i);
+			else
+				primary.append("5495-" + i % ACCOUNTS, i, i);
+		}
+		boolean caught_up = replicator.awaitAcknowledged(journal.position(), 30000) && sameBalances(primary, copy);
+		standby.promote();
+		replicator.close();
+		journal.close();
+		for (int i = 0; i < 100; i++)
+			copy.append("5495-" + i % ACCOUNTS, 3, i);
+		copyJournal.close();
+
+		Ledger restarted = new Ledger();
+		copyJournal = new Journal(copyPath, Journal.FsyncPolicy.PERIODIC, 64 * 1024, 10);
+		restarted.replay(copyJournal, 0);
+		copyJournal.close();
+		boolean passed = caught_up && sameBalances(copy, restarted);
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testPromotedStandbyIsDurable passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testPromotedStandbyIsDurable FAILED: " + caught_up
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		testShipping();
+		testCatchUpAndPromote();
+		testShipsOnlyDurable();
+		testPromotedStandbyIsDurable();
+	}
+
+}
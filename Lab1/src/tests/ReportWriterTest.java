@@ -0,0 +1,99 @@
+package tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import app.ReportWriter;
+import app.SimpleBankingApp;
+import model.Account;
+import utils.TestUtils;
+
+public class ReportWriterTest {
+
+	// appendCents must print exactly what Double.toString prints for the same amount in dollars
+	public static void testAppendCents() throws IOException {
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		PrintStream legacy = new PrintStream(expected);
+		ReportWriter report = new ReportWriter(Channels.newChannel(actual));
+
+		Random random = new Random(42);
+		for (long cents = -200000; cents <= 200000; cents++) {
+			legacy.println(Double.toString(cents / 100.0));
+			report.appendCents(cents).newLine();
+		}
+		for (int i = 0; i < 200000; i++) {
+			long cents = random.nextLong() % 100000000000L;
+			legacy.println(Double.toString(cents / 100.0));
+			report.appendCents(cents).newLine();
+		}
+		legacy.flush();
+		report.flush();
+
+		boolean passed = Arrays.equals(expected.toByteArray(), actual.toByteArray());
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testAppendCents passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testAppendCents FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// the way printAllUsers and printAllAccounts used to print, with String.format and println
+	static byte[] legacyReport() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		out.println("There are: " + SimpleBankingApp.users.size() + " users in the system.");	
+		out.println(String.format("%-25s| %-15s| %-15s| %-15s| %-15s", 
+				"username", "password", "first_name", "last_name", "mobile_number"));
+		out.println("-------------------------------------------------------------------------------------------");
+		for  (int i = 0; i < SimpleBankingApp.users.size(); i++) 
+			out.println(SimpleBankingApp.users.get(i).toString());	
+		out.println();
+
+		out.println("There are: " + SimpleBankingApp.accounts.size() + " accounts in the system.");
+		out.println(String.format("%-10s| %-30s| %-10s| %-15s| %-15s", 
+				"Account #", "username_of_account_holder", "type", "opening_date", "Balance"));
+		out.println("--------------------------------------------------------------------------------");
+		for  (int i = 0; i < SimpleBankingApp.accounts.size(); i++) 
+			out.println(SimpleBankingApp.accounts.get(i).toString() + "| $" 
+					+ SimpleBankingApp.getBalance(SimpleBankingApp.accounts.get(i).getAccount_number()));
+		out.println();
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	// the reports must be byte-identical to the ones printed before, including with long values that do not
+	// fit in their column and with null fields
+	public static void testSameOutput() throws IOException {
+		SimpleBankingApp.loadUserData();
+		SimpleBankingApp.loadAccountData();
+		SimpleBankingApp.registerAccount(new Account("5495-123456789", "a.very.long.username.for.a.column@example.com", 
+				null, new Date()));
+		SimpleBankingApp.addTransaction("5495-1234", -50.21);
+		SimpleBankingApp.addTransaction("5495-1234", 520.00);
+		SimpleBankingApp.addTransaction("5495-1239", 0.1);
+		SimpleBankingApp.addTransaction("5495-6789", -123456789.99);
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		SimpleBankingApp.printAllUsers(Channels.newChannel(actual));
+		SimpleBankingApp.printAllAccounts(Channels.newChannel(actual));
+
+		boolean passed = Arrays.equals(legacyReport(), actual.toByteArray());
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testSameOutput passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testSameOutput FAILED:\n" + actual + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	public static void main(String[] args) throws IOException {
+		testAppendCents();
+		testSameOutput();
+	}
+
+}
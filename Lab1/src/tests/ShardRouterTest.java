@@ -0,0 +1,121 @@
+package tests;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+
+import app.BankingServer;
+import app.ShardRouter;
+import app.ShardedDeployment;
+import model.AccountKey;
+import utils.TestUtils;
+
+public class ShardRouterTest {
+
+	static final String[] ACCOUNTS = { "5495-1234", "5495-1239", "5495-1291", "5495-6789" };
+
+	static String[] request(int port, String method, String path) throws IOException {
+		BankingServerTest.port = port;
+		return BankingServerTest.request(method, path);
+	}
+
+	// two workers behind a router, with the sample data of SimpleBankingApp: the router must answer as a single
+	// server would, while each worker only holds the accounts of its own shard
+	public static void testRouting(ShardRouter router) throws IOException {
+		int port = router.getPort();
+		int[] worker_ports = new int[router.getShardCount()];
+		for (int i = 0; i < worker_ports.length; i++)
+			worker_ports[i] = new URL(router.getShardUrl(i)).getPort();
+		String[] before = request(port, "GET", "/accounts/5495-1234/balance");
+		String[] deposit = request(port, "POST", "/transactions?account=5495-1234&amount=50.21");
+		String[] after = request(port, "GET", "/accounts/5495-1234/balance");
+		String[] unknown = request(port, "POST", "/transactions?account=9999-1111&amount=21.00");
+		String[] invalid = request(port, "POST", "/transactions?account=ACC-1&amount=21.00");
+		String[] all = request(port, "GET", "/accounts");
+		String[] portfolio = request(port, "GET", "/accounts?holder=mike");
+		String[] user = request(port, "GET", "/users/mike");
+		String[] metrics = request(port, "GET", "/metrics");
+
+		boolean passed = before[0].equals("200") && deposit[0].equals("200") && after[0].equals("200")
+				&& balance(after[1]) == balance(before[1]) + 5021
+				&& unknown[0].equals("404") && invalid[0].equals("404")
+				&& all[0].equals("200") && BankingServerTest.count(all[1], "\"account\":") == ACCOUNTS.length
+				&& portfolio[0].equals("200") && BankingServerTest.count(portfolio[1], "\"account\":") == 3
+				&& user[0].equals("200") && user[1].contains("\"first_name\":\"Mike\"")
+				&& metrics[0].equals("200") && BankingServerTest.count(metrics[1], "# shard ") == worker_ports.length;
+
+		// each worker has its own accounts, and nothing else
+		for (String account : ACCOUNTS) {
+			int shard = router.shardOf(account);
+			for (int i = 0; i < worker_ports.length; i++) {
+				String[] balance = request(worker_ports[i], "GET", "/accounts/" + account + "/balance");
+				passed &= balance[0].equals(i == shard ? "200" : "404");
+			}
+		}
+
+		// a transfer within a shard goes through, one between two shards is refused
+		String[] same = null;
+		String[] cross = null;
+		for (String from : ACCOUNTS) {
+			for (String to : ACCOUNTS) {
+				if (from.equals(to))
+					continue;
+				boolean local = router.shardOf(from) == router.shardOf(to);
+				if (local && same == null)
+					same = request(port, "POST", "/transfers?from=" + from + "&to=" + to + "&amount=0.01");
+				if (!local && cross == null)
+					cross = request(port, "POST", "/transfers?from=" + from + "&to=" + to + "&amount=0.01");
+			}
+		}
+		passed &= (same == null || same[0].equals("200") || same[0].equals("409"))
+				&& (cross == null || (cross[0].equals("501") && cross[1].contains("CROSS_SHARD_TRANSFER")));
+
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testRouting passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testRouting FAILED: " + Arrays.deepToString(new Object[] {
+					before, deposit, after, unknown, invalid, all, portfolio, user, same, cross })
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// the balance in cents of a {"account":...,"balance":12.34} response
+	static long balance(String json) {
+		int at = json.indexOf("\"balance\":") + 10;
+		int end = at;
+		while (end < json.length() && "-.0123456789".indexOf(json.charAt(end)) >= 0)
+			end++;
+		return Math.round(Double.parseDouble(json.substring(at, end)) * 100);
+	}
+
+	// the shards must split the account numbers evenly
+	public static void testBalance() {
+		int shards = 4;
+		int count = 100000;
+		int[] sizes = new int[shards];
+		for (int i = 0; i < count; i++)
+			sizes[AccountKey.shard(AccountKey.of("5495-" + i), shards)]++;
+		boolean passed = true;
+		for (int size : sizes)
+			passed &= Math.abs(size - count / shards) < count / shards / 20;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testBalance passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testBalance FAILED: " + Arrays.toString(sizes)
+					+ TestUtils.TEXT_COLOR_RESET);
+	}
+
+	public static void main(String[] args) throws IOException {
+		BankingServer.setServerProperties();
+		ShardRouter.setClientProperties();
+		testBalance();
+		ShardedDeployment deployment = ShardedDeployment.start(0, 2, null);
+		try {
+			testRouting(deployment.getRouter());
+		} finally {
+			deployment.stop();
+		}
+	}
+
+}
@@ -1,6 +1,16 @@
 package tests;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import app.SimpleBankingApp;
+import app.TransactionResult;
+import model.Account;
+import model.AccountBalance;
+import model.Transaction;
+import model.User;
 import utils.TestUtils;
 
 public class SimpleBankingAppTest {
@@ -44,12 +54,13 @@ public class SimpleBankingAppTest {
 	// this test method (test case) verifies if the Deposit feature works properly
 	public static void testDeposits() {
 		// 1-Setup phase
-		double balanceBefore = SimpleBankingApp.getBalance("5495-1234"); 
-		double depositAmount = 50.21;
+		// balances are compared in cents, which is exact (no tolerance needed as with double values)
+		long balanceBefore = SimpleBankingApp.getBalanceCents("5495-1234"); 
+		long depositAmount = 5021;
 		
 		// 2-Exercise phase
-		SimpleBankingApp.addTransaction("5495-1234", depositAmount);
-		double balanceAfter = SimpleBankingApp.getBalance("5495-1234");
+		SimpleBankingApp.addTransactionCents("5495-1234", depositAmount);
+		long balanceAfter = SimpleBankingApp.getBalanceCents("5495-1234");
 		
 		// 3-verify
 		assert balanceBefore + depositAmount == balanceAfter;
@@ -57,41 +68,210 @@ public class SimpleBankingAppTest {
 			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testDeposits: TC1 passed"+ TestUtils.TEXT_COLOR_RESET);
 		else {
 			System.out.println(TestUtils.TEXT_COLOR_RED + "testDeposits: TC1 FAILED XXX: balanceBefore + depositAmount != balanceAfter");
-			System.out.format("testDeposits: balanceBefore = %.2f ; depositAmount = %.2f ; balanceAfter = %.2f %s\n", 
+			System.out.format("testDeposits: balanceBefore = %d ; depositAmount = %d ; balanceAfter = %d %s\n", 
 					balanceBefore , depositAmount , balanceAfter, TestUtils.TEXT_COLOR_RESET);
 		}
 		
+		// the double API must agree with the cents one
+		if (SimpleBankingApp.getBalance("5495-1234") == balanceAfter / 100.0)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testDeposits: TC2 passed"+ TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testDeposits: TC2 FAILED: getBalance != getBalanceCents / 100" + TestUtils.TEXT_COLOR_RESET);
+		
 		// 4-tear-down: put the system state back in where it was
 		// read more about the tear-down phase of test cases: http://xunitpatterns.com/Four%20Phase%20Test.html
-		SimpleBankingApp.addTransaction("5495-1234", -depositAmount);
+		SimpleBankingApp.addTransactionCents("5495-1234", -depositAmount);
 	}
 
 	// this test method (test case) verifies if the Withdraw feature works properly
 	public static void testWithdrawals() {
 	   
 	    String accountNumber = "5495-1234"; 
-	    double balanceBefore = SimpleBankingApp.getBalance(accountNumber); 
-	    double withdrawalAmount = 50.21; 
+	    long balanceBefore = SimpleBankingApp.getBalanceCents(accountNumber); 
+	    long withdrawalAmount = 5021; 
 	    
-	    SimpleBankingApp.addTransaction(accountNumber, -withdrawalAmount);
-	    double balanceAfter = SimpleBankingApp.getBalance(accountNumber);   
+	    SimpleBankingApp.addTransaction(accountNumber, -50.21);
+	    long balanceAfter = SimpleBankingApp.getBalanceCents(accountNumber);   
 	    
 	    if (balanceBefore - withdrawalAmount == balanceAfter) {
 	        System.out.println(TestUtils.TEXT_COLOR_GREEN + "testWithdrawals: TC1 passed" + TestUtils.TEXT_COLOR_RESET);
 	    } else {
 	        System.out.println(TestUtils.TEXT_COLOR_RED + "testWithdrawals: TC1 FAILED");
-	        System.out.format("testWithdrawals: balanceBefore = %.2f ; withdrawalAmount = %.2f ; balanceAfter = %.2f %s\n", 
+	        System.out.format("testWithdrawals: balanceBefore = %d ; withdrawalAmount = %d ; balanceAfter = %d %s\n", 
 	                balanceBefore, withdrawalAmount, balanceAfter, TestUtils.TEXT_COLOR_RESET);
 	    }
 	    
-	    SimpleBankingApp.addTransaction(accountNumber, withdrawalAmount);
+	    SimpleBankingApp.addTransactionCents(accountNumber, withdrawalAmount);
+	}
+	
+	// this test method (test case) verifies that the running balances kept by addTransaction match the 
+	// balances recomputed from the transactions (app.LedgerDriftTest checks that the verify mode spots a drift)
+	public static void testBalanceIndex() {
+		// 1-Setup phase
+		String accountNumber = "5495-1239";
+		SimpleBankingApp.addTransaction(accountNumber, 10.79);
+		SimpleBankingApp.addTransaction(accountNumber, -140);
+		
+		// 2-Exercise + 3-verify phases
+		if (SimpleBankingApp.getBalanceCents(accountNumber) == SimpleBankingApp.recomputeBalanceCents(accountNumber)
+				&& SimpleBankingApp.verifyBalances() == 0)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testBalanceIndex: TC1 passed" + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testBalanceIndex: TC1 FAILED" + TestUtils.TEXT_COLOR_RESET);
+		
+		// the ledger copies a transaction into its store, so modifying the Transaction object afterwards 
+		// must neither change the balance nor make it drift from the stored transactions
+		long balanceBefore = SimpleBankingApp.getBalanceCents(accountNumber);
+		Transaction aTransaction = new Transaction(accountNumber, 1.00, new Date());
+		SimpleBankingApp.ledger.append(aTransaction);
+		aTransaction.setTransaction_amount(2.00);
+		if (SimpleBankingApp.getBalanceCents(accountNumber) == balanceBefore + 100 && SimpleBankingApp.verifyBalances() == 0)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testBalanceIndex: TC2 passed" + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testBalanceIndex: TC2 FAILED" + TestUtils.TEXT_COLOR_RESET);
+		
+		// 4-tear-down
+		SimpleBankingApp.addTransaction(accountNumber, -1.00);
+		SimpleBankingApp.addTransaction(accountNumber, -10.79);
+		SimpleBankingApp.addTransaction(accountNumber, 140);
+	}
+	
+	// this test method (test case) verifies that a batch of transactions is validated item by item, with the
+	// same rules as a single transaction, and that the valid ones are all applied and given their sequence
+	public static void testAddTransactions() {
+		// 1-Setup phase
+		long balanceBefore = SimpleBankingApp.getBalanceCents("5495-1234");
+		List<Transaction> batch = new ArrayList<Transaction>();
+		batch.add(Transaction.ofCents("5495-1234", 1000, null));
+		batch.add(Transaction.ofCents("", 1000, null));
+		batch.add(Transaction.ofCents("5495-1234", 0, null));
+		batch.add(Transaction.ofCents("5495-1234", -250, null));
+		
+		// 2-Exercise phase
+		TransactionResult[] results = SimpleBankingApp.addTransactions(batch);
+		
+		// 3-verify
+		boolean passed = results[0] == TransactionResult.ACCEPTED
+				&& results[1] == TransactionResult.INVALID_ACCOUNT_NUMBER
+				&& results[2] == TransactionResult.INVALID_AMOUNT
+				&& results[3] == TransactionResult.ACCEPTED
+				&& batch.get(0).getTransaction_date() != null
+				&& batch.get(0).getSequence() > 0 && batch.get(3).getSequence() > batch.get(0).getSequence()
+				&& batch.get(3).getSequence() == SimpleBankingApp.ledger.lastSequence() && batch.get(2).getSequence() == 0
+				&& SimpleBankingApp.getBalanceCents("5495-1234") == balanceBefore + 750
+				&& !SimpleBankingApp.addTransactionCents("5495-1234", 0) && !SimpleBankingApp.addTransactionCents("", 1000)
+				&& SimpleBankingApp.addTransactionCents("r-0", "5495-1234", 0) == TransactionResult.INVALID_AMOUNT
+				&& SimpleBankingApp.getBalanceCents("5495-1234") == balanceBefore + 750;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testAddTransactions: TC1 passed" + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testAddTransactions: TC1 FAILED" + TestUtils.TEXT_COLOR_RESET);
+		
+		// 4-tear-down
+		SimpleBankingApp.addTransactionCents("5495-1234", -750);
+	}
+	
+	// this test method (test case) verifies the lookup of users by username, and that a username cannot be
+	// registered twice, even by threads racing each other
+	public static void testUserIndex() throws InterruptedException {
+		// 1-Setup phase
+		int usersBefore = SimpleBankingApp.users.size();
+		
+		// 2-Exercise + 3-verify phases
+		User mike = SimpleBankingApp.findUser(" MIKE ");
+		boolean duplicateRejected = !SimpleBankingApp.registerUser(new User("Mike", "other", "Mike", "Other", "07770000000"));
+		if (mike != null && mike.getFirst_name().equals("Mike") && SimpleBankingApp.findUser("nobody") == null 
+				&& duplicateRejected && SimpleBankingApp.users.size() == usersBefore)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testUserIndex: TC1 passed" + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testUserIndex: TC1 FAILED" + TestUtils.TEXT_COLOR_RESET);
+		
+		final AtomicInteger registered = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 1000; i++) {
+						if (SimpleBankingApp.registerUser(new User("racer" + i + "@example.com", "pw", "R", "R", "0")))
+							registered.incrementAndGet();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		if (registered.get() == 1000 && SimpleBankingApp.users.size() == usersBefore + 1000)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testUserIndex: TC2 passed" + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testUserIndex: TC2 FAILED" + TestUtils.TEXT_COLOR_RESET);
+		
+		// 4-tear-down: none, the test users are left in (like the loaded data)
+	}
+	
+	// this test method (test case) verifies the accounts and balances returned for one account holder
+	public static void testPortfolio() {
+		// 1-Setup phase
+		SimpleBankingApp.addTransactionCents("5495-1291", 12345);
+		
+		// 2-Exercise phase
+		List<AccountBalance> portfolio = SimpleBankingApp.getPortfolio("Mike");
+		
+		// 3-verify: mike has 3 accounts (see loadAccountData), in the order they were loaded
+		boolean passed = portfolio.size() == 3
+				&& portfolio.get(0).getAccount().getAccount_number().equals("5495-1234")
+				&& portfolio.get(2).getAccount().getAccount_number().equals("5495-1291")
+				&& portfolio.get(2).getBalance_cents() == SimpleBankingApp.getBalanceCents("5495-1291")
+				&& SimpleBankingApp.getAccountsOf("david.mcdonald@gmail.com").size() == 1
+				&& SimpleBankingApp.getPortfolio("nobody").isEmpty();
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testPortfolio: TC1 passed" + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testPortfolio: TC1 FAILED" + TestUtils.TEXT_COLOR_RESET);
+		
+		// 4-tear-down
+		SimpleBankingApp.addTransactionCents("5495-1291", -12345);
+	}
+	
+	// this test method (test case) verifies that transactions of an account that does not exist are rejected
+	// and counted, and that an account number cannot be registered twice
+	public static void testUnknownAccount() {
+		// 1-Setup phase
+		long rejectedBefore = SimpleBankingApp.getRejectedTransactionCount();
+		List<Transaction> batch = new ArrayList<Transaction>();
+		batch.add(Transaction.ofCents("9999-1111", 2100, null));
+		
+		// 2-Exercise phase
+		boolean added = SimpleBankingApp.addTransaction("9999-1111", 21.00);
+		TransactionResult[] results = SimpleBankingApp.addTransactions(batch);
+		boolean duplicateAdded = SimpleBankingApp.registerAccount(new Account("5495-1234", "mike", "Saving", new Date()));
+		
+		// 3-verify
+		boolean passed = !added && results[0] == TransactionResult.UNKNOWN_ACCOUNT
+				&& SimpleBankingApp.getBalanceCents("9999-1111") == 0
+				&& SimpleBankingApp.getRejectedTransactionCount() == rejectedBefore + 2
+				&& !duplicateAdded && SimpleBankingApp.accounts.size() == 4;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testUnknownAccount: TC1 passed" + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testUnknownAccount: TC1 FAILED" + TestUtils.TEXT_COLOR_RESET);
+		
+		// 4-tear-down: nothing was added
 	}
 	
-	public static void main(String[] args) {
+	public static void main(String[] args) throws InterruptedException {
 		// we need to call our test cases (methods)
 		testLoadData();
 		testDeposits();
 		testWithdrawals();
+		testBalanceIndex();
+		testAddTransactions();
+		testUserIndex();
+		testPortfolio();
+		testUnknownAccount();
 	}
 
 }
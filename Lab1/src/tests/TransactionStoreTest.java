@@ -0,0 +1,69 @@
+package tests;
+
+import java.util.Date;
+
+import model.Transaction;
+import model.TransactionStore;
+import utils.TestUtils;
+
+public class TransactionStoreTest {
+
+	// more rows than fit in one chunk, spread over two accounts
+	public static void testAppendAndRead() {
+		TransactionStore store = new TransactionStore();
+		int rows = 10000;
+		for (int i = 0; i < rows; i++)
+			store.append(i % 2 == 0 ? "5495-1234" : "5495-6789", i, 1000L * i);
+
+		int even = store.accountId("5495-1234");
+		int odd = store.accountId("5495-6789");
+		long expectedEven = 0;
+		long expectedOdd = 0;
+		for (int i = 0; i < rows; i++) {
+			if (i % 2 == 0)
+				expectedEven += i;
+			else
+				expectedOdd += i;
+		}
+
+		boolean passed = store.size() == rows
+				&& store.accountNumberOf(store.accountIdAt(9999)).equals("5495-6789")
+				&& store.amountCentsAt(9999) == 9999
+				&& store.timestampMillisAt(9999) == 9999000L
+				&& store.sumAmountCents(even) == expectedEven
+				&& store.sumAmountCents(odd) == expectedOdd;
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testAppendAndRead passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testAppendAndRead FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	// the view and the materialized Transaction must give back what was stored
+	public static void testView() {
+		TransactionStore store = new TransactionStore();
+		Date date = new Date();
+		store.append("5495-1234", -5021, date.getTime());
+
+		TransactionStore.View view = store.view().moveTo(0);
+		Transaction aTransaction = store.get(0);
+		boolean passed = view.getAccount_number().equals("5495-1234")
+				&& view.getTransaction_amount() == -50.21
+				&& view.getTransaction_amount_cents() == -5021
+				&& view.getTransaction_date().equals(date)
+				&& aTransaction.getAccount_number().equals("5495-1234")
+				&& aTransaction.getTransaction_amount_cents() == -5021
+				&& aTransaction.getTransaction_date().equals(date);
+		assert passed;
+		if (passed)
+			System.out.println(TestUtils.TEXT_COLOR_GREEN + "testView passed." + TestUtils.TEXT_COLOR_RESET);
+		else
+			System.out.println(TestUtils.TEXT_COLOR_RED + "testView FAILED." + TestUtils.TEXT_COLOR_RESET);
+	}
+
+	public static void main(String[] args) {
+		testAppendAndRead();
+		testView();
+	}
+
+}
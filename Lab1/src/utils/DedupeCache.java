@@ -0,0 +1,151 @@
+package utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the outcome of requests by their id (e.g. an idempotency key sent by a client) for a while, so that
+ * a request that is sent again gets the outcome of the first one instead of being done twice.
+ *
+ * The ids are kept in two generations, each a ConcurrentHashMap: new ids go into the current one, and lookups
+ * check both. When the current generation is older than the window (or holds max_entries ids), it becomes the
+ * previous one and the old previous one is dropped whole. So an id is remembered for at least the window
+ * (unless the cache is full, which cuts it short) and at most twice the window, memory stays bounded by twice
+ * max_entries, and nothing has to be evicted one entry at a time. Lookups and inserts take no lock of the
+ * cache's own; only the switch to a new generation is synchronized. A request that claims an id while the
+ * generations are being switched also checks the newer generation, so two requests with the same id are never
+ * both let through.
+ *
+ * @param <K> the type of the request ids
+ * @param <V> the type of the outcomes
+ */
+public class DedupeCache<K, V> {
+
+	/**
+	 * The outcome of a request, which is not known yet while the first request is in progress.
+	 */
+	public static final class Entry<V> {
+		private V value;
+		private boolean done;
+		private Entry<V> forward; // the entry of the request that won, if this one lost a race for the id
+
+		/**
+		 * Set the outcome (or null if the request failed and may be tried again), and wake up the requests
+		 * waiting for it.
+		 */
+		public synchronized void complete(V value) {
+			this.value = value;
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * Wait until the first request is done.
+		 *
+		 * @return its outcome, or null if it failed
+		 */
+		public V await() throws InterruptedException {
+			Entry<V> winner;
+			synchronized (this) {
+				while (!done)
+					wait();
+				if (forward == null)
+					return value;
+				winner = forward;
+			}
+			return winner.await();
+		}
+
+		synchronized void forward(Entry<V> winner) {
+			forward = winner;
+			done = true;
+			notifyAll();
+		}
+	}
+
+	static final class Generations<K, V> {
+		final ConcurrentHashMap<K, Entry<V>> current;
+		final ConcurrentHashMap<K, Entry<V>> previous;
+		final long started_millis;
+		volatile Generations<K, V> next; // set (before it is published) when these generations are replaced
+
+		Generations(ConcurrentHashMap<K, Entry<V>> current, ConcurrentHashMap<K, Entry<V>> previous, long started_millis) {
+			this.current = current;
+			this.previous = previous;
+			this.started_millis = started_millis;
+		}
+	}
+
+	private final long window_millis;
+	private final int max_entries;
+	private volatile Generations<K, V> generations;
+
+	/**
+	 * @param window_millis how long an id is remembered at least
+	 * @param max_entries the most ids in one generation
+	 */
+	public DedupeCache(long window_millis, int max_entries) {
+		if (window_millis <= 0 || max_entries <= 0)
+			throw new IllegalArgumentException("window_millis and max_entries must be positive");
+		this.window_millis = window_millis;
+		this.max_entries = max_entries;
+		generations = new Generations<K, V>(new ConcurrentHashMap<K, Entry<V>>(),
+				new ConcurrentHashMap<K, Entry<V>>(), MonotonicClock.currentTimeMillis());
+	}
+
+	/**
+	 * Claim a request id: if it is not known, the given entry is remembered for it, and the caller must do
+	 * the request and complete the entry. If it is known, the entry of the first request is returned instead.
+	 *
+	 * @param id of the request
+	 * @param entry a new entry, for the caller's request
+	 * @return null if the id was claimed with the given entry, or the entry of the first request with that id
+	 */
+	public Entry<V> claim(K id, Entry<V> entry) {
+		Generations<K, V> g = generations;
+		if (MonotonicClock.currentTimeMillis() - g.started_millis >= window_millis || g.current.size() >= max_entries)
+			g = rotate(g);
+		Entry<V> first = g.previous.get(id);
+		if (first != null)
+			return first;
+		first = g.current.putIfAbsent(id, entry);
+		if (first != null)
+			return first;
+		// if the generations were replaced meanwhile, a request that started since may not have seen this
+		// entry and may have claimed the id in the new current generation: whichever entry gets there first wins
+		for (Generations<K, V> newer = g.next; newer != null; newer = newer.next) {
+			first = newer.current.putIfAbsent(id, entry);
+			if (first != null && first != entry) {
+				entry.forward(first);
+				return first;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Forget a request id, e.g. when its request failed, so that it can be tried again.
+	 */
+	public void forget(K id, Entry<V> entry) {
+		Generations<K, V> g = generations;
+		if (!g.current.remove(id, entry))
+			g.previous.remove(id, entry);
+	}
+
+	/**
+	 * @return the number of request ids remembered
+	 */
+	public int size() {
+		Generations<K, V> g = generations;
+		return g.current.size() + g.previous.size();
+	}
+
+	private synchronized Generations<K, V> rotate(Generations<K, V> seen) {
+		if (generations != seen)
+			return generations; // another thread rotated already
+		Generations<K, V> newer = new Generations<K, V>(new ConcurrentHashMap<K, Entry<V>>(), seen.current,
+				MonotonicClock.currentTimeMillis());
+		seen.next = newer;
+		generations = newer;
+		return newer;
+	}
+}
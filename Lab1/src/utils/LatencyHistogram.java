@@ -0,0 +1,153 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations (or any non-negative values), in the manner of HdrHistogram: values below 64 have a
+ * bucket each, and every power of two above that is split into 32 buckets, so any value is known to within
+ * about 3% while the whole range of a long fits in 1888 counters.
+ *
+ * Recording takes no lock and allocates nothing, and can be done from any number of threads. As in LongAdder,
+ * the counters are striped over cells: a thread records into the cell its id hashes to, and when a thread finds
+ * its cell contended (a compare-and-set fails) the cells are doubled, up to the number of processors, so that
+ * threads recording at the same time end up writing to counters of their own instead of all bouncing the same
+ * cache lines. Uncontended, a recording is one compare-and-set on the bucket and one on the sum of its cell.
+ * Reading (count, percentiles, mean) adds up the cells while they may still be changing, which is fine for
+ * monitoring.
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // per power of two
+	static final int LINEAR_LIMIT = SUB_BUCKETS * 2; // values below this have a bucket each
+	static final int BUCKETS = bucketOf(Long.MAX_VALUE) + 1;
+	// after the buckets, each cell holds the sum and the max of the values recorded into it
+	static final int SUM = BUCKETS;
+	static final int MAX = BUCKETS + 1;
+	static final int MAX_CELLS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+	// a power of two of them, only ever grown
+	private volatile AtomicLongArray[] cells = { new AtomicLongArray(BUCKETS + 2) };
+
+	static int bucketOf(long value) {
+		if (value < LINEAR_LIMIT)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // at least 1
+		return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	// the highest value that falls in a bucket
+	static long highestValueOf(int bucket) {
+		if (bucket < LINEAR_LIMIT)
+			return bucket;
+		int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+		long sub_bucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub_bucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * @param value e.g. a duration in nanoseconds; negative values are counted as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		AtomicLongArray[] cells = this.cells;
+		AtomicLongArray cell = cells[cellOf(Thread.currentThread().getId(), cells.length)];
+		int bucket = bucketOf(value);
+		boolean contended = false;
+		long count = cell.get(bucket);
+		if (!cell.compareAndSet(bucket, count, count + 1)) {
+			cell.incrementAndGet(bucket);
+			contended = true;
+		}
+		long sum = cell.get(SUM);
+		if (!cell.compareAndSet(SUM, sum, sum + value)) {
+			cell.addAndGet(SUM, value);
+			contended = true;
+		}
+		long highest;
+		while (value > (highest = cell.get(MAX)) && !cell.compareAndSet(MAX, highest, value))
+			contended = true;
+		if (contended)
+			grow(cells);
+	}
+
+	// spreads the ids of threads (which are mostly consecutive) over the cells
+	static int cellOf(long thread_id, int cells) {
+		long h = thread_id * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & (cells - 1);
+	}
+
+	// doubles the cells, if they are still the given ones and there can be more
+	private synchronized void grow(AtomicLongArray[] cells) {
+		if (cells != this.cells || cells.length >= MAX_CELLS)
+			return;
+		AtomicLongArray[] grown = Arrays.copyOf(cells, cells.length * 2);
+		for (int i = cells.length; i < grown.length; i++)
+			grown[i] = new AtomicLongArray(BUCKETS + 2);
+		this.cells = grown;
+	}
+
+	public long getCount() {
+		long total = 0;
+		for (AtomicLongArray cell : cells) {
+			for (int bucket = 0; bucket < BUCKETS; bucket++)
+				total += cell.get(bucket);
+		}
+		return total;
+	}
+
+	// the count of one bucket, over all the cells
+	private long countOf(AtomicLongArray[] cells, int bucket) {
+		long count = 0;
+		for (AtomicLongArray cell : cells)
+			count += cell.get(bucket);
+		return count;
+	}
+
+	/**
+	 * @return the average of the values recorded, or 0 if there is none
+	 */
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : (double) countOf(cells, SUM) / n;
+	}
+
+	public long getMax() {
+		long max = 0;
+		for (AtomicLongArray cell : cells)
+			max = Math.max(max, cell.get(MAX));
+		return max;
+	}
+
+	/**
+	 * @param percentile from 0 to 100, e.g. 99.9
+	 * @return a value that the given percentage of the values recorded are at or below (within the precision
+	 * of the buckets), or 0 if there is none
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = getCount();
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+		AtomicLongArray[] cells = this.cells;
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += countOf(cells, bucket);
+			if (seen >= rank)
+				return Math.min(highestValueOf(bucket), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Forget every value recorded. Values recorded at the same time may be partly kept.
+	 */
+	public void reset() {
+		for (AtomicLongArray cell : cells) {
+			for (int i = 0; i < cell.length(); i++)
+				cell.set(i, 0);
+		}
+	}
+}
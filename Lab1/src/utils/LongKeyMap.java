@@ -0,0 +1,130 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hash map from (non-zero) long keys to objects, with open addressing: the keys and values are kept in two
+ * plain arrays and a lookup probes the key array linearly from the slot of the key's hash, so there are no
+ * entry objects, no boxing and no equals() calls.
+ *
+ * Entries can only be added, by one writer at a time (e.g. under a lock), but any number of threads can look
+ * up at the same time without locking. A new entry is published by the volatile write of the size, after its
+ * key and value; when the table grows, the new table is filled in completely before it replaces the old one.
+ *
+ * @param <V> the type of the values
+ */
+public class LongKeyMap<V> {
+
+	static final long EMPTY = 0;
+	static final int MIN_CAPACITY = 8;
+
+	private volatile Table table;
+	private volatile int size;
+
+	public LongKeyMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongKeyMap(int expected_size) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * 3 / 4 < expected_size)
+			capacity <<= 1;
+		table = new Table(capacity);
+	}
+
+	/**
+	 * @param key
+	 * @param hash of the key (e.g. AccountKey.hash), computed by the caller so that it can be reused
+	 * @return the value of the key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key, int hash) {
+		if (size == 0) // volatile read first, to see every entry published so far
+			return null;
+		Table t = table;
+		for (int slot = hash & t.mask;; slot = (slot + 1) & t.mask) {
+			long k = t.keys[slot];
+			if (k == key)
+				return (V) t.values[slot];
+			if (k == EMPTY)
+				return null;
+		}
+	}
+
+	/**
+	 * Add an entry for a key that is not in the map yet. Must only be called by the writer.
+	 *
+	 * @param key must not be 0
+	 * @param hash of the key, the same as given to get()
+	 * @param value must not be null
+	 */
+	public void putNew(long key, int hash, V value) {
+		if (key == EMPTY)
+			throw new IllegalArgumentException("0 cannot be a key");
+		Table t = table;
+		if ((size + 1) > t.keys.length * 3 / 4) {
+			t = t.grow();
+			table = t;
+		}
+		t.put(key, hash, value);
+		size = size + 1;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return a copy of the values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		int n = size;
+		Table t = table;
+		List<V> values = new ArrayList<V>(n);
+		for (int slot = 0; slot < t.keys.length; slot++) {
+			if (t.keys[slot] != EMPTY && t.values[slot] != null)
+				values.add((V) t.values[slot]);
+		}
+		return values;
+	}
+
+
+	static final class Table {
+		final long[] keys;
+		final Object[] values;
+		final int[] hashes; // kept so that growing does not need to hash the keys again
+		final int mask;
+
+		Table(int capacity) {
+			keys = new long[capacity];
+			values = new Object[capacity];
+			hashes = new int[capacity];
+			mask = capacity - 1;
+		}
+
+		void put(long key, int hash, Object value) {
+			int slot = hash & mask;
+			while (keys[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			// a lookup racing with this may or may not find the new entry (a null value reads as no entry);
+			// it finds it for sure once it has read the new size
+			values[slot] = value;
+			hashes[slot] = hash;
+			keys[slot] = key;
+		}
+
+		Table grow() {
+			Table grown = new Table(keys.length * 2);
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (keys[slot] != EMPTY)
+					grown.put(keys[slot], hashes[slot], values[slot]);
+			}
+			return grown;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package utils;
+
+/**
+ * A wall clock in nanoseconds since the epoch that is cheap to read and never goes backwards: the time is
+ * measured with System.nanoTime() from a calibration against the wall clock, which is taken again every
+ * RECALIBRATE_NANOS, so that the clock follows adjustments of the system clock (e.g. by NTP) instead of drifting
+ * from it over the life of the process. Reading it allocates nothing and does not touch the time zone (unlike
+ * Calendar.getInstance()).
+ *
+ * A calibration never moves the clock backwards: if the wall clock is behind, the clock goes on from where it
+ * was until the wall clock catches up. After a restart it should be given the latest time it handed out before
+ * (see advanceTo), in case the wall clock is now behind that.
+ */
+public final class MonotonicClock {
+
+	static final long NANOS_PER_MILLI = 1000000L;
+	static final long RECALIBRATE_NANOS = 1000 * NANOS_PER_MILLI;
+
+	// the time since the epoch at the given System.nanoTime()
+	private static final class Calibration {
+		final long nano_time;
+		final long epoch_nanos;
+
+		Calibration(long nano_time, long epoch_nanos) {
+			this.nano_time = nano_time;
+			this.epoch_nanos = epoch_nanos;
+		}
+
+		long at(long nano_time) {
+			return epoch_nanos + (nano_time - this.nano_time);
+		}
+	}
+
+	private static volatile Calibration calibration;
+
+	static {
+		long millis = System.currentTimeMillis();
+		calibration = new Calibration(System.nanoTime(), millis * NANOS_PER_MILLI);
+	}
+
+	private MonotonicClock() {
+	}
+
+	/**
+	 * @return the time in nanoseconds since the epoch (1970-01-01T00:00:00Z)
+	 */
+	public static long currentTimeNanos() {
+		while (true) {
+			Calibration c = calibration;
+			long now = System.nanoTime();
+			if (now - c.nano_time >= RECALIBRATE_NANOS) {
+				calibrate(c, now, System.currentTimeMillis() * NANOS_PER_MILLI);
+				continue;
+			}
+			long time = c.at(now);
+			// a calibration that came in meanwhile may have moved the clock forwards
+			if (c == calibration)
+				return time;
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds since the epoch, as System.currentTimeMillis() but never going backwards
+	 */
+	public static long currentTimeMillis() {
+		return currentTimeNanos() / NANOS_PER_MILLI;
+	}
+
+	public static long toMillis(long epoch_nanos) {
+		return Math.floorDiv(epoch_nanos, NANOS_PER_MILLI);
+	}
+
+	/**
+	 * Move the clock forwards to at least the given time, e.g. the latest timestamp found in the journal after
+	 * a restart, so that it does not hand out earlier ones if the wall clock has gone back since. It is never
+	 * moved backwards.
+	 */
+	public static synchronized void advanceTo(long epoch_millis) {
+		long now = System.nanoTime();
+		Calibration c = calibration;
+		long epoch_nanos = Math.max(epoch_millis, System.currentTimeMillis()) * NANOS_PER_MILLI;
+		calibration = new Calibration(now, Math.max(epoch_nanos, c.at(now)));
+	}
+
+	// replaces the calibration (unless another thread did first) by one that gives epoch_nanos at nano_time, or
+	// the time the current one gives then if that is later
+	private static synchronized void calibrate(Calibration c, long nano_time, long epoch_nanos) {
+		if (c != calibration)
+			return;
+		calibration = new Calibration(nano_time, Math.max(epoch_nanos, c.at(nano_time)));
+	}
+}